@@ -5,6 +5,8 @@
 
 package xmpptrace.action;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class to provide utility functions for manipulating bits in a char array,
  * converting to strings (for display), converting to integers, etc.  This
@@ -121,6 +123,49 @@ public class BitUtils
         
         return result;
     }        
+
+    /**
+     * Checks whether the given range of bytes holds well formed UTF-8
+     * multibyte sequences.  Sequences are not permitted to run past the
+     * end of the range.
+     * @param b Array containing the bytes to be checked.
+     * @param offset Index in b of the first byte of interest.
+     * @param length Number of bytes to be checked.
+     * @return True if the range appears to be UTF-8 text, false otherwise.
+     */
+    public static boolean isUtf8(byte[] b, int offset, int length)
+    {
+        return isUtf8(ByteBuffer.wrap(b), offset, length);
+    }
+
+    /**
+     * Checks whether the given range of a buffer holds well formed UTF-8
+     * multibyte sequences.  Bytes are read using absolute indexing, so the
+     * position of the buffer is not disturbed.
+     * @param b Buffer containing the bytes to be checked.
+     * @param offset Absolute index in b of the first byte of interest.
+     * @param length Number of bytes to be checked.
+     * @return True if the range appears to be UTF-8 text, false otherwise.
+     */
+    public static boolean isUtf8(ByteBuffer b, int offset, int length)
+    {
+        int end = offset + length;
+        int i = offset;
+        while (i < end)
+        {
+            // count the leading ones, which give the sequence length
+            int c = 0;
+            byte a = b.get(i);
+            for (int m = 0x80; m > 0 && (a & m) != 0; m >>>= 1, ++c);
+            if ((c == 1) || (c > 6) || (i + c > end))
+                return false;
+            for (int k = i + 1; k < i + c; ++k)
+                if ((b.get(k) & 0xC0) != 0x80)
+                    return false;
+            i += (c == 0) ? 1 : c;
+        }
+        return true;
+    }
 }
 
 
@@ -0,0 +1,150 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens trace data from a stream, whatever its format.  Compressed data is
+ * recognised by its magic number and decompressed as it is read (gzip in
+ * process, xz and zstd through the xz and zstd commands), on threads of its
+ * own so that decompression is overlapped with parsing.  The trace format
+ * (tcpdump, pcapng or xmppdump) is then recognised in turn, and a parser
+ * suited to it is returned.  Progress through the source stream, as seen by
+ * a counting stream passed in, reflects the compressed bytes consumed.
+ *
+ * @author adb
+ */
+public final class CaptureStreams
+{
+    // size of buffer over the source stream
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // magic numbers of the compression formats we read
+    private static final byte[] GZIP_MAGIC = { 0x1F, (byte)0x8B };
+    private static final byte[] XZ_MAGIC =
+        { (byte)0xFD, '7', 'z', 'X', 'Z', 0x00 };
+    private static final byte[] ZSTD_MAGIC =
+        { 0x28, (byte)0xB5, 0x2F, (byte)0xFD };
+
+    private CaptureStreams() {}
+
+    /**
+     * Creates a parser for the trace data read from the given stream,
+     * decompressing it first if need be.
+     * @param is The stream to be parsed.
+     * @return A parser suited to the format of the stream.
+     * @throws IOException If the stream cannot be read, or the command
+     *         needed to decompress it cannot be run.
+     */
+    public static StreamParser createParser(InputStream is) throws IOException
+    {
+        InputStream in = decompress(is);
+        if (!in.markSupported())
+        {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+
+        byte[] magic = peek(in, 4);
+        int m = (magic.length < 4) ? 0 :
+            (magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 |
+            (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF);
+        switch (m)
+        {
+        case PcapFrameDecoder.PCAP_MAGIC:
+        case PcapFrameDecoder.PCAP_MAGIC_SWAPPED:
+        case PcapFrameDecoder.PCAP_NSEC_MAGIC:
+        case PcapFrameDecoder.PCAP_NSEC_MAGIC_SWAPPED:
+            return new TcpDumpStreamParser(in);
+        case PcapFrameDecoder.PCAPNG_SHB_TYPE:
+            return new PcapNgStreamParser(in);
+        default:
+            return new XmppDumpStreamParser(in);
+        }
+    }
+
+    /**
+     * Returns a stream of the decompressed contents of the given stream, if
+     * it is compressed, or of the stream itself if it is not.
+     * @param is The stream to be read.
+     * @return A stream of the decompressed data, which supports mark() if
+     *         the data is not compressed.
+     * @throws IOException If the stream cannot be read, or the command
+     *         needed to decompress it cannot be run.
+     */
+    public static InputStream decompress(InputStream is) throws IOException
+    {
+        InputStream in = new BufferedInputStream(is, BUFFER_SIZE);
+        byte[] magic = peek(in, XZ_MAGIC.length);
+        if (startsWith(magic, GZIP_MAGIC))
+        {
+            return new ReadAheadInputStream(
+                    new GZIPInputStream(in, BUFFER_SIZE), "gunzip");
+        }
+        if (startsWith(magic, XZ_MAGIC))
+        {
+            return new ProcessInputStream(in, "xz", "-dc");
+        }
+        if (startsWith(magic, ZSTD_MAGIC))
+        {
+            return new ProcessInputStream(in, "zstd", "-dc");
+        }
+        return in;
+    }
+
+    /**
+     * Reads the first bytes of a stream, without consuming them.
+     * @param in The stream, which must support mark().
+     * @param n Number of bytes wanted.
+     * @return The bytes read, fewer than asked for if the stream is short.
+     * @throws IOException If the stream cannot be read.
+     */
+    private static byte[] peek(InputStream in, int n) throws IOException
+    {
+        byte[] b = new byte[n];
+        in.mark(n);
+        int total = 0;
+        int r = 0;
+        while (total < n && r != -1)
+        {
+            r = in.read(b, total, n - total);
+            total += Math.max(r, 0);
+        }
+        in.reset();
+        if (total < n)
+        {
+            byte[] shorter = new byte[total];
+            System.arraycopy(b, 0, shorter, 0, total);
+            b = shorter;
+        }
+        return b;
+    }
+
+    /**
+     * Tests whether the given bytes begin with the given prefix.
+     * @param b The bytes.
+     * @param prefix The prefix.
+     * @return True if b starts with prefix.
+     */
+    private static boolean startsWith(byte[] b, byte[] prefix)
+    {
+        if (b.length < prefix.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i)
+        {
+            if (b[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
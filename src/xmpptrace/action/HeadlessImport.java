@@ -0,0 +1,209 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+import xmpptrace.model.Address;
+import xmpptrace.model.Pair;
+import xmpptrace.store.Database;
+import xmpptrace.store.ProgressSink;
+
+/**
+ * Command line entry point which imports one or more capture files into a
+ * database, identifies actors, and prints a summary, all without a display.
+ * This allows databases to be built ahead of time, e.g. on the hosts where
+ * captures are taken, and opened later in the application.  Each run works
+ * on one database, so several databases may be built in parallel by
+ * running several processes.  Usage:
+ *
+ *      java -cp xmpptrace.jar xmpptrace.action.HeadlessImport
+ *              [-lazy] [-quiet] [-batch N] out[.h2.db] capture...
+ *
+ * Captures may be in any format, compressed or not, that the application
+ * imports.  An existing database is added to, not replaced.  -batch sets
+ * the number of packets inserted per transaction, trading memory for
+ * import speed.
+ *
+ * @author adb
+ */
+public class HeadlessImport
+{
+    /**
+     * A ProgressSink which writes the percentage complete of each task to
+     * the console, on a single line, in steps of 5%.
+     */
+    private static class ConsoleProgressSink implements ProgressSink
+    {
+        private PrintStream mOut;
+        private String mNote;
+        private long mMax;
+        private int mPercent;
+
+        public ConsoleProgressSink(PrintStream out)
+        {
+            mOut = out;
+        }
+
+        public synchronized void begin(String note, long max)
+        {
+            mNote = note;
+            mMax = Math.max(max, 1);
+            mPercent = -1;
+            setProgress(0);
+        }
+
+        public synchronized void setProgress(long value)
+        {
+            int percent = (int)Math.min(100, value * 100 / mMax) / 5 * 5;
+            if (percent != mPercent)
+            {
+                mPercent = percent;
+                mOut.print("\r" + mNote + " " + percent + "%");
+                mOut.flush();
+            }
+        }
+
+        public boolean isCanceled()
+        {
+            return false;
+        }
+
+        public synchronized void end()
+        {
+            mOut.println();
+        }
+    }
+
+    /**
+     * Command line main.
+     * @param args Options, then the database name, then the capture files.
+     */
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+
+        boolean lazy = false;
+        boolean quiet = false;
+        int batchSize = Database.DEFAULT_IMPORT_BATCH_SIZE;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); ++i)
+        {
+            if (args[i].equals("-lazy"))
+            {
+                lazy = true;
+            }
+            else if (args[i].equals("-quiet"))
+            {
+                quiet = true;
+            }
+            else if (args[i].equals("-batch") && i + 1 < args.length)
+            {
+                try
+                {
+                    batchSize = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException e)
+                {
+                    usage();
+                }
+                if (batchSize < 1)
+                {
+                    usage();
+                }
+            }
+            else
+            {
+                usage();
+            }
+        }
+        if (args.length - i < 2)
+        {
+            usage();
+        }
+
+        long start = System.currentTimeMillis();
+        Database db = Database.getInstance();
+        try
+        {
+            db.open(args[i++]);
+            db.setLazyStanzas(lazy);
+            db.setImportBatchSize(batchSize);
+            db.setProgressSink(quiet
+                    ? ProgressSink.NONE
+                    : new ConsoleProgressSink(System.err));
+
+            // import all files, then analyze them all at once
+            for (; i < args.length; ++i)
+            {
+                db.importFile(new File(args[i]));
+            }
+            db.analyzePackets();
+            printSummary(db, System.out);
+            System.out.println("Elapsed: " +
+                    (System.currentTimeMillis() - start) + " ms");
+            db.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Prints summary statistics of the database.
+     * @param db The database.
+     * @param out Where to print them.
+     */
+    private static void printSummary(Database db, PrintStream out)
+    {
+        out.println("Database: " + db.getDbFileName());
+        out.println("Packets: " + db.getPacketCount());
+        Pair<Timestamp, Timestamp> range = db.getTimeRange();
+        if (range != null)
+        {
+            out.println("From: " + range.first);
+            out.println("To: " + range.second);
+        }
+
+        // addresses whose actor is other than the address itself have
+        // been identified by the augur
+        ArrayList<Address> addresses = new ArrayList<Address>();
+        db.fetchAddresses(addresses);
+        TreeSet<String> actors = new TreeSet<String>();
+        int identified = 0;
+        for (Address a: addresses)
+        {
+            if (a.actor != null && !a.actor.equals(a.ip))
+            {
+                actors.add(a.actor);
+                ++identified;
+            }
+        }
+        out.println("Addresses: " + addresses.size() +
+                " (" + identified + " identified)");
+        out.println("Actors: " + actors.size());
+        for (String actor: actors)
+        {
+            out.println("    " + actor);
+        }
+    }
+
+    /**
+     * Prints usage and exits.
+     */
+    private static void usage()
+    {
+        System.err.println("usage: HeadlessImport [-lazy] [-quiet] " +
+                "[-batch N] out[.h2.db] capture...");
+        System.exit(1);
+    }
+}
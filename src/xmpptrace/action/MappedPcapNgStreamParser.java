@@ -0,0 +1,93 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.File;
+import java.io.IOException;
+
+import xmpptrace.action.TcpDumpStreamParser.TcpDumpParseException;
+import xmpptrace.model.TcpPacket;
+
+/**
+ * MappedPcapNgStreamParser parses pcapng formatted trace files (as written
+ * by default by current versions of wireshark and dumpcap) into discrete
+ * TcpPacket objects.  Like MappedTcpDumpStreamParser, it reads the file
+ * through a memory mapping, decoding block and frame headers in place.
+ * The blocks themselves are decoded by PcapNgBlockDecoder, which is shared
+ * with PcapNgStreamParser.
+ *
+ * @author adb
+ */
+public class MappedPcapNgStreamParser extends MappedStreamParser
+{
+    private PcapNgBlockDecoder mDecoder;
+
+    /**
+     * Ctor.  Opens the given file for reading.
+     * @param f The pcapng capture file to be parsed.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedPcapNgStreamParser(File f) throws IOException
+    {
+        super(f);
+        mDecoder = new PcapNgBlockDecoder();
+    }
+
+    /**
+     * Reads the next TCP packet entry from the file provided in the ctor,
+     * decoding only its headers.  The payload is left for decodePacket().
+     * @return The next TcpPacket framed from the file, null if reached eof.
+     * @throws IOException If an error occurs while reading from the file.
+     */
+    public TcpPacket getNextFrame() throws IOException
+    {
+        TcpPacket p = null;
+        while (p == null && isOpen())
+        {
+            p = readBlock();
+        }
+        return p;
+    }
+
+    /**
+     * Reads the next block of the file, at the current position.
+     * @return The TcpPacket carried by the block, or null if the block is
+     *         not a packet block, or its frame is not a TCP/IP segment.
+     * @throws IOException If an error occurs while reading from the file.
+     */
+    private TcpPacket readBlock() throws IOException
+    {
+        // map the block header, quit at eof
+        int hdr = map(mPosition, PcapNgBlockDecoder.MIN_BLOCK_SIZE);
+        if (hdr == -1)
+        {
+            close();
+            return null;
+        }
+
+        // a section header sets the byte order of all that follows
+        int type = PcapNgBlockDecoder.getBlockType(mWindow, hdr);
+        if (type == PcapFrameDecoder.PCAPNG_SHB_TYPE)
+        {
+            setByteOrder(PcapNgBlockDecoder.getSectionByteOrder(mWindow, hdr));
+        }
+        else if (mPosition == 0)
+        {
+            throw new TcpDumpParseException();
+        }
+
+        // map the complete block, quit if the file is truncated
+        int len = PcapNgBlockDecoder.getBlockLength(mWindow, hdr);
+        int blk = map(mPosition, len);
+        if (blk == -1)
+        {
+            close();
+            return null;
+        }
+        mPosition += len;
+        return mDecoder.decodeBlock(mWindow, blk, len);
+    }
+}
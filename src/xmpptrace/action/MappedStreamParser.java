@@ -0,0 +1,211 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import xmpptrace.model.TcpPacket;
+
+/**
+ * Common base of the parsers which read capture files through a memory
+ * mapping rather than an InputStream (MappedTcpDumpStreamParser for classic
+ * pcap files, MappedPcapNgStreamParser for pcapng files).  Record headers
+ * and link/ip/tcp headers are read in place from the mapping, and only the
+ * TCP payload of each packet is copied out, when it is decoded.
+ *
+ * Files larger than the addressable range of a single mapping are walked
+ * through a sliding window, which is remapped whenever the next record does
+ * not fit in what is currently mapped.  The underlying file is closed once
+ * the end of the capture is reached, or when close() is called.
+ *
+ * Use open() to get a parser of the right kind for a given capture file.
+ *
+ * @author adb
+ */
+public abstract class MappedStreamParser implements StreamParser, Closeable
+{
+    // size of the mapped window onto the capture file
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private long mSize;
+
+    // currently mapped window, and its offset within the file
+    protected MappedByteBuffer mWindow;
+    private long mWindowOffset;
+
+    // byte order applied to the window
+    protected ByteOrder mByteOrder;
+
+    // file offset of the next record to be read
+    protected long mPosition;
+
+    /**
+     * Opens a capture file with a parser suited to its format, which is
+     * determined from the magic number at the start of the file.
+     * @param f The capture file to be parsed.
+     * @return A parser for the file, or null if it is neither a pcap nor a
+     *         pcapng file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static MappedStreamParser open(File f) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        int magic = 0;
+        try
+        {
+            magic = (raf.length() >= 4) ? raf.readInt() : 0;
+        }
+        finally
+        {
+            raf.close();
+        }
+        switch (magic)
+        {
+        case PcapFrameDecoder.PCAP_MAGIC:
+        case PcapFrameDecoder.PCAP_MAGIC_SWAPPED:
+        case PcapFrameDecoder.PCAP_NSEC_MAGIC:
+        case PcapFrameDecoder.PCAP_NSEC_MAGIC_SWAPPED:
+            return new MappedTcpDumpStreamParser(f);
+        case PcapFrameDecoder.PCAPNG_SHB_TYPE:
+            return new MappedPcapNgStreamParser(f);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Ctor.  Opens the given file for reading.
+     * @param f The capture file to be parsed.
+     * @throws IOException If the file cannot be opened.
+     */
+    protected MappedStreamParser(File f) throws IOException
+    {
+        mFile = new RandomAccessFile(f, "r");
+        mChannel = mFile.getChannel();
+        mSize = mChannel.size();
+        mWindow = null;
+        mWindowOffset = 0;
+        mByteOrder = ByteOrder.BIG_ENDIAN;
+        mPosition = 0;
+    }
+
+    /**
+     * Returns the file offset of the next record to be read.
+     * @return Number of bytes of the file consumed so far.
+     */
+    public long getPosition()
+    {
+        return mPosition;
+    }
+
+    /**
+     * Returns the total size of the capture file.
+     * @return Size of the capture file in bytes.
+     */
+    public long getSize()
+    {
+        return mSize;
+    }
+
+    /**
+     * Reads the next TCP packet entry from the file provided in the ctor,
+     * and fully decodes it.
+     * @return The next TcpPacket parsed from the file, null if reached eof.
+     * @throws IOException If an error occurs while reading from the file.
+     */
+    public TcpPacket getNextPacket() throws IOException
+    {
+        TcpPacket p = getNextFrame();
+        if (p != null)
+        {
+            decodePacket(p);
+        }
+        return p;
+    }
+
+    /**
+     * Decodes the payload of a packet returned by getNextFrame().  This may
+     * be invoked on any thread.
+     * @param p The packet to be decoded.
+     */
+    public void decodePacket(TcpPacket p)
+    {
+        PcapFrameDecoder.decodePayload(p);
+    }
+
+    /**
+     * Releases the underlying file.  Subsequent calls to getNextPacket()
+     * will return null.
+     * @throws IOException If an error occurs while closing the file.
+     */
+    public void close() throws IOException
+    {
+        if (mChannel != null)
+        {
+            mChannel = null;
+            mWindow = null;
+            mFile.close();
+        }
+    }
+
+    /**
+     * Returns true until the file has been closed.
+     * @return True if the file is still open.
+     */
+    protected boolean isOpen()
+    {
+        return mChannel != null;
+    }
+
+    /**
+     * Sets the byte order in which the file's own fields are read.  Network
+     * header fields are big endian regardless.
+     * @param order The byte order of the file.
+     */
+    protected void setByteOrder(ByteOrder order)
+    {
+        mByteOrder = order;
+        if (mWindow != null)
+        {
+            mWindow.order(order);
+        }
+    }
+
+    /**
+     * Ensures that the given range of the file is within the mapped window,
+     * remapping the window to begin at the given offset if it is not.
+     * @param offset File offset of the first byte required.
+     * @param length Number of bytes required.
+     * @return The index within the window corresponding to the offset, or
+     *         -1 if the file does not hold that many bytes.
+     * @throws IOException If the file cannot be mapped.
+     */
+    protected int map(long offset, int length) throws IOException
+    {
+        if (offset + length > mSize)
+        {
+            return -1;
+        }
+        if (mWindow == null ||
+            offset < mWindowOffset ||
+            offset + length > mWindowOffset + mWindow.limit())
+        {
+            long size = Math.min(Math.max(WINDOW_SIZE, length), mSize - offset);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            mWindow.order(mByteOrder);
+            mWindowOffset = offset;
+        }
+        return (int)(offset - mWindowOffset);
+    }
+}
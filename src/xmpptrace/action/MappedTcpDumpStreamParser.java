@@ -0,0 +1,161 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import xmpptrace.action.TcpDumpStreamParser.TcpDumpParseException;
+import xmpptrace.model.TcpPacket;
+
+/**
+ * MappedTcpDumpStreamParser parses tcpdump formatted trace files into
+ * discrete TcpPacket objects, in the same manner as TcpDumpStreamParser,
+ * but reads the file through a memory mapping rather than an InputStream.
+ * Record headers and link/ip/tcp headers are read in place from the
+ * mapping, and only the TCP payload of each packet is copied out.
+ *
+ * Both microsecond and nanosecond resolution captures are read, in either
+ * byte order.  Usage is the same as for the stream parser:
+ *
+ *      MappedTcpDumpStreamParser parser = new MappedTcpDumpStreamParser(f);
+ *      TcpPacket p = parser.getNextPacket();
+ *      while (p != null)
+ *      {
+ *          do.something.with(p);
+ *          p = parser.getNextPacket();
+ *      }
+ *
+ * The underlying file is closed once the end of the capture is reached, or
+ * when close() is called.
+ *
+ * @author adb
+ */
+public class MappedTcpDumpStreamParser extends MappedStreamParser
+{
+    // size of the pcap file header and record header
+    private static final int FILE_HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private long mStreamSnapLen;
+    private long mStreamDataLinkType;
+    private int mPacketCount;
+
+    // nanoseconds per unit of the record timestamp fraction
+    private long mFractionNanos;
+
+    /**
+     * Ctor.  Opens the given file for reading.
+     * @param f The tcpdump capture file to be parsed.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedTcpDumpStreamParser(File f) throws IOException
+    {
+        super(f);
+        mStreamSnapLen = 0;
+        mStreamDataLinkType = -1;
+        mPacketCount = 0;
+        mFractionNanos = 1000;
+    }
+
+    /**
+     * Reads the next TCP packet entry from the file provided in the ctor,
+     * decoding only its headers.  The payload is left for decodePacket().
+     * @return The next TcpPacket framed from the file, null if reached eof.
+     * @throws IOException If an error occurs while reading from the file.
+     */
+    public TcpPacket getNextFrame() throws IOException
+    {
+        if (!isOpen())
+        {
+            return null;
+        }
+
+        // read the stream header, if we haven't already
+        if (mStreamDataLinkType == -1)
+        {
+            readStreamHeader();
+        }
+
+        TcpPacket p = null;
+        long sec = 0;
+        long frac = 0;
+        do
+        {
+            // map the pcap record header, quit at eof
+            int hdr = map(mPosition, RECORD_HEADER_SIZE);
+            if (hdr == -1)
+            {
+                close();
+                return null;
+            }
+            sec = mWindow.getInt(hdr) & 0xFFFFFFFFL;
+            frac = mWindow.getInt(hdr + 4) & 0xFFFFFFFFL;
+            long caplen = mWindow.getInt(hdr + 8) & 0xFFFFFFFFL;
+            if (caplen > Integer.MAX_VALUE - RECORD_HEADER_SIZE)
+            {
+                throw new TcpDumpParseException();
+            }
+
+            // map the complete record, quit if the file is truncated
+            hdr = map(mPosition, RECORD_HEADER_SIZE + (int)caplen);
+            if (hdr == -1)
+            {
+                close();
+                return null;
+            }
+            mPosition += RECORD_HEADER_SIZE + caplen;
+
+            // decode the frame, repeat until an ip packet is found
+            p = PcapFrameDecoder.decode(mWindow, hdr + RECORD_HEADER_SIZE,
+                    (int)caplen, mStreamDataLinkType);
+        }
+        while (p == null);
+
+        // add packet metadata
+        p.pacno = this.mPacketCount++;
+        p.time = PcapFrameDecoder.timestamp(sec, frac * mFractionNanos);
+        return p;
+    }
+
+    private void readStreamHeader() throws IOException
+    {
+        int hdr = map(0, FILE_HEADER_SIZE);
+        if (hdr == -1)
+        {
+            throw new TcpDumpParseException();
+        }
+
+        // check magic number, determine file byte order
+        mWindow.order(ByteOrder.BIG_ENDIAN);
+        int magic = mWindow.getInt(hdr);
+        switch (magic)
+        {
+        case PcapFrameDecoder.PCAP_MAGIC_SWAPPED:
+            setByteOrder(ByteOrder.LITTLE_ENDIAN);
+            break;
+        case PcapFrameDecoder.PCAP_MAGIC:
+            setByteOrder(ByteOrder.BIG_ENDIAN);
+            break;
+        case PcapFrameDecoder.PCAP_NSEC_MAGIC_SWAPPED:
+            setByteOrder(ByteOrder.LITTLE_ENDIAN);
+            mFractionNanos = 1;
+            break;
+        case PcapFrameDecoder.PCAP_NSEC_MAGIC:
+            setByteOrder(ByteOrder.BIG_ENDIAN);
+            mFractionNanos = 1;
+            break;
+        default:
+            throw new TcpDumpParseException();
+        }
+
+        // get stream header fields
+        mStreamSnapLen = mWindow.getInt(hdr + 16) & 0xFFFFFFFFL;
+        mStreamDataLinkType = mWindow.getInt(hdr + 20) & 0xFFFFFFFFL;
+        mPosition = FILE_HEADER_SIZE;
+    }
+}
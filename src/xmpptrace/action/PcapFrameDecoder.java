@@ -0,0 +1,416 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+
+import xmpptrace.model.TcpPacket;
+
+/**
+ * Decodes the link layer, IP and TCP headers of a single captured frame
+ * into a TcpPacket.  All fields are read in place from a ByteBuffer using
+ * absolute indexing, so the same code serves frames that were read into a
+ * heap array (TcpDumpStreamParser) and frames that live in a memory-mapped
+ * capture file (MappedStreamParser subclasses).  Network header fields are
+ * always big endian, regardless of the byte order set on the buffer.
+ *
+ * Decoding is split in two: decode() does the cheap header work and is
+ * run by the parser as it frames records, while decodePayload() does the
+ * text and stanza work, which an import may hand off to other threads.
+ *
+ * @author adb
+ */
+final class PcapFrameDecoder
+{
+    // these link layer codes come from libpcap bpf.h and pcap-common.c
+    static final int DLT_NULL = 0;
+    static final int LINKTYPE_NULL = DLT_NULL;
+
+    static final int DLT_EN10MB = 1;
+    static final int LINKTYPE_ETHERNET = DLT_EN10MB;
+
+    static final int LINKTYPE_RAW = 101;
+
+    static final int DLT_LINUX_SLL = 113;
+    static final int LINKTYPE_LINUX_SLL = DLT_LINUX_SLL;
+
+    static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    // ways in which a link layer header identifies its payload
+    private static final int PROTO_ETHERTYPE = 0;   // 16 bit ethertype
+    private static final int PROTO_FAMILY = 1;      // 32 bit host order AF_
+    private static final int PROTO_NONE = 2;        // ip version nibble
+
+    // the link layers we decode: link type, header length, offset of the
+    // payload protocol field, and kind of that field
+    private static final int[][] LINK_LAYERS =
+    {
+        { LINKTYPE_ETHERNET,    14, 12, PROTO_ETHERTYPE },
+        { LINKTYPE_LINUX_SLL,   16, 14, PROTO_ETHERTYPE },
+        { LINKTYPE_LINUX_SLL2,  20,  0, PROTO_ETHERTYPE },
+        { LINKTYPE_RAW,          0,  0, PROTO_NONE      },
+        { LINKTYPE_NULL,         4,  0, PROTO_FAMILY    },
+    };
+
+    // ethertypes of ip, and of the vlan tags which may precede it
+    private static final int ETHERTYPE_IP = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int ETHERTYPE_QINQ_OLD = 0x9100;
+
+    // most vlan tags we will look through
+    private static final int MAX_VLAN_TAGS = 4;
+
+    // address families of the loopback header, linux AF_INET6 and the
+    // various BSD flavours of it
+    private static final int AF_INET = 2;
+    private static final int AF_INET6_LINUX = 10;
+    private static final int AF_INET6_BSD = 24;
+    private static final int AF_INET6_FREEBSD = 28;
+    private static final int AF_INET6_DARWIN = 30;
+
+    // ip protocol numbers of TCP and of the ipv6 extension headers
+    private static final int IPPROTO_TCP = 6;
+    private static final int IPPROTO_HOPOPTS = 0;
+    private static final int IPPROTO_ROUTING = 43;
+    private static final int IPPROTO_FRAGMENT = 44;
+    private static final int IPPROTO_AH = 51;
+    private static final int IPPROTO_DSTOPTS = 60;
+
+    // size of the fixed ipv6 header
+    private static final int IPV6_HEADER_SIZE = 40;
+
+    // classic pcap magic numbers, as read big endian, for microsecond and
+    // nanosecond resolution files written in either byte order
+    static final int PCAP_MAGIC = 0xA1B2C3D4;
+    static final int PCAP_MAGIC_SWAPPED = 0xD4C3B2A1;
+    static final int PCAP_NSEC_MAGIC = 0xA1B23C4D;
+    static final int PCAP_NSEC_MAGIC_SWAPPED = 0x4D3CB2A1;
+
+    // pcapng files begin with a section header block, whose type reads the
+    // same in either byte order
+    static final int PCAPNG_SHB_TYPE = 0x0A0D0D0A;
+
+    private PcapFrameDecoder() {}
+
+    /**
+     * Decodes the headers of the frame of the given length at the given
+     * buffer index.  The TCP payload is not copied, rather a view of it is
+     * left in the packet's payload field, to be decoded by decodePayload().
+     * @param buf Buffer holding the frame.
+     * @param frame Absolute index of the first byte of the frame.
+     * @param caplen Number of captured bytes in the frame.
+     * @param linkType The pcap link layer type of the frame.
+     * @return A TcpPacket with its ip and tcp fields set, or null if the
+     *         frame does not carry a TCP segment over IPv4 or IPv6.
+     */
+    static TcpPacket decode(
+            ByteBuffer buf, int frame, int caplen, long linkType)
+    {
+        // discover where the ip packet is, based on link layer fields
+        int ipidx = getIpPacketOffset(buf, frame, caplen, linkType);
+        if (ipidx == -1 || caplen < ipidx + 20)
+        {
+            return null;
+        }
+
+        // discover where the tcp segment is, based on ip header fields
+        int ip = frame + ipidx;
+        int tcpidx = getTcpSegmentOffset(buf, ip, caplen - ipidx);
+        if (tcpidx == -1)
+        {
+            return null;
+        }
+        tcpidx += ipidx;
+        if (caplen < tcpidx + 20)           // we require basic TCP header
+        {
+            return null;
+        }
+        int tcp = frame + tcpidx;
+
+        TcpPacket p = new TcpPacket();
+
+        // parse the ip headers
+        p.ipver = u8(buf, ip) >>> 4;
+        if (p.ipver == 6)
+        {
+            p.pktlen = IPV6_HEADER_SIZE + u16(buf, ip + 4);
+            p.srca6hi = u64(buf, ip + 8);
+            p.srca6lo = u64(buf, ip + 16);
+            p.dsta6hi = u64(buf, ip + 24);
+            p.dsta6lo = u64(buf, ip + 32);
+        }
+        else
+        {
+            p.pktlen = u16(buf, ip + 2);
+            p.srca = (int)u32(buf, ip + 12);
+            p.dsta = (int)u32(buf, ip + 16);
+        }
+
+        // parse the tcp headers
+        p.srcp = u16(buf, tcp);
+        p.dstp = u16(buf, tcp + 2);
+        p.seqno = u32(buf, tcp + 4);
+        p.ackno = u32(buf, tcp + 8);
+        p.tcpflags = buf.get(tcp + 13);
+
+        // keep a view of the payload (if any) for decodePayload()
+        int dataidx = tcpidx + (u8(buf, tcp + 12) >>> 4) * 4;
+        p.datalen = Math.max(0, p.pktlen - (dataidx - ipidx));
+        if (caplen > dataidx)
+        {
+            p.payload = buf.slice(frame + dataidx, caplen - dataidx);
+        }
+
+        // addresses are left in numeric form, their text is only built
+        // when they are first stored
+        if (caplen != ipidx + p.pktlen)
+        {
+            p.truncated = true;
+        }
+        return p;
+    }
+
+    /**
+     * Decodes the payload view left on the given packet by decode() into
+     * packet text, and finds the bounds of any xmpp stanzas in it.  This is
+     * the costly part of packet decoding, and is safe to run on any thread.
+     * The stanzas themselves are parsed on demand by TcpPacket.getStanzas().
+     * The payload view is released once decoded.
+     * @param p A packet returned by decode().
+     */
+    static void decodePayload(TcpPacket p)
+    {
+        ByteBuffer payload = p.payload;
+        if (payload == null)
+        {
+            return;
+        }
+        p.payload = null;
+
+        int length = payload.remaining();
+        if (BitUtils.isUtf8(payload, 0, length))
+        {
+            byte[] bytes = new byte[length];
+            payload.get(0, bytes);
+            try
+            {
+                p.data = new String(bytes, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                // every jvm is required to support utf-8
+                throw new IllegalStateException(e);
+            }
+            if (p.data.trim().length() == 0)
+            {
+                p.data = null;
+            }
+            else
+            {
+                XmppPacketParser parser = new XmppPacketParser();
+                p.stanzaBounds = parser.findStanzas(p.data);
+                p.partialOffset = parser.getPartialOffset();
+                p.readable = true;
+            }
+        }
+        else
+        {
+            p.data = new String("[data not readable]");
+            p.readable = false;
+        }
+    }
+
+    /**
+     * Finds the offset of the TCP header within an IP packet, skipping over
+     * any IPv6 extension headers which precede it.
+     * @param buf Buffer holding the frame.
+     * @param ip Absolute index of the ip header.
+     * @param iplen Number of captured bytes from the ip header on.
+     * @return Offset of the TCP header relative to the ip header, or -1 if
+     *         the packet does not carry TCP, or is a non-initial fragment.
+     */
+    static int getTcpSegmentOffset(ByteBuffer buf, int ip, int iplen)
+    {
+        switch (u8(buf, ip) >>> 4)
+        {
+        case 4:
+            if (u8(buf, ip + 9) != IPPROTO_TCP)
+            {
+                return -1;
+            }
+            return (u8(buf, ip) & 0x0F) * 4;
+
+        case 6:
+            if (iplen < IPV6_HEADER_SIZE)
+            {
+                return -1;
+            }
+            break;
+
+        default:
+            return -1;
+        }
+
+        // walk the chain of ipv6 extension headers to the tcp header
+        int next = u8(buf, ip + 6);
+        int off = IPV6_HEADER_SIZE;
+        while (next != IPPROTO_TCP)
+        {
+            if (iplen < off + 8)
+            {
+                return -1;
+            }
+            switch (next)
+            {
+            case IPPROTO_HOPOPTS:
+            case IPPROTO_ROUTING:
+            case IPPROTO_DSTOPTS:
+                next = u8(buf, ip + off);
+                off += (u8(buf, ip + off + 1) + 1) * 8;
+                break;
+            case IPPROTO_FRAGMENT:
+                // only a whole (atomic) fragment holds a whole segment
+                if ((u16(buf, ip + off + 2) & 0xFFF9) != 0)
+                {
+                    return -1;
+                }
+                next = u8(buf, ip + off);
+                off += 8;
+                break;
+            case IPPROTO_AH:
+                next = u8(buf, ip + off);
+                off += (u8(buf, ip + off + 1) + 2) * 4;
+                break;
+            default:
+                return -1;
+            }
+        }
+        return off;
+    }
+
+    /**
+     * Finds the offset of the IP header within a frame, based on its
+     * link layer fields, looking through any vlan tags.
+     * @param buf Buffer holding the frame.
+     * @param frame Absolute index of the first byte of the frame.
+     * @param caplen Number of captured bytes in the frame.
+     * @param linkType The pcap link layer type of the frame.
+     * @return Offset of the IP header relative to the frame, or -1 if the
+     *         frame does not carry IP.
+     */
+    static int getIpPacketOffset(
+            ByteBuffer buf, int frame, int caplen, long linkType)
+    {
+        int[] link = null;
+        for (int i = 0; i < LINK_LAYERS.length; ++i)
+        {
+            if (LINK_LAYERS[i][0] == linkType)
+            {
+                link = LINK_LAYERS[i];
+                break;
+            }
+        }
+        if (link == null || caplen < link[1] + 1)
+        {
+            return -1;
+        }
+
+        int ipidx = link[1];
+        switch (link[3])
+        {
+        case PROTO_ETHERTYPE:
+            // step over vlan tags, each pushing the ethertype on by 4
+            int type = u16(buf, frame + link[2]);
+            for (int tags = 0;
+                 tags < MAX_VLAN_TAGS &&
+                 (type == ETHERTYPE_VLAN ||
+                  type == ETHERTYPE_QINQ ||
+                  type == ETHERTYPE_QINQ_OLD);
+                 ++tags)
+            {
+                if (caplen < ipidx + 5)
+                {
+                    return -1;
+                }
+                type = u16(buf, frame + ipidx + 2);
+                ipidx += 4;
+            }
+            if (type != ETHERTYPE_IP && type != ETHERTYPE_IPV6)
+            {
+                return -1;
+            }
+            break;
+
+        case PROTO_FAMILY:
+            // the family is in the capturing host's byte order
+            int family = (int)u32(buf, frame + link[2]);
+            if ((family & 0xFFFF) == 0)
+            {
+                family = Integer.reverseBytes(family);
+            }
+            if (family != AF_INET &&
+                family != AF_INET6_LINUX &&
+                family != AF_INET6_BSD &&
+                family != AF_INET6_FREEBSD &&
+                family != AF_INET6_DARWIN)
+            {
+                return -1;
+            }
+            break;
+        }
+        return ipidx;
+    }
+
+    /**
+     * Builds a packet timestamp from a capture time in seconds and
+     * nanoseconds since the epoch, keeping the full sub-second precision.
+     * @param sec Whole seconds since the epoch.
+     * @param nanos Nanoseconds past those seconds.
+     * @return The timestamp.
+     */
+    static Timestamp timestamp(long sec, long nanos)
+    {
+        Timestamp t = new Timestamp((sec + nanos / 1000000000L) * 1000);
+        t.setNanos((int)(nanos % 1000000000L));
+        return t;
+    }
+
+    /**
+     * Reads an unsigned byte at the given absolute buffer index.
+     */
+    static int u8(ByteBuffer buf, int i)
+    {
+        return buf.get(i) & 0xFF;
+    }
+
+    /**
+     * Reads an unsigned big endian short at the given absolute buffer index.
+     */
+    static int u16(ByteBuffer buf, int i)
+    {
+        return (buf.get(i) & 0xFF) << 8 | (buf.get(i + 1) & 0xFF);
+    }
+
+    /**
+     * Reads an unsigned big endian int at the given absolute buffer index.
+     */
+    static long u32(ByteBuffer buf, int i)
+    {
+        return ((long)u16(buf, i) << 16) | u16(buf, i + 2);
+    }
+
+    /**
+     * Reads a big endian long at the given absolute buffer index.
+     */
+    static long u64(ByteBuffer buf, int i)
+    {
+        return (u32(buf, i) << 32) | u32(buf, i + 4);
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import xmpptrace.action.TcpDumpStreamParser.TcpDumpParseException;
+import xmpptrace.model.TcpPacket;
+
+/**
+ * Decodes the blocks of a pcapng file, on behalf of the mapped and stream
+ * based pcapng parsers, which differ only in how they get hold of each
+ * block.  All fields are read in place from a ByteBuffer, whose byte order
+ * must be set by the caller to that of the current section.
+ *
+ * A pcapng file is a sequence of blocks, grouped into sections each begun
+ * by a section header block, which sets the byte order of the section.
+ * Packets are carried in enhanced packet blocks (or the obsolete packet
+ * blocks), each of which refers to one of the interfaces described by the
+ * interface description blocks of its section.  An interface sets the link
+ * layer type of its packets, and the resolution and offset of their
+ * timestamps, so captures taken on several interfaces at once are handled.
+ * All other blocks are skipped.
+ *
+ * @author adb
+ */
+final class PcapNgBlockDecoder
+{
+    // size of block type and length fields, and of the trailing length,
+    // a block is at least this long
+    static final int BLOCK_HEADER_SIZE = 8;
+    static final int BLOCK_TRAILER_SIZE = 4;
+    static final int MIN_BLOCK_SIZE = BLOCK_HEADER_SIZE + BLOCK_TRAILER_SIZE;
+
+    // largest block read from a stream, where a corrupt length can not be
+    // checked against the size of the file
+    static final int MAX_STREAM_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    // block types
+    private static final int BLOCK_IDB = 1;
+    private static final int BLOCK_PB = 2;
+    private static final int BLOCK_EPB = 6;
+
+    // section header byte order magic, as read big endian
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int BYTE_ORDER_MAGIC_SWAPPED = 0x4D3C2B1A;
+
+    // interface description options
+    private static final int OPT_ENDOFOPT = 0;
+    private static final int OPT_IF_TSRESOL = 9;
+    private static final int OPT_IF_TSOFFSET = 14;
+
+    // size of the fixed fields of packet blocks, preceding the frame
+    private static final int PACKET_HEADER_SIZE = 20;
+
+    /**
+     * A capture interface, as described by an interface description block.
+     */
+    private static class Interface
+    {
+        // link layer type of the interface's packets
+        long mLinkType;
+
+        // timestamp units per second, a power of 10 or of 2
+        long mUnitsPerSec;
+
+        // nanoseconds per timestamp unit, 0 if a unit is less than that
+        long mUnitNanos;
+
+        // seconds to add to the interface's timestamps
+        long mOffsetSec;
+    }
+
+    // interfaces of the current section, indexed by interface id
+    private ArrayList<Interface> mInterfaces;
+    private int mPacketCount;
+
+    /**
+     * Ctor.
+     */
+    PcapNgBlockDecoder()
+    {
+        mInterfaces = new ArrayList<Interface>();
+        mPacketCount = 0;
+    }
+
+    /**
+     * Returns the type of the block at the given index.  A section header
+     * block reads the same in either byte order.
+     * @param buf Buffer holding the block header.
+     * @param blk Absolute index of the block.
+     * @return The block type.
+     */
+    static int getBlockType(ByteBuffer buf, int blk)
+    {
+        return buf.getInt(blk);
+    }
+
+    /**
+     * Returns the byte order of the section begun by the section header
+     * block at the given index.
+     * @param buf Buffer holding at least the first 12 bytes of the block.
+     * @param blk Absolute index of the block.
+     * @return The byte order of the section.
+     * @throws IOException If the byte order magic is not recognised.
+     */
+    static ByteOrder getSectionByteOrder(ByteBuffer buf, int blk)
+        throws IOException
+    {
+        switch ((int)PcapFrameDecoder.u32(buf, blk + BLOCK_HEADER_SIZE))
+        {
+        case BYTE_ORDER_MAGIC:
+            return ByteOrder.BIG_ENDIAN;
+        case BYTE_ORDER_MAGIC_SWAPPED:
+            return ByteOrder.LITTLE_ENDIAN;
+        default:
+            throw new TcpDumpParseException();
+        }
+    }
+
+    /**
+     * Returns the total length of the block at the given index, which must
+     * be read in the byte order of its section.
+     * @param buf Buffer holding the block header.
+     * @param blk Absolute index of the block.
+     * @return The length of the block, including header and trailer.
+     * @throws IOException If the length is not valid.
+     */
+    static int getBlockLength(ByteBuffer buf, int blk) throws IOException
+    {
+        long len = buf.getInt(blk + 4) & 0xFFFFFFFFL;
+        if (len < MIN_BLOCK_SIZE || len > Integer.MAX_VALUE || (len & 3) != 0)
+        {
+            throw new TcpDumpParseException();
+        }
+        return (int)len;
+    }
+
+    /**
+     * Decodes the block at the given index.
+     * @param buf Buffer holding the complete block.
+     * @param blk Absolute index of the block.
+     * @param len Length of the block, as given by getBlockLength().
+     * @return The TcpPacket carried by the block, or null if the block is
+     *         not a packet block, or its frame is not a TCP/IP segment.
+     * @throws IOException If the block is malformed.
+     */
+    TcpPacket decodeBlock(ByteBuffer buf, int blk, int len) throws IOException
+    {
+        int body = blk + BLOCK_HEADER_SIZE;
+        int end = blk + len - BLOCK_TRAILER_SIZE;
+        switch (getBlockType(buf, blk))
+        {
+        case PcapFrameDecoder.PCAPNG_SHB_TYPE:
+            // interface ids are numbered afresh in each section
+            mInterfaces.clear();
+            return null;
+        case BLOCK_IDB:
+            readInterface(buf, body, end);
+            return null;
+        case BLOCK_EPB:
+            return readPacket(buf, body, end, buf.getInt(body) & 0xFFFFFFFFL);
+        case BLOCK_PB:
+            return readPacket(buf, body, end, buf.getShort(body) & 0xFFFF);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Reads an interface description block, adding the interface described
+     * to the interfaces of the current section.
+     * @param buf Buffer holding the block.
+     * @param body Absolute index of the block body.
+     * @param end Absolute index of the end of the block body.
+     * @throws IOException If the block is malformed.
+     */
+    private void readInterface(ByteBuffer buf, int body, int end)
+        throws IOException
+    {
+        if (end - body < 8)
+        {
+            throw new TcpDumpParseException();
+        }
+        Interface iface = new Interface();
+        iface.mLinkType = buf.getShort(body) & 0xFFFF;
+        iface.mOffsetSec = 0;
+        int tsresol = 6;
+
+        // walk the options, each padded to a multiple of 4 bytes
+        int opt = body + 8;
+        while (opt + 4 <= end)
+        {
+            int code = buf.getShort(opt) & 0xFFFF;
+            int len = buf.getShort(opt + 2) & 0xFFFF;
+            if (code == OPT_ENDOFOPT || opt + 4 + len > end)
+            {
+                break;
+            }
+            if (code == OPT_IF_TSRESOL && len >= 1)
+            {
+                tsresol = buf.get(opt + 4) & 0xFF;
+            }
+            else if (code == OPT_IF_TSOFFSET && len >= 8)
+            {
+                iface.mOffsetSec = buf.getLong(opt + 4);
+            }
+            opt += 4 + ((len + 3) & ~3);
+        }
+
+        // resolution is 10^-n seconds, or 2^-n if the top bit is set
+        int exp = tsresol & 0x7F;
+        if ((tsresol & 0x80) != 0)
+        {
+            iface.mUnitsPerSec = 1L << Math.min(exp, 62);
+            iface.mUnitNanos = 0;
+        }
+        else
+        {
+            exp = Math.min(exp, 18);
+            iface.mUnitsPerSec = pow10(exp);
+            iface.mUnitNanos = (exp <= 9) ? pow10(9 - exp) : 0;
+        }
+        mInterfaces.add(iface);
+    }
+
+    /**
+     * Reads an enhanced packet block or packet block, whose fields after
+     * the interface id are laid out identically.
+     * @param buf Buffer holding the block.
+     * @param body Absolute index of the block body.
+     * @param end Absolute index of the end of the block body.
+     * @param ifid Id of the interface the packet was captured on.
+     * @return The TcpPacket carried by the block, or null if its frame is
+     *         not a TCP/IP segment, or its interface is not known.
+     * @throws IOException If the block is malformed.
+     */
+    private TcpPacket readPacket(ByteBuffer buf, int body, int end, long ifid)
+        throws IOException
+    {
+        if (end - body < PACKET_HEADER_SIZE)
+        {
+            throw new TcpDumpParseException();
+        }
+        long caplen = buf.getInt(body + 12) & 0xFFFFFFFFL;
+        if (caplen > end - body - PACKET_HEADER_SIZE)
+        {
+            throw new TcpDumpParseException();
+        }
+        if (ifid >= mInterfaces.size())
+        {
+            return null;
+        }
+        Interface iface = mInterfaces.get((int)ifid);
+
+        // decode the frame, using the link type of its interface
+        TcpPacket p = PcapFrameDecoder.decode(buf,
+                body + PACKET_HEADER_SIZE, (int)caplen, iface.mLinkType);
+        if (p == null)
+        {
+            return null;
+        }
+
+        // timestamps are an unsigned 64 bit count of interface units
+        long ts = ((buf.getInt(body + 4) & 0xFFFFFFFFL) << 32) |
+                (buf.getInt(body + 8) & 0xFFFFFFFFL);
+        long sec = Long.divideUnsigned(ts, iface.mUnitsPerSec);
+        long units = Long.remainderUnsigned(ts, iface.mUnitsPerSec);
+        long nanos = (iface.mUnitNanos != 0)
+                ? units * iface.mUnitNanos
+                : (long)(units * 1e9 / iface.mUnitsPerSec);
+
+        // add packet metadata
+        p.pacno = this.mPacketCount++;
+        p.time = PcapFrameDecoder.timestamp(sec + iface.mOffsetSec, nanos);
+        return p;
+    }
+
+    /**
+     * Returns 10 raised to the given power.
+     * @param exp The power, no more than 18.
+     * @return 10^exp.
+     */
+    private static long pow10(int exp)
+    {
+        long n = 1;
+        while (exp-- > 0)
+        {
+            n *= 10;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import xmpptrace.action.TcpDumpStreamParser.TcpDumpParseException;
+import xmpptrace.model.TcpPacket;
+
+/**
+ * PcapNgStreamParser parses pcapng formatted trace data into discrete
+ * TcpPacket objects, reading it from a stream rather than a mapped file,
+ * as for captures which are decompressed on the fly.  The blocks are
+ * decoded by PcapNgBlockDecoder, as for MappedPcapNgStreamParser.  Usage is
+ * the same as for TcpDumpStreamParser:
+ *
+ *      PcapNgStreamParser parser = new PcapNgStreamParser(...);
+ *      TcpPacket p = parser.getNextPacket();
+ *      while (p != null)
+ *      {
+ *          do.something.with(p);
+ *          p = parser.getNextPacket();
+ *      }
+ *
+ * @author adb
+ */
+public class PcapNgStreamParser implements StreamParser
+{
+    private InputStream mStream;
+    private ByteOrder mByteOrder;
+    private PcapNgBlockDecoder mDecoder;
+    private byte[] mBlockHeader;
+    private boolean mFirstBlock;
+
+    public PcapNgStreamParser(InputStream is)
+    {
+        mStream = is;
+        mByteOrder = ByteOrder.BIG_ENDIAN;
+        mDecoder = new PcapNgBlockDecoder();
+        mBlockHeader = new byte[PcapNgBlockDecoder.MIN_BLOCK_SIZE];
+        mFirstBlock = true;
+    }
+
+    /**
+     * Reads the next TCP packet entry from the stream provided in the ctor,
+     * and fully decodes it.
+     * @return The next TcpPacket parsed from the stream, null if reached eof.
+     * @throws IOException If an error occurs while reading from the stream.
+     */
+    public TcpPacket getNextPacket() throws IOException
+    {
+        TcpPacket p = getNextFrame();
+        if (p != null)
+        {
+            decodePacket(p);
+        }
+        return p;
+    }
+
+    /**
+     * Decodes the payload of a packet returned by getNextFrame().  This may
+     * be invoked on any thread.
+     * @param p The packet to be decoded.
+     */
+    public void decodePacket(TcpPacket p)
+    {
+        PcapFrameDecoder.decodePayload(p);
+    }
+
+    /**
+     * Reads the next TCP packet entry from the stream provided in the ctor,
+     * decoding only its headers.  The payload is left for decodePacket().
+     * @return The next TcpPacket framed from the stream, null if reached eof.
+     * @throws IOException If an error occurs while reading from the stream.
+     */
+    public TcpPacket getNextFrame() throws IOException
+    {
+        TcpPacket p = null;
+        do
+        {
+            // read the block header, quit at eof
+            if (!blockReadFromStream(mBlockHeader, 0, mBlockHeader.length))
+            {
+                return null;
+            }
+
+            // a section header sets the byte order of all that follows
+            ByteBuffer hdr = ByteBuffer.wrap(mBlockHeader);
+            int type = PcapNgBlockDecoder.getBlockType(hdr, 0);
+            if (type == PcapFrameDecoder.PCAPNG_SHB_TYPE)
+            {
+                mByteOrder = PcapNgBlockDecoder.getSectionByteOrder(hdr, 0);
+            }
+            else if (mFirstBlock)
+            {
+                throw new TcpDumpParseException();
+            }
+            mFirstBlock = false;
+            hdr.order(mByteOrder);
+
+            // read in the complete block, quit if the stream is truncated
+            int len = PcapNgBlockDecoder.getBlockLength(hdr, 0);
+            if (len > PcapNgBlockDecoder.MAX_STREAM_BLOCK_SIZE)
+            {
+                throw new TcpDumpParseException();
+            }
+            byte[] block = new byte[len];
+            System.arraycopy(mBlockHeader, 0, block, 0, mBlockHeader.length);
+            if (!blockReadFromStream(block, mBlockHeader.length,
+                    len - mBlockHeader.length))
+            {
+                return null;
+            }
+
+            p = mDecoder.decodeBlock(
+                    ByteBuffer.wrap(block).order(mByteOrder), 0, len);
+        }
+        while (p == null);
+        return p;
+    }
+
+    private boolean blockReadFromStream(byte[] b, int off, int size)
+        throws IOException
+    {
+        int bytesRead = 0;
+        int totalBytesRead = 0;
+        while (totalBytesRead < size)
+        {
+            bytesRead = mStream.read(b, off + totalBytesRead, size - totalBytesRead);
+            if (bytesRead == -1)
+            {
+                return false;
+            }
+            totalBytesRead += bytesRead;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the stream being parsed, and so any stream it reads from,
+     * stopping any thread decompressing it.
+     * @throws IOException If an error occurs while closing the stream.
+     */
+    public void close() throws IOException
+    {
+        mStream.close();
+    }
+}
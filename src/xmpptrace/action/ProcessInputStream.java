@@ -0,0 +1,183 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An InputStream which filters another through an external command, such
+ * as a decompressor for which there is no java implementation on our
+ * classpath.  The source stream is fed to the command's standard input on
+ * a thread of its own, and the command's standard output is read back, so
+ * the command runs concurrently with both the feeding and the reading.
+ * An error reading the source, or a non-zero exit status of the command,
+ * is raised to the reader at end of stream.
+ *
+ * @author adb
+ */
+class ProcessInputStream extends InputStream
+{
+    // size of buffer used to feed the command
+    private static final int FEED_SIZE = 64 * 1024;
+
+    private String mCommand;
+    private InputStream mSource;
+    private Process mProcess;
+    private InputStream mOutput;
+    private volatile IOException mError;
+
+    /**
+     * Ctor.  Starts the command, and starts feeding it the given stream.
+     * @param source The stream to be filtered.
+     * @param command The command and its arguments.
+     * @throws IOException If the command could not be started.
+     */
+    ProcessInputStream(final InputStream source, String... command)
+        throws IOException
+    {
+        mCommand = command[0];
+        mSource = source;
+        mError = null;
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        try
+        {
+            mProcess = pb.start();
+        }
+        catch (IOException e)
+        {
+            throw new IOException(
+                    "Could not run " + mCommand + ", which is needed to " +
+                    "read this file: " + e.getMessage(), e);
+        }
+        mOutput = mProcess.getInputStream();
+
+        Thread t = new Thread(mCommand + " feeder")
+        {
+            public void run()
+            {
+                feed(source);
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public int read() throws IOException
+    {
+        int b = mOutput.read();
+        if (b == -1)
+        {
+            checkExit();
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int n = mOutput.read(b, off, len);
+        if (n == -1)
+        {
+            checkExit();
+        }
+        return n;
+    }
+
+    public int available() throws IOException
+    {
+        return mOutput.available();
+    }
+
+    /**
+     * Stops the command, and closes the source.
+     * @throws IOException If the source fails to close.
+     */
+    public void close() throws IOException
+    {
+        mProcess.destroy();
+        mOutput.close();
+        mSource.close();
+    }
+
+    /**
+     * Raises any error seen in feeding the command, or in the command
+     * itself, once its output is exhausted.
+     * @throws IOException If the source could not be read, or the command
+     *         failed.
+     */
+    private void checkExit() throws IOException
+    {
+        if (mError != null)
+        {
+            throw mError;
+        }
+        try
+        {
+            int status = mProcess.waitFor();
+            if (status != 0)
+            {
+                throw new IOException(
+                        mCommand + " failed with exit status " + status);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Body of the feeder thread, copies the source to the command's input
+     * until end of stream, or until the command stops taking it.
+     * @param source The stream to be filtered.
+     */
+    private void feed(InputStream source)
+    {
+        OutputStream os = mProcess.getOutputStream();
+        byte[] buf = new byte[FEED_SIZE];
+        try
+        {
+            int n = 0;
+            while (n != -1)
+            {
+                try
+                {
+                    n = source.read(buf);
+                }
+                catch (IOException e)
+                {
+                    // the reader should see this, rather than the command
+                    // failing for want of the rest of its input
+                    mError = e;
+                    mProcess.destroy();
+                    return;
+                }
+                if (n > 0)
+                {
+                    os.write(buf, 0, n);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // the command has quit, its exit status will tell why
+        }
+        finally
+        {
+            try
+            {
+                os.close();
+            }
+            catch (IOException e)
+            {
+                // as above
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An InputStream which reads ahead of its reader on a thread of its own,
+ * so that the work of producing the stream (such as decompressing it) is
+ * overlapped with the work of consuming it.  Data is handed over in chunks
+ * through a bounded queue, so the read ahead is limited to a few chunks.
+ * An IOException raised by the underlying stream is rethrown to the reader
+ * once it has read all that came before it.
+ *
+ * @author adb
+ */
+class ReadAheadInputStream extends InputStream
+{
+    // size of chunks read ahead, and how many may be waiting at once
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNKS = 8;
+
+    // queued to mark the end of the stream
+    private static final byte[] EOF = new byte[0];
+
+    private InputStream mSource;
+    private BlockingQueue<byte[]> mChunks;
+    private volatile IOException mError;
+    private volatile boolean mClosed;
+
+    // chunk currently being read, and read position within it
+    private byte[] mChunk;
+    private int mChunkPos;
+
+    /**
+     * Ctor.  Starts reading ahead from the given stream.
+     * @param source The stream to be read.
+     * @param name Name of the read ahead thread.
+     */
+    ReadAheadInputStream(InputStream source, String name)
+    {
+        mSource = source;
+        mChunks = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS);
+        mError = null;
+        mClosed = false;
+        mChunk = null;
+        mChunkPos = 0;
+
+        Thread t = new Thread(name)
+        {
+            public void run()
+            {
+                readAhead();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public int read() throws IOException
+    {
+        if (!nextChunk())
+        {
+            return -1;
+        }
+        return mChunk[mChunkPos++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!nextChunk())
+        {
+            return -1;
+        }
+        int n = Math.min(len, mChunk.length - mChunkPos);
+        System.arraycopy(mChunk, mChunkPos, b, off, n);
+        mChunkPos += n;
+        return n;
+    }
+
+    public int available()
+    {
+        return (mChunk == null) ? 0 : mChunk.length - mChunkPos;
+    }
+
+    /**
+     * Stops reading ahead, and closes the underlying stream.
+     * @throws IOException If the underlying stream fails to close.
+     */
+    public void close() throws IOException
+    {
+        if (!mClosed)
+        {
+            mClosed = true;
+            mChunks.clear();
+            mSource.close();
+        }
+    }
+
+    /**
+     * Ensures there is unread data in the current chunk, waiting for the
+     * next chunk if the current one is used up.
+     * @return True if there is data to read, false at end of stream.
+     * @throws IOException If the underlying stream raised an error.
+     */
+    private boolean nextChunk() throws IOException
+    {
+        if (mChunk != null && mChunkPos < mChunk.length)
+        {
+            return true;
+        }
+        if (mClosed)
+        {
+            throw new IOException("Stream closed");
+        }
+        if (mChunk != EOF)
+        {
+            try
+            {
+                mChunk = mChunks.take();
+                mChunkPos = 0;
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+        if (mChunk == EOF)
+        {
+            if (mError != null)
+            {
+                throw mError;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Body of the read ahead thread, reads chunks until end of stream, an
+     * error, or the stream is closed.
+     */
+    private void readAhead()
+    {
+        int n = CHUNK_SIZE;
+        while (n == CHUNK_SIZE && mError == null && !mClosed)
+        {
+            // fill a chunk, only the last may be short
+            byte[] chunk = new byte[CHUNK_SIZE];
+            n = 0;
+            int r = 0;
+            try
+            {
+                while (n < CHUNK_SIZE && r != -1)
+                {
+                    r = mSource.read(chunk, n, CHUNK_SIZE - n);
+                    n += Math.max(r, 0);
+                }
+            }
+            catch (IOException e)
+            {
+                // pass on what we have, and then the error
+                mError = e;
+            }
+            if (n > 0)
+            {
+                put(n < CHUNK_SIZE ? Arrays.copyOf(chunk, n) : chunk);
+            }
+        }
+        put(EOF);
+    }
+
+    /**
+     * Queues a chunk for the reader, waiting for room unless the stream is
+     * closed in the meantime.
+     * @param chunk The chunk.
+     */
+    private void put(byte[] chunk)
+    {
+        try
+        {
+            boolean queued = false;
+            while (!queued && !mClosed)
+            {
+                queued = mChunks.offer(chunk, 100, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            mClosed = true;
+        }
+    }
+}
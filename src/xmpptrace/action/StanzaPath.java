@@ -0,0 +1,517 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * An xpath expression, compiled for evaluation against stanzas.  The
+ * expressions used to recognise stanzas are mostly simple absolute paths
+ * down through named elements, such as
+ *
+ *      /jc:iq[@type='get']/jia:query/jia:username | /route[not(@to='x')]
+ *
+ * and these are compiled to walkers which step down through the children of
+ * the stanza directly, rather than through the JDK xpath engine.  Supported
+ * are unions of absolute paths of child steps, each step a name test (an
+ * element name, with or without a prefix, or *) followed by any number of
+ * predicates of the form [@attr='value'] or [not(@attr='value')].  Any
+ * other expression, such as a user defined one, is evaluated by the JDK
+ * xpath engine, with the same results.
+ *
+ * The first step of a walker also tells which root elements the expression
+ * can possibly match, so that stanzas with other roots are not looked at.
+ *
+ * A walker may be shared between threads, an expression evaluated by the
+ * xpath engine may not.
+ *
+ * @author adb
+ */
+final class StanzaPath
+{
+    /**
+     * A name test and predicates, matched against an element.
+     */
+    private static class Step
+    {
+        // namespace and local name to match, null name for any element
+        String mNamespace;
+        String mLocalName;
+
+        // attribute predicates, all of which must hold
+        ArrayList<String> mAttrNames = new ArrayList<String>();
+        ArrayList<String> mAttrValues = new ArrayList<String>();
+        ArrayList<Boolean> mAttrNegated = new ArrayList<Boolean>();
+
+        boolean matchesName(Node node)
+        {
+            if (node.getNodeType() != Node.ELEMENT_NODE)
+            {
+                return false;
+            }
+            if (mLocalName == null)
+            {
+                return true;
+            }
+            return mLocalName.equals(node.getLocalName()) &&
+                    equalNamespaces(mNamespace, node.getNamespaceURI());
+        }
+
+        boolean matches(Node node)
+        {
+            if (!matchesName(node))
+            {
+                return false;
+            }
+            for (int i = 0; i < mAttrNames.size(); ++i)
+            {
+                String value = getAttribute((Element)node, mAttrNames.get(i));
+                boolean equal = value != null &&
+                        value.equals(mAttrValues.get(i));
+                if (equal == mAttrNegated.get(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A node list over the nodes found by a walker.
+     */
+    private static class StepNodeList implements NodeList
+    {
+        private ArrayList<Node> mNodes;
+
+        StepNodeList(ArrayList<Node> nodes)
+        {
+            mNodes = nodes;
+        }
+
+        public Node item(int index)
+        {
+            return (index < mNodes.size()) ? mNodes.get(index) : null;
+        }
+
+        public int getLength()
+        {
+            return mNodes.size();
+        }
+    }
+
+    // orders nodes of the same document in document order
+    private static final Comparator<Node> DOCUMENT_ORDER =
+            new Comparator<Node>()
+    {
+        public int compare(Node a, Node b)
+        {
+            if (a == b)
+            {
+                return 0;
+            }
+            return ((a.compareDocumentPosition(b) &
+                    Node.DOCUMENT_POSITION_FOLLOWING) != 0) ? -1 : 1;
+        }
+    };
+
+    // the source expression
+    private String mExpression;
+
+    // the paths of a walker, one per member of the union
+    private ArrayList<Step[]> mPaths;
+
+    // or the expression, if it can only be evaluated by the xpath engine
+    private XPathExpression mXpath;
+
+    /**
+     * Compiles the given xpath expression, to a walker if it is simple
+     * enough, or otherwise by the JDK xpath engine.
+     * @param expression The xpath expression.
+     * @param nsc Context by which prefixes in the expression are resolved.
+     * @return The compiled expression.
+     * @throws XPathExpressionException If the expression is invalid.
+     */
+    static StanzaPath compile(String expression, NamespaceContext nsc)
+            throws XPathExpressionException
+    {
+        StanzaPath path = new StanzaPath(expression);
+        path.mPaths = new Parser(expression, nsc).parseUnion();
+        if (path.mPaths == null)
+        {
+            XPath xp = XPathFactory.newInstance().newXPath();
+            xp.setNamespaceContext(nsc);
+            path.mXpath = xp.compile(expression);
+        }
+        return path;
+    }
+
+    private StanzaPath(String expression)
+    {
+        mExpression = expression;
+    }
+
+    /**
+     * Tests whether this expression can match anything in a stanza with
+     * the given root element.  If not, there is no need to evaluate it.
+     * @param root Root element of a stanza.
+     * @return False if the expression cannot match the stanza.
+     */
+    boolean appliesTo(Element root)
+    {
+        if (mPaths == null)
+        {
+            return true;
+        }
+        for (Step[] path: mPaths)
+        {
+            if (path[0].matchesName(root))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether this expression is evaluated by a walker.
+     * @return True for a walker, false for the xpath engine.
+     */
+    boolean isCompiled()
+    {
+        return mPaths != null;
+    }
+
+    /**
+     * Evaluates this expression against a stanza.
+     * @param stanza The stanza.
+     * @return The nodes found, in document order.
+     * @throws XPathExpressionException If the xpath engine failed.
+     */
+    NodeList evaluate(Document stanza) throws XPathExpressionException
+    {
+        if (mPaths == null)
+        {
+            return (NodeList)mXpath.evaluate(stanza, XPathConstants.NODESET);
+        }
+
+        ArrayList<Node> found = new ArrayList<Node>();
+        for (Step[] path: mPaths)
+        {
+            walk(stanza, path, 0, found);
+        }
+
+        // the members of a union may find the same nodes, in any order
+        if (mPaths.size() > 1 && found.size() > 1)
+        {
+            Collections.sort(found, DOCUMENT_ORDER);
+            for (int i = found.size() - 1; i > 0; --i)
+            {
+                if (found.get(i) == found.get(i - 1))
+                {
+                    found.remove(i);
+                }
+            }
+        }
+        return new StepNodeList(found);
+    }
+
+    public String toString()
+    {
+        return mExpression;
+    }
+
+    /**
+     * Adds the nodes found by following the given path down from the
+     * given node to the given list, in document order.
+     * @param node Node from which to step.
+     * @param path The path.
+     * @param i Index of the next step of the path.
+     * @param found List to which nodes found are added.
+     */
+    private static void walk(
+            Node node, Step[] path, int i, ArrayList<Node> found)
+    {
+        Step step = path[i];
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (step.matches(child))
+            {
+                if (i == path.length - 1)
+                {
+                    found.add(child);
+                }
+                else
+                {
+                    walk(child, path, i + 1, found);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the value of an attribute in no namespace, as @name in an xpath
+     * expression does.
+     * @param e The element.
+     * @param name The local name of the attribute.
+     * @return The value, or null if the element has no such attribute.
+     */
+    private static String getAttribute(Element e, String name)
+    {
+        NamedNodeMap attrs = e.getAttributes();
+        for (int i = 0; i < attrs.getLength(); ++i)
+        {
+            Attr a = (Attr)attrs.item(i);
+            String local = (a.getLocalName() != null) ?
+                    a.getLocalName() : a.getName();
+            if (name.equals(local) &&
+                    equalNamespaces(null, a.getNamespaceURI()))
+            {
+                return a.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares namespaces, taking an empty namespace to be no namespace.
+     * @param a A namespace, or null.
+     * @param b Another namespace, or null.
+     * @return True if they are the same.
+     */
+    private static boolean equalNamespaces(String a, String b)
+    {
+        if (a == null || a.length() == 0)
+        {
+            return b == null || b.length() == 0;
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Parses the supported subset of xpath into paths of steps.  Each parse
+     * method returns null if the expression is outside the subset.
+     */
+    private static class Parser
+    {
+        private String mExpr;
+        private int mPos;
+        private NamespaceContext mNsc;
+
+        Parser(String expr, NamespaceContext nsc)
+        {
+            mExpr = expr;
+            mPos = 0;
+            mNsc = nsc;
+        }
+
+        // union := path ('|' path)*
+        ArrayList<Step[]> parseUnion()
+        {
+            ArrayList<Step[]> paths = new ArrayList<Step[]>();
+            do
+            {
+                Step[] path = parsePath();
+                if (path == null)
+                {
+                    return null;
+                }
+                paths.add(path);
+            }
+            while (accept('|'));
+            skipSpace();
+            return (mPos == mExpr.length()) ? paths : null;
+        }
+
+        // path := ('/' step)+
+        private Step[] parsePath()
+        {
+            ArrayList<Step> steps = new ArrayList<Step>();
+            while (accept('/'))
+            {
+                // no // or other axes
+                if (peek() == '/')
+                {
+                    return null;
+                }
+                Step step = parseStep();
+                if (step == null)
+                {
+                    return null;
+                }
+                steps.add(step);
+            }
+            return steps.isEmpty() ? null : steps.toArray(new Step[0]);
+        }
+
+        // step := ('*' | name | prefix ':' name) predicate*
+        private Step parseStep()
+        {
+            Step step = new Step();
+            if (!accept('*'))
+            {
+                String name = parseName();
+                if (name == null)
+                {
+                    return null;
+                }
+                if (peek() == ':')
+                {
+                    ++mPos;
+                    String local = parseName();
+                    String ns = mNsc.getNamespaceURI(name);
+                    if (local == null || ns == null || ns.length() == 0)
+                    {
+                        return null;
+                    }
+                    step.mNamespace = ns;
+                    name = local;
+                }
+                step.mLocalName = name;
+            }
+            while (accept('['))
+            {
+                if (!parsePredicate(step) || !accept(']'))
+                {
+                    return null;
+                }
+            }
+            return step;
+        }
+
+        // predicate := comparison | 'not(' comparison ')'
+        private boolean parsePredicate(Step step)
+        {
+            skipSpace();
+            boolean negated = false;
+            if (mExpr.startsWith("not", mPos))
+            {
+                mPos += 3;
+                if (!accept('('))
+                {
+                    return false;
+                }
+                negated = true;
+            }
+            if (!parseComparison(step, negated))
+            {
+                return false;
+            }
+            return !negated || accept(')');
+        }
+
+        // comparison := '@' name '=' literal
+        private boolean parseComparison(Step step, boolean negated)
+        {
+            if (!accept('@'))
+            {
+                return false;
+            }
+            String name = parseName();
+            if (name == null || peek() == ':' || !accept('='))
+            {
+                return false;
+            }
+            String value = parseLiteral();
+            if (value == null)
+            {
+                return false;
+            }
+            step.mAttrNames.add(name);
+            step.mAttrValues.add(value);
+            step.mAttrNegated.add(negated);
+            return true;
+        }
+
+        private String parseName()
+        {
+            int start = mPos;
+            while (mPos < mExpr.length())
+            {
+                char c = mExpr.charAt(mPos);
+                if (Character.isLetterOrDigit(c) || c == '_' ||
+                        (mPos > start && (c == '-' || c == '.')))
+                {
+                    ++mPos;
+                }
+                else
+                {
+                    break;
+                }
+            }
+            if (mPos == start || Character.isDigit(mExpr.charAt(start)))
+            {
+                return null;
+            }
+            return mExpr.substring(start, mPos);
+        }
+
+        private String parseLiteral()
+        {
+            skipSpace();
+            if (mPos >= mExpr.length())
+            {
+                return null;
+            }
+            char quote = mExpr.charAt(mPos);
+            if (quote != '\'' && quote != '"')
+            {
+                return null;
+            }
+            int end = mExpr.indexOf(quote, mPos + 1);
+            if (end == -1)
+            {
+                return null;
+            }
+            String literal = mExpr.substring(mPos + 1, end);
+            mPos = end + 1;
+            return literal;
+        }
+
+        private boolean accept(char c)
+        {
+            skipSpace();
+            if (mPos < mExpr.length() && mExpr.charAt(mPos) == c)
+            {
+                ++mPos;
+                return true;
+            }
+            return false;
+        }
+
+        private char peek()
+        {
+            return (mPos < mExpr.length()) ? mExpr.charAt(mPos) : 0;
+        }
+
+        private void skipSpace()
+        {
+            while (mPos < mExpr.length() &&
+                    Character.isWhitespace(mExpr.charAt(mPos)))
+            {
+                ++mPos;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import xmpptrace.model.TcpPacket;
+
+/**
+ * A heuristic applied to stanzas, which looks for them by way of one or
+ * more StanzaPaths.  A rule is only applied to stanzas whose root element
+ * one of its paths can match, see StanzaRuleSet.
+ *
+ * @author adb
+ */
+abstract class StanzaRule
+{
+    private StanzaPath[] mPaths;
+
+    /**
+     * Ctor.
+     * @param paths The paths evaluated by the rule.  If none is given, the
+     *        rule is applied to every stanza.
+     */
+    StanzaRule(StanzaPath... paths)
+    {
+        mPaths = paths;
+    }
+
+    /**
+     * Tests whether this rule can find anything in a stanza with the given
+     * root element.
+     * @param root Root element of a stanza.
+     * @return True if one of the rule's paths may match the stanza.
+     */
+    boolean appliesTo(Element root)
+    {
+        if (mPaths.length == 0)
+        {
+            return true;
+        }
+        for (StanzaPath path: mPaths)
+        {
+            if (path.appliesTo(root))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies the rule to a stanza.
+     * @param stanza A stanza that has been sent.
+     * @param packet The tcp packet which contains the stanza.
+     * @throws XPathExpressionException If a path could not be evaluated.
+     */
+    abstract void apply(Document stanza, TcpPacket packet)
+            throws XPathExpressionException;
+}
@@ -0,0 +1,96 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import xmpptrace.model.TcpPacket;
+
+/**
+ * An ordered set of StanzaRules, applied to stanzas by their root element.
+ * The rules that apply to a given root element name and namespace are
+ * worked out the first time a stanza with that root is seen, and kept, so
+ * that each stanza is offered only to rules which can find something in
+ * it.  Rules are applied in the order they were added.  Not thread safe.
+ *
+ * @author adb
+ */
+class StanzaRuleSet
+{
+    private ArrayList<StanzaRule> mRules;
+    private HashMap<String, StanzaRule[]> mRulesByRoot;
+
+    /**
+     * Ctor.
+     */
+    StanzaRuleSet()
+    {
+        mRules = new ArrayList<StanzaRule>();
+        mRulesByRoot = new HashMap<String, StanzaRule[]>();
+    }
+
+    /**
+     * Adds a rule to the end of the set.
+     * @param rule The rule.
+     */
+    void add(StanzaRule rule)
+    {
+        mRules.add(rule);
+        mRulesByRoot.clear();
+    }
+
+    /**
+     * Applies, in order, the rules which may find something in a stanza.
+     * @param stanza A stanza that has been sent.
+     * @param packet The tcp packet which contains the stanza.
+     * @throws XPathExpressionException If a rule could not be evaluated.
+     */
+    void apply(Document stanza, TcpPacket packet)
+            throws XPathExpressionException
+    {
+        Element root = stanza.getDocumentElement();
+        if (root == null)
+        {
+            return;
+        }
+        for (StanzaRule rule: getRules(root))
+        {
+            rule.apply(stanza, packet);
+        }
+    }
+
+    /**
+     * Gets the rules which apply to stanzas with the given root.
+     * @param root The root element of a stanza.
+     * @return The rules, in the order they were added.
+     */
+    private StanzaRule[] getRules(Element root)
+    {
+        String ns = root.getNamespaceURI();
+        String key = (ns == null ? "" : ns) + " " + root.getLocalName();
+        StanzaRule[] rules = mRulesByRoot.get(key);
+        if (rules == null)
+        {
+            ArrayList<StanzaRule> applicable = new ArrayList<StanzaRule>();
+            for (StanzaRule rule: mRules)
+            {
+                if (rule.appliesTo(root))
+                {
+                    applicable.add(rule);
+                }
+            }
+            rules = applicable.toArray(new StanzaRule[0]);
+            mRulesByRoot.put(key, rules);
+        }
+        return rules;
+    }
+}
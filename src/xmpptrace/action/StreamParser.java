@@ -5,6 +5,7 @@
 
 package xmpptrace.action;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import xmpptrace.model.TcpPacket;
@@ -13,10 +14,26 @@ import xmpptrace.model.TcpPacket;
  * XmppDumpStreamParser, so the db may use them identically
  * for slurping in protocol input streams.
  * 
+ * Reading a packet is done in two steps, so that callers may spread the
+ * work over several threads.  getNextFrame() must be called sequentially,
+ * and does only the framing and header work needed to produce the next
+ * packet.  decodePacket() may then be run on any thread, and does the
+ * (comparatively costly) payload text decoding and stanza framing.
+ * getNextPacket() simply does both.  In either case the stanza DOMs are
+ * only built when TcpPacket.getStanzas() is first called.
+ * 
+ * Closing a parser closes the stream it reads, and any decompression
+ * under it, so a parser must be closed even if it is not read to the end.
+ * 
  * @author adb
  *
  */
 public interface StreamParser 
+        extends Closeable
 {
 	public TcpPacket getNextPacket() throws IOException;
+
+	public TcpPacket getNextFrame() throws IOException;
+
+	public void decodePacket(TcpPacket p);
 }
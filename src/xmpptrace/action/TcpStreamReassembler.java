@@ -0,0 +1,372 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.action;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.w3c.dom.Document;
+
+import xmpptrace.model.TcpPacket;
+
+/**
+ * Reassembles xmpp stanzas which are split across the TCP segments of a
+ * connection.  Packets are handed to process() in capture order.  For each
+ * direction of each connection (a flow), the text of a stanza left
+ * incomplete at the end of a packet is carried over, and prepended to the
+ * next packet of that flow, provided the packet follows on in sequence.  The
+ * stanzas of that packet are then those parsed from the combined text, so a
+ * split stanza is attributed to the packet which completed it.
+ *
+ * Packets of a flow which arrive ahead of the next expected sequence number
+ * (reordered, or following a segment lost from the capture) are held, keyed
+ * on their sequence number, and yield no stanzas of their own.  When the
+ * packet which fills the gap arrives, the held packets it joins up with are
+ * released in sequence order, and all stanzas they complete are given to
+ * that packet.
+ *
+ * Only flows with an incomplete stanza are tracked, so memory use does not
+ * grow with the number of connections in a capture.  It is further bounded
+ * by limits on the text carried and held for a flow, and on that carried and
+ * held overall, beyond which the least recently active flows are dropped.  A
+ * flow which is dropped, whose held packets overflow its limits, or which
+ * sees a packet that cannot be followed, simply resyncs on its next packet,
+ * which is parsed alone (as all packets were before reassembly).  Stanzas of
+ * any packets it held at the time are lost.
+ *
+ * Reassembly relies on the payload length of each packet, so applies only
+ * to packets read from tcpdump captures.
+ *
+ * @author adb
+ */
+public class TcpStreamReassembler
+{
+    // most text carried and held for one flow, larger stanzas are not
+    // reassembled
+    private static final int MAX_FLOW_CARRY = 1024 * 1024;
+
+    // most packets held ahead of sequence for one flow
+    private static final int MAX_FLOW_AHEAD = 1024;
+
+    // most text carried and held across all flows
+    private static final long MAX_TOTAL_CARRY = 32L * 1024 * 1024;
+
+    // most flows tracked at once
+    private static final int MAX_FLOWS = 256 * 1024;
+
+    // tcp flags which end a connection
+    private static final int TCP_FIN_RST = 0x01 | 0x04;
+
+    /**
+     * A packet held until the packets before it in its flow arrive.
+     */
+    private static class Segment
+    {
+        // text of the packet, empty if it is only whitespace
+        String mText;
+
+        // sequence number of the packet which follows this one
+        long mNextSeqno;
+    }
+
+    /**
+     * State of a flow which has an incomplete stanza.
+     */
+    private static class Flow
+    {
+        // text of the incomplete stanza
+        String mCarry;
+
+        // sequence number expected of the next packet in the flow
+        long mNextSeqno;
+
+        // packets which arrived ahead of mNextSeqno, by sequence number
+        TreeMap<Long, Segment> mAhead = new TreeMap<Long, Segment>();
+
+        // total length of the text of the packets held ahead
+        int mAheadSize;
+
+        /**
+         * @return Length of the text carried and held for the flow.
+         */
+        int size()
+        {
+            return mCarry.length() + mAheadSize;
+        }
+    }
+
+    /**
+     * Identifies a flow by the numeric addresses of its packets, so that
+     * no text need be built to look one up.
+     */
+    private static class FlowKey
+    {
+        private int mIpver;
+        private long mSrcHi;
+        private long mSrcLo;
+        private long mDstHi;
+        private long mDstLo;
+        private int mPorts;
+
+        FlowKey(TcpPacket p)
+        {
+            mIpver = p.ipver;
+            if (p.ipver == 6)
+            {
+                mSrcHi = p.srca6hi;
+                mSrcLo = p.srca6lo;
+                mDstHi = p.dsta6hi;
+                mDstLo = p.dsta6lo;
+            }
+            else
+            {
+                mSrcLo = p.srca;
+                mDstLo = p.dsta;
+            }
+            mPorts = p.srcp << 16 | p.dstp;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof FlowKey))
+            {
+                return false;
+            }
+            FlowKey k = (FlowKey)o;
+            return mIpver == k.mIpver && mPorts == k.mPorts &&
+                    mSrcHi == k.mSrcHi && mSrcLo == k.mSrcLo &&
+                    mDstHi == k.mDstHi && mDstLo == k.mDstLo;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long h = mSrcHi;
+            h = h * 31 + mSrcLo;
+            h = h * 31 + mDstHi;
+            h = h * 31 + mDstLo;
+            h = h * 31 + mPorts;
+            return (int)(h ^ (h >>> 32)) + mIpver;
+        }
+    }
+
+    // flows with incomplete stanzas, least recently active first
+    private LinkedHashMap<FlowKey, Flow> mFlows;
+
+    // total length of text carried by all flows
+    private long mCarried;
+
+    /**
+     * Ctor.
+     */
+    public TcpStreamReassembler()
+    {
+        mFlows = new LinkedHashMap<FlowKey, Flow>(1024, 0.75f, true);
+        mCarried = 0;
+    }
+
+    /**
+     * Processes the next packet of a capture, in capture order.
+     * @param p The packet, with its payload already decoded by its parser.
+     * @return The stanzas of the packet, if it follows on from an incomplete
+     *         stanza (this may be an empty list, if the stanza is still not
+     *         complete, or if the packet is held ahead of sequence), or null 
+     *         if the packet's own stanzas stand.
+     */
+    public ArrayList<Document> process(TcpPacket p)
+    {
+        // we need the payload length to follow the sequence
+        if (p.datalen == 0)
+        {
+            return null;
+        }
+
+        FlowKey key = new FlowKey(p);
+        Flow flow = remove(key);
+
+        // a retransmission of an earlier segment leaves the flow be
+        if (flow != null && isBefore(p.seqno, flow.mNextSeqno))
+        {
+            put(key, flow);
+            return null;
+        }
+
+        // payloads of only whitespace are decoded to no text at all
+        boolean blank = !p.readable && p.data == null;
+        boolean usable = !p.truncated && (p.readable || blank);
+        String text = blank ? "" : p.data;
+        long nextSeqno = (p.seqno + p.datalen) & 0xFFFFFFFFL;
+
+        // a packet ahead of sequence is held until the gap is filled, 
+        // unless the flow is ending, or holding it takes the flow over 
+        // its limits, in which case we give up on the flow
+        if (flow != null && p.seqno != flow.mNextSeqno)
+        {
+            if (flow.mAhead.containsKey(p.seqno))
+            {
+                // a retransmission of a packet already held
+                put(key, flow);
+                return new ArrayList<Document>();
+            }
+            if (usable &&
+                (p.tcpflags & TCP_FIN_RST) == 0 &&
+                flow.mAhead.size() < MAX_FLOW_AHEAD &&
+                flow.size() + text.length() <= MAX_FLOW_CARRY)
+            {
+                Segment seg = new Segment();
+                seg.mText = text;
+                seg.mNextSeqno = nextSeqno;
+                flow.mAhead.put(p.seqno, seg);
+                flow.mAheadSize += text.length();
+                put(key, flow);
+                return new ArrayList<Document>();
+            }
+            flow = null;
+        }
+
+        ArrayList<Document> stanzas = null;
+        String carry = null;
+        TreeMap<Long, Segment> ahead = null;
+        if (flow != null && usable)
+        {
+            // packet follows on in sequence, parse it with the carried text,
+            // then with that of any held packets it joins up with
+            stanzas = new ArrayList<Document>();
+            carry = follow(flow.mCarry, text, stanzas);
+            ahead = flow.mAhead;
+            Segment seg;
+            while ((p.tcpflags & TCP_FIN_RST) == 0 &&
+                   (seg = ahead.remove(nextSeqno)) != null)
+            {
+                carry = follow(carry == null ? "" : carry, seg.mText, stanzas);
+                nextSeqno = seg.mNextSeqno;
+            }
+
+            // held packets overlapped by those released can not be followed
+            Iterator<Long> iter = ahead.keySet().iterator();
+            while (iter.hasNext())
+            {
+                if (isBefore(iter.next(), nextSeqno))
+                {
+                    iter.remove();
+                }
+            }
+            if (carry == null && !ahead.isEmpty())
+            {
+                // stream is between stanzas, but packets are still held
+                carry = "";
+            }
+        }
+        else if (p.readable && !p.truncated && p.partialOffset != -1)
+        {
+            // otherwise (re)start the flow from this packet alone
+            carry = p.data.substring(p.partialOffset);
+        }
+
+        // carry any incomplete stanza on, unless the connection is ending
+        if (carry != null && (p.tcpflags & TCP_FIN_RST) == 0)
+        {
+            flow = new Flow();
+            flow.mCarry = carry;
+            flow.mNextSeqno = nextSeqno;
+            if (ahead != null)
+            {
+                flow.mAhead = ahead;
+                for (Segment seg: ahead.values())
+                {
+                    flow.mAheadSize += seg.mText.length();
+                }
+            }
+            if (flow.size() <= MAX_FLOW_CARRY)
+            {
+                put(key, flow);
+            }
+        }
+        return stanzas;
+    }
+
+    /**
+     * Parses the text of a packet which follows on from the text carried
+     * for its flow.
+     * @param carry The text carried for the flow.
+     * @param text The text of the packet.
+     * @param stanzas The list to which the stanzas completed are added.
+     * @return The text of any stanza left incomplete, or null if none.
+     */
+    private static String follow(String carry, String text, 
+            ArrayList<Document> stanzas)
+    {
+        if (text.length() == 0)
+        {
+            return carry.length() == 0 ? null : carry;
+        }
+        text = carry + text;
+        XmppPacketParser parser = new XmppPacketParser();
+        stanzas.addAll(parser.parse(text));
+        if (parser.getPartialOffset() != -1)
+        {
+            return text.substring(parser.getPartialOffset());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of flows currently holding an incomplete stanza.
+     * @return Number of flows being tracked.
+     */
+    public int getFlowCount()
+    {
+        return mFlows.size();
+    }
+
+    /**
+     * Removes a flow from the tracked flows.
+     * @param key Key of the flow.
+     * @return The flow removed, or null if it was not tracked.
+     */
+    private Flow remove(FlowKey key)
+    {
+        Flow flow = mFlows.remove(key);
+        if (flow != null)
+        {
+            mCarried -= flow.size();
+        }
+        return flow;
+    }
+
+    /**
+     * Adds a flow to the tracked flows, dropping the least recently active
+     * flows if this takes us over our limits.
+     * @param key Key of the flow.
+     * @param flow The flow.
+     */
+    private void put(FlowKey key, Flow flow)
+    {
+        mFlows.put(key, flow);
+        mCarried += flow.size();
+        Iterator<Map.Entry<FlowKey, Flow>> iter = mFlows.entrySet().iterator();
+        while (mCarried > MAX_TOTAL_CARRY || mFlows.size() > MAX_FLOWS)
+        {
+            mCarried -= iter.next().getValue().size();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Compares sequence numbers, allowing for wrap around.
+     * @param a A sequence number.
+     * @param b Another sequence number.
+     * @return True if a comes before b.
+     */
+    private static boolean isBefore(long a, long b)
+    {
+        return ((a - b) & 0xFFFFFFFFL) >= 0x80000000L;
+    }
+}
@@ -6,16 +6,20 @@
 package xmpptrace.action;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.swing.ProgressMonitor;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
+import javax.xml.namespace.NamespaceContext;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -23,9 +27,13 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import xmpptrace.model.Address;
+import xmpptrace.model.Pair;
+import xmpptrace.model.SessionCreate;
 import xmpptrace.model.XmppNamespaceContext;
 import xmpptrace.model.TcpPacket;
 import xmpptrace.store.Database;
+import xmpptrace.store.ProgressSink;
 
 /**
  * The Augur was a priest and official in the classical world, especially 
@@ -40,13 +48,15 @@ import xmpptrace.store.Database;
  */
 public class XmppAugur
 {	
-	private XPathExpression mXpathClientLegacyAuth;
-	private XPathExpression mXpathClientSaslAuth;
-	private XPathExpression mXpathComponentFrom;
-	private XPathExpression mXpathComponentTo;
-	private XPathExpression mXpathXmppSessionLocalAddress;
-	private XPathExpression mXpathXmppSessionLocalPort;
-	private XPathExpression mXpathBoshSessionLogicalJid;
+	// most threads to read packets on, each holds a pooled db connection
+	private static final int MAX_THREADS = 8;
+	
+	// fewest packets worth reading on a thread of their own
+	private static final int MIN_RANGE_SIZE = 1000;
+	
+	// how often progress is reported while packets are read, in ms
+	private static final long PROGRESS_INTERVAL = 100;
+	
 	private Pattern mRegexBoshClientSessionId;
 
 	// database on which to operate
@@ -58,6 +68,261 @@ public class XmppAugur
 	// map of client actor to xmpp/bosh service address
 	private TreeMap<String, String> mClientActorToServiceAddressMap;
 
+	// map of address to actor, for all addresses in the address table
+	private HashMap<String, String> mAddressActorMap;
+
+	// addresses whose actor has been set, and the actor set
+	private TreeMap<String, String> mUpdatedActorMap;
+
+	// session creation stanzas seen, in the order they were sent
+	private ArrayList<SessionCreate> mSessionCreates;
+	
+	// findings of packets read this time, to be added to those saved
+	private TreeMap<String, String> mNewClientServices;
+	private ArrayList<Pair<String, String>> mNewBoshSessions;
+	
+	// largest range of uids read without being split
+	private int mRangeSize;
+	
+	// packets read and whether to stop reading, shared by all threads 
+	// reading packets; only the invoking thread talks to the progress sink
+	private AtomicInteger mProgress;
+	private volatile boolean mCanceled;
+
+	/**
+	 * Something found by a discovery rule, to be applied to the augur's
+	 * state once all packets have been read.
+	 */
+	private static abstract class Finding
+	{
+	    abstract void apply();
+	}
+	
+	/**
+	 * Reads the packets with uids in the given range, and evaluates the
+	 * discovery rules against them.  Ranges larger than mRangeSize are split
+	 * in two, and the halves read in parallel.  XPath expressions are not 
+	 * thread safe, so each range read compiles its own.  Rather than being 
+	 * applied, what the rules find is noted in packet order, and the notes 
+	 * of both halves joined in range order, so that once applied the 
+	 * outcome is that of reading all packets in order on a single thread.
+	 */
+	private class Seer extends RecursiveTask<ArrayList<Finding>>
+	{
+	    private static final long serialVersionUID = 1L;
+	    
+	    private int mFirstUid;
+	    private int mLastUid;
+	    private ArrayList<Finding> mFindings;
+	    
+	    StanzaPath mXpathClientLegacyAuth;
+	    StanzaPath mXpathClientSaslAuth;
+	    StanzaPath mXpathComponentFrom;
+	    StanzaPath mXpathComponentTo;
+	    StanzaPath mXpathXmppSessionLocalAddress;
+	    StanzaPath mXpathXmppSessionLocalPort;
+	    StanzaPath mXpathBoshSessionLogicalJid;
+	    
+	    // the discovery rules, applied to each stanza by its root element
+	    StanzaRuleSet mRules;
+	    
+	    /**
+	     * Ctor.
+	     * @param firstUid First uid of the range to be read.
+	     * @param lastUid Last uid of the range to be read, inclusive.
+	     */
+	    Seer(int firstUid, int lastUid)
+	    {
+	        mFirstUid = firstUid;
+	        mLastUid = lastUid;
+	        mFindings = new ArrayList<Finding>();
+	    }
+	    
+	    protected ArrayList<Finding> compute()
+	    {
+	        // split large ranges, keeping the findings in range order
+	        if (mLastUid - mFirstUid >= mRangeSize)
+	        {
+	            int mid = mFirstUid + (mLastUid - mFirstUid) / 2;
+	            Seer first = new Seer(mFirstUid, mid);
+	            Seer second = new Seer(mid + 1, mLastUid);
+	            first.fork();
+	            ArrayList<Finding> secondFindings = second.compute();
+	            ArrayList<Finding> findings = first.join();
+	            findings.addAll(secondFindings);
+	            return findings;
+	        }
+	        
+	        compile();
+	        mDb.iterateOverPackets(mFirstUid, mLastUid, 
+	                new Database.XmppPacketFetchCallback() 
+	        {
+	            public void processPacket(TcpPacket p)
+	            {
+	                if (mCanceled) return;
+	                if (p.getStanzas() != null)
+	                {
+	                    for (Document stanza: p.getStanzas())
+	                    {
+	                        try 
+	                        {
+	                            mRules.apply(stanza, p);
+	                        } 
+	                        catch (XPathExpressionException e) 
+	                        {
+	                            e.printStackTrace();
+	                        }
+	                    }
+	                }
+	                discoverBoshClientAddresses(Seer.this, p);
+	                mProgress.incrementAndGet();
+	            }
+	        });
+	        return mFindings;
+	    }
+	    
+	    /**
+	     * Compiles this range's own instances of the xpath expressions, and
+	     * the rules which use them, in the order in which they are applied.
+	     */
+	    private void compile()
+	    {
+	        NamespaceContext nsc = XmppNamespaceContext.getInstance();
+	        mRules = new StanzaRuleSet();
+	        try 
+	        {
+	            // xpath strings are defined along with the methods that use them
+	            mXpathClientLegacyAuth = 
+	                    StanzaPath.compile(mXpathStrClientLegacyAuth, nsc);
+	            mXpathClientSaslAuth = 
+	                    StanzaPath.compile(mXpathStrClientSaslAuth, nsc);
+	            mXpathComponentFrom = 
+	                    StanzaPath.compile(mXpathStrComponentFrom, nsc);
+	            mXpathComponentTo = 
+	                    StanzaPath.compile(mXpathStrComponentTo, nsc);	
+	            mXpathXmppSessionLocalAddress = StanzaPath.compile(
+	                    mXpathStrXmppSessionLocalAddress, nsc);
+	            mXpathXmppSessionLocalPort = StanzaPath.compile(
+	                    mXpathStrXmppSessionLocalPort, nsc);
+	            mXpathBoshSessionLogicalJid = StanzaPath.compile(
+	                    mXpathStrBoshSessionLogicalJid, nsc);
+	        } 
+	        catch (XPathExpressionException e) 
+	        {
+	            e.printStackTrace();
+	            return;
+	        }
+	        
+	        mRules.add(new StanzaRule(mXpathClientLegacyAuth)
+	        {
+	            void apply(Document stanza, TcpPacket p)
+	                    throws XPathExpressionException
+	            {
+	                discoverXmppClientByLegacyAuth(Seer.this, stanza, p);
+	            }
+	        });
+	        mRules.add(new StanzaRule(mXpathClientSaslAuth)
+	        {
+	            void apply(Document stanza, TcpPacket p)
+	                    throws XPathExpressionException
+	            {
+	                discoverXmppClientBySaslAuth(Seer.this, stanza, p);
+	            }
+	        });
+	        mRules.add(new StanzaRule(mXpathComponentFrom)
+	        {
+	            void apply(Document stanza, TcpPacket p)
+	                    throws XPathExpressionException
+	            {
+	                discoverXmppComponentByFromAttr(Seer.this, stanza, p);
+	            }
+	        });
+	        mRules.add(new StanzaRule(mXpathComponentTo)
+	        {
+	            void apply(Document stanza, TcpPacket p)
+	                    throws XPathExpressionException
+	            {
+	                discoverXmppComponentByToAttr(Seer.this, stanza, p);
+	            }
+	        });
+	        mRules.add(new StanzaRule(mXpathXmppSessionLocalAddress, 
+	                mXpathXmppSessionLocalPort, mXpathBoshSessionLogicalJid)
+	        {
+	            void apply(Document stanza, TcpPacket p)
+	                    throws XPathExpressionException
+	            {
+	                discoverSessionCreate(Seer.this, stanza, p);
+	            }
+	        });
+	    }
+	    
+	    /**
+	     * Notes that the given address belongs to the given actor.
+	     * @param ip The address.
+	     * @param actor The actor.
+	     */
+	    void noteActor(final String ip, final String actor)
+	    {
+	        mFindings.add(new Finding()
+	        {
+	            void apply()
+	            {
+	                setAddressActor(ip, actor);
+	            }
+	        });
+	    }
+	    
+	    /**
+	     * Notes that the given client actor authenticated with the given
+	     * service address.
+	     * @param actor The client actor.
+	     * @param svcAddress The service address.
+	     */
+	    void noteClientService(final String actor, final String svcAddress)
+	    {
+	        mFindings.add(new Finding()
+	        {
+	            void apply()
+	            {
+	                mClientActorToServiceAddressMap.put(actor, svcAddress);
+	                mNewClientServices.put(actor, svcAddress);
+	            }
+	        });
+	    }
+	    
+	    /**
+	     * Notes a session creation stanza, to be matched later.
+	     * @param sc The session creation.
+	     */
+	    void noteSessionCreate(final SessionCreate sc)
+	    {
+	        mFindings.add(new Finding()
+	        {
+	            void apply()
+	            {
+	                mSessionCreates.add(sc);
+	            }
+	        });
+	    }
+	    
+	    /**
+	     * Notes that the given BOSH session ID was used by the given client
+	     * address.
+	     * @param sessionid The BOSH session ID.
+	     * @param ip The client address.
+	     */
+	    void noteBoshSession(final String sessionid, final String ip)
+	    {
+	        mFindings.add(new Finding()
+	        {
+	            void apply()
+	            {
+	                addBoshClientAddress(sessionid, ip);
+	            }
+	        });
+	    }
+	}
+
 	/**
 	 * Constructor.
 	 */
@@ -70,30 +335,16 @@ public class XmppAugur
 				new TreeMap<String, ArrayList<String>>();
 		mClientActorToServiceAddressMap = 
 				new TreeMap<String, String>();
+		mAddressActorMap = new HashMap<String, String>();
+		mUpdatedActorMap = new TreeMap<String, String>();
+		mSessionCreates = new ArrayList<SessionCreate>();
+		mNewClientServices = new TreeMap<String, String>();
+		mNewBoshSessions = new ArrayList<Pair<String, String>>();
+		mProgress = new AtomicInteger();
 		
-		XPathFactory xpf = XPathFactory.newInstance();
-		XPath xp = xpf.newXPath();
-		xp.setNamespaceContext(XmppNamespaceContext.getInstance());
-		try 
-		{
-			// xpath strings are defined along with the methods that use them
-			mXpathClientLegacyAuth = xp.compile(mXpathStrClientLegacyAuth);
-			mXpathClientSaslAuth = xp.compile(mXpathStrClientSaslAuth);
-			mXpathComponentFrom = xp.compile(mXpathStrComponentFrom);
-			mXpathComponentTo = xp.compile(mXpathStrComponentTo);	
-			mXpathXmppSessionLocalAddress = 
-					xp.compile(mXpathStrXmppSessionLocalAddress);
-			mXpathXmppSessionLocalPort = 
-					xp.compile(mXpathStrXmppSessionLocalPort);
-			mXpathBoshSessionLogicalJid = 
-				    xp.compile(mXpathStrBoshSessionLogicalJid);
-			mRegexBoshClientSessionId = 
-                    Pattern.compile(mRegexStrBoshClientSessionId);
-		} 
-		catch (XPathExpressionException e) 
-		{
-			e.printStackTrace();
-		}
+		// patterns, unlike xpath expressions, may be shared between threads
+		mRegexBoshClientSessionId = 
+                Pattern.compile(mRegexStrBoshClientSessionId);
 	}
 	
 	/**
@@ -104,73 +355,164 @@ public class XmppAugur
 	 * can be made, this will automatically set the actor name in the address
 	 * table.
 	 * 
+	 * The packets are read once, in ranges read in parallel.  Actors are 
+	 * discovered, and kept in memory, while session creation stanzas, which 
+	 * can only be matched once the actors of their senders are known, are 
+	 * noted and matched after the last packet.  The actors found are then 
+	 * written to the address table all at once.
+	 * 
+	 * What is found along the way is kept in the database, along with the 
+	 * uid of the last packet read, so that once further captures have been
+	 * imported, only their packets need be read.  Session creations and
+	 * BOSH sessions found before are matched again along with the new ones,
+	 * as the new packets may tell who sent them.
+	 * 
 	 * Note - its best not execute this directly on the swing event thread.
+	 * @param pm Sink to which progress is reported.
 	 */
-	public void takeAuspices() 
+	public void takeAuspices(final ProgressSink pm) 
 	{
-	    // pop up a progress monitor
-	    final int numPackets = mDb.getPacketCount();
-        final ProgressMonitor pm = new ProgressMonitor(
-                xmpptrace.view.XmppTraceFrame.getInstance(),
-                "Identifying actors...", null, 0, numPackets * 2);
-        
-		// primary pass: actor discovery
-		mDb.iterateOverPackets(new Database.XmppPacketFetchCallback() 
-		{
-		    private int progress = 0;
-		    public void processPacket(TcpPacket p)		    
-    		{
-		        if (p.stanzas != null)
-    			{
-    				for (Document stanza: p.stanzas)
-    				{
-    					try 
-    					{
-    						discoverXmppClientByLegacyAuth(stanza, p);
-    						discoverXmppClientBySaslAuth(stanza, p);
-    						discoverXmppComponentByFromAttr(stanza, p);
-    						discoverXmppComponentByToAttr(stanza, p);
-    					} 
-    					catch (XPathExpressionException e) 
-    					{
-    						e.printStackTrace();
-    					}
-    				}
-    			}
-    			discoverBoshClientAddresses(p);
-    			pm.setProgress(++progress);
-                if (pm.isCanceled()) return;
-    		}
-		});
-
-		// secondary pass: socket matching, actor linking
-        mDb.iterateOverPackets(new Database.XmppPacketFetchCallback() 
+        // the rules below consult and update the actors of addresses here,
+        // rather than in the database
+        ArrayList<Address> addresses = new ArrayList<Address>();
+        mDb.fetchAddresses(addresses);
+        for (Address a: addresses)
         {
-            private int progress = numPackets;
-            public void processPacket(TcpPacket p)      
-            {
-     			if (p.stanzas != null)
-    			{
-    				for (Document stanza: p.stanzas)
-    				{
-    					try 
-    					{
-    						matchXmppServiceActorBySessionCreate(stanza, p);
-    						matchBoshServiceActorBySessionCreate(stanza, p);
-    					} 
-    					catch (XPathExpressionException e) 
-    					{
-    						e.printStackTrace();
-    					}
-    				}
-    			}
-                pm.setProgress(++progress);
-                if (pm.isCanceled()) return;
-            }
-        });
+            mAddressActorMap.put(a.ip, a.actor);
+        }
+        
+        // pick up where the augur last left off
+        int lastUid = mDb.fetchAugurState(mClientActorToServiceAddressMap, 
+                mBoshSessionToClientAddressMap, mSessionCreates);
+        int numOldSessionCreates = mSessionCreates.size();
+        Pair<Integer, Integer> uids = mDb.getUidRange();
+        int firstUid = (uids == null) ? 0 : Math.max(uids.first, lastUid + 1);
+        int numPackets = (uids == null) ? 0 : 
+                Math.max(0, uids.second - firstUid + 1);
+        pm.begin("Identifying actors...", numPackets);
         
+		// actor discovery, and noting of session creation, over ranges of 
+		// new packets read in parallel, then applied in order
+		if (numPackets > 0)
+		{
+		    int threads = Math.min(
+		            Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+		    mRangeSize = Math.max(MIN_RANGE_SIZE, numPackets / (threads * 4));
+		    ForkJoinPool pool = new ForkJoinPool(threads);
+		    ArrayList<Finding> findings;
+		    try
+		    {
+		        findings = awaitFindings(
+		                pool.submit(new Seer(firstUid, uids.second)), pm);
+		    }
+		    finally
+		    {
+		        pool.shutdown();
+		    }
+		    for (Finding f: findings)
+		    {
+		        f.apply();
+		    }
+		    
+		    // keep the findings, unless cut short, in which case the 
+		    // packets are read again next time
+		    if (!mCanceled)
+		    {
+		        mDb.saveAugurState(uids.second, mNewClientServices, 
+		                mNewBoshSessions, mSessionCreates.subList(
+		                        numOldSessionCreates, mSessionCreates.size()));
+		    }
+		}
+
+		// socket matching, actor linking
+		for (SessionCreate sc: mSessionCreates)
+		{
+		    if (sc.svcAddress != null)
+		    {
+		        matchXmppServiceActorBySessionCreate(sc);
+		    }
+		    else
+		    {
+		        matchBoshServiceActorBySessionCreate(sc);
+		    }
+		}
 		matchBoshClientActorsBySessionID();
-        pm.setProgress(numPackets * 2);
+		
+		// write the actors found to the database in one go
+		mDb.setAddressActors(mUpdatedActorMap);
+        pm.setProgress(numPackets);
+        pm.end();
+	}
+
+	/**
+	 * Waits for the packets to be read, reporting progress to the sink and
+	 * passing on its cancellation every PROGRESS_INTERVAL ms.  The sink is 
+	 * only called from this, the invoking thread, so need not be thread
+	 * safe, and sees progress in order however many threads read packets.
+	 * @param task Task reading the packets.
+	 * @param pm Sink to which progress is reported.
+	 * @return Findings of the packets read.
+	 */
+	private ArrayList<Finding> awaitFindings(
+	        ForkJoinTask<ArrayList<Finding>> task, ProgressSink pm)
+	{
+	    while (!task.isDone())
+	    {
+	        try
+	        {
+	            task.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+	        }
+	        catch (TimeoutException e)
+	        {
+	            pm.setProgress(mProgress.get());
+	        }
+	        catch (InterruptedException e)
+	        {
+	            // stop reading, and keep the interrupt for the caller
+	            mCanceled = true;
+	            Thread.currentThread().interrupt();
+	            break;
+	        }
+	        catch (ExecutionException e)
+	        {
+	            // rethrown by join below
+	            break;
+	        }
+	        if (pm.isCanceled())
+	        {
+	            mCanceled = true;
+	        }
+	    }
+	    if (pm.isCanceled())
+	    {
+	        mCanceled = true;
+	    }
+	    return task.join();
+	}
+
+	/**
+	 * Sets the actor name of the given address, in memory.  Addresses that
+	 * are not in the address table are ignored, as they are by the database.
+	 * @param ip Address to be updated.
+	 * @param actor New actor name.
+	 */
+	private void setAddressActor(String ip, String actor)
+	{
+	    if (mAddressActorMap.containsKey(ip))
+	    {
+	        mAddressActorMap.put(ip, actor);
+	        mUpdatedActorMap.put(ip, actor);
+	    }
+	}
+
+	/**
+	 * Gets the actor name of the given address, from memory.
+	 * @param ip Address of interest.
+	 * @return Actor name, or null if the address is not in the address table.
+	 */
+	private String getAddressActor(String ip)
+	{
+	    return mAddressActorMap.get(ip);
 	}
 
 	/**
@@ -179,16 +521,16 @@ public class XmppAugur
 	 * query below, then the text contents of the matched <username> element
 	 * should be used as the actor name for the IP address that sent the
 	 * packet.
+	 * @param seer The seer reading the packet, to which findings are noted.
 	 * @param stanza A stanza that has been sent.
 	 * @param packet The tcp packet which contains the stanza.
 	 * @throws XPathExpressionException
 	 */
 	private void discoverXmppClientByLegacyAuth(
-			Document stanza, TcpPacket packet)
+			Seer seer, Document stanza, TcpPacket packet)
 			throws XPathExpressionException
 	{		
-		NodeList nodes = (NodeList)mXpathClientLegacyAuth.evaluate(
-				stanza, XPathConstants.NODESET);
+		NodeList nodes = seer.mXpathClientLegacyAuth.evaluate(stanza);
 
 		if ((nodes == null) || (nodes.getLength() == 0)) return;
 		Node node = nodes.item(0);
@@ -197,9 +539,8 @@ public class XmppAugur
 		if (username == null || username.length() == 0) return;
 		
 		username = username.trim();
-		mDb.setAddressActor(packet.src, username);
-		
-		mClientActorToServiceAddressMap.put(username, packet.dst);
+		seer.noteActor(packet.src, username);
+		seer.noteClientService(username, packet.dst);
 	}
 
 	private static final String mXpathStrClientLegacyAuth = 
@@ -213,16 +554,16 @@ public class XmppAugur
 	 * query below, then the text contents of the matched 
 	 * <bind> element should be used as the actor name for the IP address 
 	 * that received the packet.  
+	 * @param seer The seer reading the packet, to which findings are noted.
 	 * @param stanza A stanza that has been sent.
 	 * @param packet The tcp packet which contains the stanza.
 	 * @throws XPathExpressionException
 	 */
 	private void discoverXmppClientBySaslAuth(
-			Document stanza, TcpPacket packet)
+			Seer seer, Document stanza, TcpPacket packet)
 			throws XPathExpressionException
 	{		
-			NodeList nodes = (NodeList)mXpathClientSaslAuth.evaluate(
-					stanza, XPathConstants.NODESET);
+			NodeList nodes = seer.mXpathClientSaslAuth.evaluate(stanza);
 
 			if ((nodes == null) || (nodes.getLength() == 0)) return;
 			Node node = nodes.item(0);
@@ -231,9 +572,8 @@ public class XmppAugur
 			if (username == null || username.length() == 0) return;
 			
 			username = username.trim();
-			mDb.setAddressActor(packet.dst, username);
-
-			mClientActorToServiceAddressMap.put(username, packet.src);
+			seer.noteActor(packet.dst, username);
+			seer.noteClientService(username, packet.src);
 	}
 	
 	private static final String mXpathStrClientSaslAuth = 
@@ -250,16 +590,16 @@ public class XmppAugur
 	 * router (not forwarded between routers or sent to other components). 
 	 * Could be a dicey assumption, may have to revisit.
 	 * 
+	 * @param seer The seer reading the packet, to which findings are noted.
 	 * @param stanza A stanza that has been sent.
 	 * @param packet The tcp packet which contains the stanza.
 	 * @throws XPathExpressionException
 	 */
 	private void discoverXmppComponentByFromAttr(
-			Document stanza, TcpPacket packet) 
+			Seer seer, Document stanza, TcpPacket packet) 
 		throws XPathExpressionException
     {
-		NodeList nodes = (NodeList)mXpathComponentFrom.evaluate(
-				stanza, XPathConstants.NODESET);
+		NodeList nodes = seer.mXpathComponentFrom.evaluate(stanza);
 	
 		if ((nodes != null) && (nodes.getLength() == 1))
 		{
@@ -276,7 +616,7 @@ public class XmppAugur
 			
 			fromstr = fromstr.trim();
 			fromstr = stripGuid(fromstr);
-	        mDb.setAddressActor(packet.src, fromstr);
+	        seer.noteActor(packet.src, fromstr);
 		}	
 	}
 
@@ -302,16 +642,16 @@ public class XmppAugur
 	 * which are not fully meshed.  Will have to revisit when a better 
 	 * heuristic can be developed.
 	 * 
+	 * @param seer The seer reading the packet, to which findings are noted.
 	 * @param stanza A stanza that has been sent.
 	 * @param packet The tcp packet which contains the stanza.
 	 * @throws XPathExpressionException
 	 */
 	private void discoverXmppComponentByToAttr(
-            Document stanza, TcpPacket packet) 
+			Seer seer, Document stanza, TcpPacket packet) 
 		throws XPathExpressionException
 	{
-		NodeList nodes = (NodeList)mXpathComponentTo.evaluate(
-				stanza, XPathConstants.NODESET);
+		NodeList nodes = seer.mXpathComponentTo.evaluate(stanza);
 	
 		if ((nodes != null) && (nodes.getLength() == 1))
 		{
@@ -328,7 +668,7 @@ public class XmppAugur
 			
 			tostr = tostr.trim();
             tostr = stripGuid(tostr);
-	        mDb.setAddressActor(packet.dst, tostr);
+	        seer.noteActor(packet.dst, tostr);
 		}	
 	}
 
@@ -340,23 +680,42 @@ public class XmppAugur
 	 * Discovers BOSH client-sent packets and map their session IDs to the 
 	 * packet sender's address.  This is used later to match bosh client 
 	 * sockets which service the same client (usually two per client).
+	 * @param seer The seer reading the packet, to which findings are noted.
 	 * @param packet A tcp packet which may contain http/bosh headers.
 	 * @throws XPathExpressionException
 	 */
-	private void discoverBoshClientAddresses(TcpPacket packet)
+	private void discoverBoshClientAddresses(Seer seer, TcpPacket packet)
 	{
 		Matcher m = mRegexBoshClientSessionId.matcher(packet.data);
 		if (m.find()) 
 		{
-			String sessionid = m.group(1);
-			ArrayList<String> addresses = 
-					mBoshSessionToClientAddressMap.get(sessionid);
-			if (addresses == null)
-			{
-				addresses = new ArrayList<String>();
-				mBoshSessionToClientAddressMap.put(sessionid, addresses);
-			}
-			addresses.add(packet.src);
+			seer.noteBoshSession(m.group(1), packet.src);
+		}
+	}
+
+	/**
+	 * Maps a BOSH session ID to another of the client addresses that 
+	 * have used it, unless it is already mapped to that address.
+	 * @param sessionid The BOSH session ID.
+	 * @param ip The client address.
+	 */
+	private void addBoshClientAddress(String sessionid, String ip)
+	{
+		ArrayList<String> addresses = 
+				mBoshSessionToClientAddressMap.get(sessionid);
+		if (addresses == null)
+		{
+			addresses = new ArrayList<String>();
+			mBoshSessionToClientAddressMap.put(sessionid, addresses);
+		}
+		if (!addresses.contains(ip))
+		{
+			addresses.add(ip);
+			
+			Pair<String, String> session = new Pair<String, String>();
+			session.first = sessionid;
+			session.second = ip;
+			mNewBoshSessions.add(session);
 		}
 	}
 
@@ -376,7 +735,7 @@ public class XmppAugur
 			String actor = null;
 			for (String a1: mBoshSessionToClientAddressMap.get(sessionid))
 			{
-				actor = mDb.getAddressActor(a1);
+				actor = getAddressActor(a1);
 				if (actor != null && !actor.equals(a1))
 				{
 					for (String a2: 
@@ -384,7 +743,7 @@ public class XmppAugur
 					{	
 						if (a1 != a2)
 						{
-							mDb.setAddressActor(a2, actor);
+							setAddressActor(a2, actor);
 						}
 					}
 					break;
@@ -395,41 +754,39 @@ public class XmppAugur
 
 	/**
 	 * This looks for session creation stanzas from jsmcp to the router,
-	 * and probes for the local-address and local-port fields in the 
-	 * form.  The service port identified by those two fields is then
-	 * matched to the actor to which the sending component is associated.
+	 * and probes for the local-address and local-port fields, and the
+	 * logical-jid field, in the form.  Any found are noted, along with the
+	 * sender of the stanza, to be matched once all packets have been read,
+	 * by the two methods that follow.
+	 * @param seer The seer reading the packet, to which findings are noted.
 	 * @param stanza A stanza that has been sent.
 	 * @param packet The tcp packet which contains the stanza.
 	 * @throws XPathExpressionException
 	 */
-	private void matchXmppServiceActorBySessionCreate(
-            Document stanza, TcpPacket packet) 
+	private void discoverSessionCreate(
+			Seer seer, Document stanza, TcpPacket packet)
 		throws XPathExpressionException
 	{
-        // not useful to proceed unless the packet sender has non-trivial actor
-		String actor = mDb.getAddressActor(packet.src); 
-		if (actor == null || actor.equals(packet.src)) return;
+		NodeList ipNode = seer.mXpathXmppSessionLocalAddress.evaluate(stanza);
+		NodeList portNode = seer.mXpathXmppSessionLocalPort.evaluate(stanza);
 		
-		NodeList ipNode = (NodeList)mXpathXmppSessionLocalAddress.evaluate(
-				stanza, XPathConstants.NODESET);
-	
-		if ((ipNode == null) || (ipNode.getLength() != 1)) return;
+		if ((ipNode != null) && (ipNode.getLength() == 1) && 
+		    (portNode != null) && (portNode.getLength() == 1))
+		{
+		    String ip = ipNode.item(0).getTextContent().trim();
+		    String port = portNode.item(0).getTextContent().trim();
+		    seer.noteSessionCreate(new SessionCreate(
+		            packet.src, ip + ":" + port, null));
+		}
 
-		NodeList portNode = (NodeList)mXpathXmppSessionLocalPort.evaluate(
-				stanza, XPathConstants.NODESET);
-		
-		if ((portNode == null) || (portNode.getLength() != 1)) return;
-		
-		String ip = ipNode.item(0).getTextContent().trim();
-		String port = portNode.item(0).getTextContent().trim();
-		String svcAddress = ip + ":" + port;
-				
-		String svcActor = mDb.getAddressActor(svcAddress);
-		if (svcActor != null && svcActor.equals(svcAddress))
+		NodeList jidNode = seer.mXpathBoshSessionLogicalJid.evaluate(stanza);
+	
+		if ((jidNode != null) && (jidNode.getLength() == 1))
 		{
-			mDb.setAddressActor(svcAddress, actor);
+		    String jid = jidNode.item(0).getTextContent().trim();
+		    seer.noteSessionCreate(new SessionCreate(packet.src, null, jid));
 		}
-	}	
+	}
 	
 	private static final String mXpathStrXmppSessionLocalAddress =
 		"/route/xdata:x[@type='submit']" +
@@ -440,36 +797,46 @@ public class XmppAugur
 		"/xdata:field[@var='local-port']/xdata:value";
 	
 	/**
-	 * This looks for session creation stanzas from jsmcp to the router,
-	 * and probes for the logical-jid field in the form.  If such a match
-	 * is made, it will check the mClientActorToServiceAddressMap for a client 
-	 * actor name that matches the logical-jid (either full or just username),
-	 * and if such a client actor is found, it is then inferred that the 
-	 * service port to which that client communicated as part of its 
-	 * authentication is the client-facing service address of the component 
-	 * that sent this session creation stanza.  If this component has a non
-	 * trivial actor name (ie. not identical to its address:port) then
-	 * this same actor name may then be assigned to that service port.
-	 * 
-	 * @param stanza A stanza that has been sent.
-	 * @param packet The tcp packet which contains the stanza.
-	 * @throws XPathExpressionException
+	 * Matches a session creation stanza from jsmcp to the router, carrying
+	 * local-address and local-port fields.  The service port identified by 
+	 * those two fields is matched to the actor to which the sending 
+	 * component is associated.
+	 * @param sc The session creation noted by discoverSessionCreate().
 	 */
-	private void matchBoshServiceActorBySessionCreate(
-            Document stanza, TcpPacket packet) 
-		throws XPathExpressionException
+	private void matchXmppServiceActorBySessionCreate(SessionCreate sc)
 	{
         // not useful to proceed unless the packet sender has non-trivial actor
-		String actor = mDb.getAddressActor(packet.src); 
-		if (actor == null || actor.equals(packet.src)) return;
+		String actor = getAddressActor(sc.sender); 
+		if (actor == null || actor.equals(sc.sender)) return;
 		
-		NodeList jidNode = (NodeList)mXpathBoshSessionLogicalJid.evaluate(
-				stanza, XPathConstants.NODESET);
+		String svcActor = getAddressActor(sc.svcAddress);
+		if (svcActor != null && svcActor.equals(sc.svcAddress))
+		{
+			setAddressActor(sc.svcAddress, actor);
+		}
+	}	
 	
-		if ((jidNode == null) || (jidNode.getLength() != 1)) return;
-
+	/**
+	 * Matches a session creation stanza from jsmcp to the router, carrying
+	 * a logical-jid field.  This checks the mClientActorToServiceAddressMap 
+	 * for a client actor name that matches the logical-jid (either full or 
+	 * just username), and if such a client actor is found, it is then 
+	 * inferred that the service port to which that client communicated as 
+	 * part of its authentication is the client-facing service address of the
+	 * component that sent this session creation stanza.  If this component 
+	 * has a non trivial actor name (ie. not identical to its address:port) 
+	 * then this same actor name may then be assigned to that service port.
+	 * 
+	 * @param sc The session creation noted by discoverSessionCreate().
+	 */
+	private void matchBoshServiceActorBySessionCreate(SessionCreate sc)
+	{
+        // not useful to proceed unless the packet sender has non-trivial actor
+		String actor = getAddressActor(sc.sender); 
+		if (actor == null || actor.equals(sc.sender)) return;
+		
 		// try to match on full jid first
-		String jid = jidNode.item(0).getTextContent().trim();
+		String jid = sc.jid;
 		String svcAddress = mClientActorToServiceAddressMap.get(jid);
 
 		// if full jid didn't have a match, try just username
@@ -486,10 +853,10 @@ public class XmppAugur
 		// if we have a matching service address for the jid/username...
 		if (svcAddress != null)
 		{
-			String svcActor = mDb.getAddressActor(svcAddress);
+			String svcActor = getAddressActor(svcAddress);
 			if (svcActor != null && svcActor.equals(svcAddress))
 			{
-				mDb.setAddressActor(svcAddress, actor);
+				setAddressActor(svcAddress, actor);
 			}		
 		}	
 	}
@@ -63,11 +63,44 @@ public class XmppDumpStreamParser implements StreamParser
 	}
 	
 	/**
-	 * Reads the next TCP packet entry from the stream provided in the ctor.
+	 * Reads the next TCP packet entry from the stream provided in the ctor,
+	 * and fully decodes it.
 	 * @return The next TcpPacket parsed from the stream, null if reached eof.
 	 * @throws IOException If an error occurs while reading from the file.
 	 */
 	public TcpPacket getNextPacket() throws IOException
+	{
+		TcpPacket p = getNextFrame();
+		if (p != null)
+		{
+			decodePacket(p);
+		}
+		return p;
+	}
+
+	/**
+	 * Finds the bounds of xmpp stanzas in the text of a packet returned by 
+	 * getNextFrame(), for TcpPacket.getStanzas() to parse on demand.  This
+	 * may be invoked on any thread.
+	 * @param p The packet to be decoded.
+	 */
+	public void decodePacket(TcpPacket p)
+	{
+		if (p.readable && p.data != null && p.data.length() > 0)
+		{
+			XmppPacketParser parser = new XmppPacketParser();
+			p.stanzaBounds = parser.findStanzas(p.data);
+			p.partialOffset = parser.getPartialOffset();
+		}
+	}
+
+	/**
+	 * Reads the next TCP packet entry from the stream provided in the ctor,
+	 * leaving stanza parsing for decodePacket().
+	 * @return The next TcpPacket framed from the stream, null if reached eof.
+	 * @throws IOException If an error occurs while reading from the file.
+	 */
+	public TcpPacket getNextFrame() throws IOException
 	{
 		StringBuffer sb = new StringBuffer();
 		
@@ -187,9 +220,6 @@ public class XmppDumpStreamParser implements StreamParser
 				{
 					p.data = p.data.substring(0, 65523) + "\n[TRUNCATED]";
 				}
-
-				// attempt to parse xmpp stanzas from the packet
-				p.stanzas = new XmppPacketParser().parse(p.data);
 			}
 			else
 			{
@@ -203,4 +233,14 @@ public class XmppDumpStreamParser implements StreamParser
 	
 		return p;
 	}
+
+	/**
+	 * Closes the stream being parsed, and so any stream it reads from,
+	 * stopping any thread decompressing it.
+	 * @throws IOException If an error occurs while closing the stream.
+	 */
+	public void close() throws IOException
+	{
+		mReader.close();
+	}
 }
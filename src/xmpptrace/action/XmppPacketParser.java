@@ -5,32 +5,117 @@
 
 package xmpptrace.action;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Stack;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Document;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
-
-import xmpptrace.model.Pair;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
 
 /**
  * Parses TCP packet data for xmpp stanzas.  A TCP packet can contain more than
  * a single stanza, and may also contain stanza fragments.  This class attempts
  * to figure out the stanza boundaries, and then parse each stanza into its own
- * DOM document.
+ * DOM document.  The two steps are exposed separately, so that the (cheap)
+ * boundaries can be found when a packet is imported, and the (costly) DOM
+ * parsing deferred until the stanzas are actually needed.
+ * 
+ * Both are done in a single pass by a streaming (StAX) reader, which reads
+ * the packet text as the content of a synthetic root element.  Each element
+ * completed directly beneath that root is a stanza.  The root binds the
+ * stream prefix, so that stream level elements (e.g. stream:features) can be
+ * parsed even though the stream header that declares it is elsewhere.  The
+ * stream header itself is stepped over, so the stanzas that follow it in the
+ * same packet are found.  A stanza which is malformed is skipped, and the
+ * rest of the packet read with a fresh reader.
+ * 
+ * Readers and document builders are costly to set up, so the factories are
+ * kept per thread, and a parser instance is cheap to create.
  * 
  * @author adb
  */
 public class XmppPacketParser 
 {
+	// namespace of the xmpp stream header
+	private static final String STREAMS_NS = 
+			"http://etherx.jabber.org/streams";
+
+	// synthetic root element, within which packet text is read
+	private static final String ROOT_OPEN = 
+			"<xmpptrace xmlns:stream='" + STREAMS_NS + "'>";
+
+	// jdk reader property to keep cdata sections distinct from text
+	private static final String REPORT_CDATA = 
+			"http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+	// stax factories and dom builders are not thread safe, keep per thread
+	private static final ThreadLocal<XMLInputFactory> sInputFactory = 
+			new ThreadLocal<XMLInputFactory>()
+			{
+				protected XMLInputFactory initialValue()
+				{
+					XMLInputFactory factory = XMLInputFactory.newInstance();
+					factory.setProperty(
+							XMLInputFactory.IS_NAMESPACE_AWARE, true);
+					factory.setProperty(
+							XMLInputFactory.IS_COALESCING, false);
+					factory.setProperty(
+							XMLInputFactory.SUPPORT_DTD, false);
+					factory.setProperty(
+							XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, 
+							false);
+					if (factory.isPropertySupported(REPORT_CDATA))
+					{
+						factory.setProperty(REPORT_CDATA, true);
+					}
+					return factory;
+				}
+			};
+
+	private static final ThreadLocal<DocumentBuilder> sBuilder = 
+			new ThreadLocal<DocumentBuilder>()
+			{
+				protected DocumentBuilder initialValue()
+				{
+					try
+					{
+						DocumentBuilderFactory factory = 
+								DocumentBuilderFactory.newInstance();
+						factory.setNamespaceAware(true);
+						return factory.newDocumentBuilder();
+					}
+					catch (ParserConfigurationException e)
+					{
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+
+	// stanza boundaries found so far, in pairs
+	private int[] mBounds;
+	private int mBoundsCount;
+
+	// offset of a trailing stanza left incomplete by the last split, or -1
+	private int mPartial;
+
+	// the reader's current line, and the text offset at which it starts,
+	// for mapping reader locations back to text offsets
+	private int mLine;
+	private int mLineStart;
+
 	/**
 	 * Ctor.
 	 */
@@ -53,132 +138,455 @@ public class XmppPacketParser
 	}
 	
 	/**
-	 * Parses TCP packet data into an array of DOM documents.  Note that
-	 * the current implementation will fail to parse subsequent stanzas
-	 * if a stanza is found to be malformed.
+	 * Parses TCP packet data into an array of DOM documents.  Malformed
+	 * stanzas are skipped, though an incomplete stanza (or one which cannot
+	 * be told apart from the rest of the packet) ends parsing.
 	 * @param tcpData Text data from a TCP packet.
 	 * @return An array of DOM documents, ordered as found in the packet
 	 */
 	public ArrayList<Document> parse(String tcpData)
 	{
 		ArrayList<Document> domlist = new ArrayList<Document>();
-		byte[] xmlin = tcpData.getBytes();
+		split(tcpData, domlist);
+		return domlist;
+	}
+
+	/**
+	 * Parses the stanzas at the given boundaries of TCP packet data into an
+	 * array of DOM documents.
+	 * @param tcpData Text data from a TCP packet.
+	 * @param bounds Stanza boundaries, as returned by findStanzas().
+	 * @return An array of DOM documents, ordered as found in the packet
+	 */
+	public ArrayList<Document> parse(String tcpData, int[] bounds)
+	{
+		ArrayList<Document> domlist = new ArrayList<Document>();
+		for (int i = 0; i + 1 < bounds.length; i += 2)
+		{
+			split(tcpData.substring(bounds[i], bounds[i+1]), domlist);
+		}
+		return domlist;
+	}
+
+	/**
+	 * Finds the boundaries of the well formed stanzas in TCP packet data,
+	 * without building their DOMs.  Boundaries are character offsets into
+	 * the given string, so that each stanza is tcpData.substring(start, end).
+	 * @param tcpData Text data from a TCP packet.
+	 * @return The start and end offsets of each stanza, in pairs, ordered
+	 *         as found in the packet.
+	 */
+	public int[] findStanzas(String tcpData)
+	{
+		return split(tcpData, null);
+	}
+
+	/**
+	 * Returns the offset at which the text given to the last call of
+	 * parse(String) or findStanzas() ended part way through a stanza.  Such
+	 * a stanza may be completed by the next packet of the same stream.
+	 * @return Offset of the incomplete trailing stanza, or -1 if there is
+	 *         none (including if the text ended on malformed xml).
+	 */
+	public int getPartialOffset()
+	{
+		return mPartial;
+	}
+
+	/**
+	 * Splits TCP packet data into stanzas, optionally building the DOM of 
+	 * each as it goes.
+	 * @param tcpData Text data from a TCP packet.
+	 * @param domlist If not null, the list to which DOMs are added.
+	 * @return The start and end offsets of each stanza, in pairs.
+	 */
+	private int[] split(String tcpData, ArrayList<Document> domlist)
+	{
+		mBounds = new int[4];
+		mBoundsCount = 0;
+		mPartial = -1;
+		int n = tcpData.length();
 		int r = 0;
-		
-		// handle degenerate case of zero-length packet
-		if (xmlin.length == 0)
+		while (r < n)
 		{
-			return domlist;
+			// step over any leading non-element stuff (like bosh headers)
+			r = tcpData.indexOf('<', r);
+			if (r == -1)
+			{
+				break;
+			}
+
+			// step over declarations, comments and stray end tags (such as
+			// the end of the stream), which cannot start a stanza
+			if (tcpData.startsWith("<?", r))
+			{
+				r = skipPast(tcpData, r, "?>");
+			}
+			else if (tcpData.startsWith("<!--", r))
+			{
+				r = skipPast(tcpData, r, "-->");
+			}
+			else if (tcpData.startsWith("</", r))
+			{
+				r = skipPast(tcpData, r, ">");
+			}
+
+			// otherwise read stanzas until something goes wrong
+			else
+			{
+				r = readStanzas(tcpData, r, domlist);
+			}
+
+			// quit if there was nothing more to be read
+			if (r == -1)
+			{
+				break;
+			}
 		}
-		
-		// step passed any leading whitespace or XML declaration
-		r = bleedWhitespace(xmlin, r);
-		r = bleedXmlDeclaration(xmlin, r);
-		r = bleedWhitespace(xmlin, r);
+		return Arrays.copyOf(mBounds, mBoundsCount);
+	}
 
-		// grab as many stanzas as possible (can be more than one)
+	/**
+	 * Reads as many stanzas as possible with a streaming reader, starting
+	 * at the given offset.
+	 * @param tcpData Text data from a TCP packet.
+	 * @param r Offset of the opening < of the first stanza.
+	 * @param domlist If not null, the list to which DOMs are added.
+	 * @return The offset at which reading should resume, or -1 if nothing
+	 *         more can be read from the packet.
+	 */
+	private int readStanzas(String tcpData, int r, ArrayList<Document> domlist)
+	{
+		// reader locations include the synthetic root, on the first line
+		mLine = 1;
+		mLineStart = r - ROOT_OPEN.length();
+		int depth = 0;
+		int start = r;
+		int end = r;
+		Document dom = null;
+		Node parent = null;
+		XMLStreamReader xr = null;
 		try
 		{
-			Pair<Integer, Document> result;
-			while (r < xmlin.length)
+			xr = sInputFactory.get().createXMLStreamReader(new StringReader(
+					ROOT_OPEN + normalizeBreaks(tcpData.substring(r))));
+			xr.nextTag();
+			while (true)
 			{
-				result = getNextStanza(xmlin, r);
-				r = result.first.intValue();
-				if (result.second != null)
+				int event = xr.next();
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					if (depth == 0)
+					{
+						// start tag is behind us, find where it began
+						int offset = offsetOf(tcpData, r, xr.getLocation());
+						start = tcpData.lastIndexOf('<', offset - 1);
+
+						// the stream header is not a stanza, resume after it
+						if (STREAMS_NS.equals(xr.getNamespaceURI()) &&
+							"stream".equals(xr.getLocalName()))
+						{
+							return offset;
+						}
+						if (domlist != null)
+						{
+							dom = sBuilder.get().newDocument();
+							parent = dom;
+						}
+					}
+					++depth;
+					if (dom != null)
+					{
+						parent = parent.appendChild(createElement(dom, xr));
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					--depth;
+					if (dom != null)
+					{
+						parent = parent.getParentNode();
+					}
+					if (depth == 0)
+					{
+						end = offsetOf(tcpData, r, xr.getLocation());
+						addBounds(start, end);
+						if (dom != null)
+						{
+							domlist.add(dom);
+							dom = null;
+						}
+					}
+				}
+				else if (dom != null)
 				{
-					domlist.add(result.second);
+					appendContent(dom, parent, xr, event);
 				}
-				r = bleedWhitespace(xmlin, r);
 			}
-		} catch (Exception e) 
+		}
+		catch (XMLStreamException e)
 		{
-			// ignore errors, this is just best-effort
+			// the reader stops at the first error, or at the end of the
+			// packet (as the synthetic root is never closed)
+		}
+		finally
+		{
+			close(xr);
+		}
+
+		// if between stanzas, resume after the last one (moving past the
+		// offending start tag if there was none)
+		if (depth == 0)
+		{
+			return (end > r) ? end : skipPast(tcpData, r, ">");
+		}
+
+		// otherwise skip the malformed stanza, if it can be found, noting
+		// where it began if it is simply incomplete
+		try
+		{
+			end = findStanzaEnd(tcpData, start);
+			if (end == -1)
+			{
+				mPartial = start;
+			}
+			return end;
+		}
+		catch (PacketParseException e)
+		{
+			return -1;
 		}
-		
-		return domlist;
 	}
 
 	/**
-	 * Increment buffer read cursor beyond any immediate whitespace.
-	 * @param xmlin Buffer being read.
-	 * @param r Current read position.
-	 * @return New read position.
+	 * Maps a reader location back to an offset in the packet text.  The
+	 * character offsets reported by readers are not reliable, but line and
+	 * column numbers are, so this counts lines as the reader does.  Must be
+	 * called with locations in ascending order.
+	 * @param tcpData Text data from a TCP packet.
+	 * @param r Offset at which the reader began.
+	 * @param loc A location reported by the reader.
+	 * @return The text offset of the location.
 	 */
-	private int bleedWhitespace(byte[] xmlin, int r)
+	private int offsetOf(String tcpData, int r, Location loc)
 	{
-		while (r < xmlin.length)
+		int n = tcpData.length();
+		while (mLine < loc.getLineNumber())
 		{
-			if (!Character.isWhitespace(xmlin[r]))
+			// line breaks may be any of \n, \r\n or \r
+			int i = Math.max(mLineStart, r);
+			while (i < n && tcpData.charAt(i) != '\n' && 
+					tcpData.charAt(i) != '\r')
 			{
-				break;
+				++i;
+			}
+			if (i + 1 < n && tcpData.charAt(i) == '\r' && 
+					tcpData.charAt(i + 1) == '\n')
+			{
+				++i;
 			}
-			++r;
+			mLineStart = i + 1;
+			++mLine;
 		}
-		return r;
+		return mLineStart + loc.getColumnNumber() - 1;
 	}
 
 	/**
-	 * Increment buffer read cursor beyond any immediate XML declaration.
-	 * @param xmlin Buffer being read.
+	 * Replaces any lone \r line breaks with \n.  This makes no difference
+	 * to the xml (which normalizes both to \n), but the reader miscounts
+	 * columns after a lone \r, which would throw off offsetOf().
+	 * @param text Text to be read.
+	 * @return The text, with the same length, and only \n or \r\n breaks.
+	 */
+	private static String normalizeBreaks(String text)
+	{
+		if (text.indexOf('\r') == -1)
+		{
+			return text;
+		}
+		char[] chars = text.toCharArray();
+		for (int i = 0; i < chars.length; ++i)
+		{
+			if (chars[i] == '\r' && 
+				(i + 1 == chars.length || chars[i + 1] != '\n'))
+			{
+				chars[i] = '\n';
+			}
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Creates an element from the current START_ELEMENT event of a reader,
+	 * including its namespace declarations and attributes.
+	 * @param dom Document which is to own the element.
+	 * @param xr Reader positioned at a START_ELEMENT.
+	 * @return A new element.
+	 */
+	private Element createElement(Document dom, XMLStreamReader xr)
+	{
+		Element e = dom.createElementNS(
+				nullIfEmpty(xr.getNamespaceURI()),
+				qualify(xr.getPrefix(), xr.getLocalName()));
+		for (int i = 0; i < xr.getNamespaceCount(); ++i)
+		{
+			String prefix = xr.getNamespacePrefix(i);
+			String name = (prefix == null || prefix.length() == 0) ?
+					XMLConstants.XMLNS_ATTRIBUTE :
+					XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+			e.setAttributeNS(
+					XMLConstants.XMLNS_ATTRIBUTE_NS_URI, 
+					name,
+					xr.getNamespaceURI(i));
+		}
+		for (int i = 0; i < xr.getAttributeCount(); ++i)
+		{
+			e.setAttributeNS(
+					nullIfEmpty(xr.getAttributeNamespace(i)),
+					qualify(xr.getAttributePrefix(i), 
+							xr.getAttributeLocalName(i)),
+					xr.getAttributeValue(i));
+		}
+		return e;
+	}
+
+	/**
+	 * Appends the content of the current (non-element) event of a reader
+	 * to the given parent node.  Adjacent text is merged into a single text
+	 * node, as a DOM parser would.
+	 * @param dom Document which owns the parent.
+	 * @param parent Node to which content is appended.
+	 * @param xr Reader positioned at the event.
+	 * @param event The type of the current event.
+	 */
+	private void appendContent(
+			Document dom, Node parent, XMLStreamReader xr, int event)
+	{
+		switch (event)
+		{
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.SPACE:
+			Node last = parent.getLastChild();
+			if (last != null && last.getNodeType() == Node.TEXT_NODE)
+			{
+				((Text)last).appendData(xr.getText());
+			}
+			else
+			{
+				parent.appendChild(dom.createTextNode(xr.getText()));
+			}
+			break;
+		case XMLStreamConstants.CDATA:
+			parent.appendChild(dom.createCDATASection(xr.getText()));
+			break;
+		case XMLStreamConstants.COMMENT:
+			parent.appendChild(dom.createComment(xr.getText()));
+			break;
+		case XMLStreamConstants.PROCESSING_INSTRUCTION:
+			parent.appendChild(dom.createProcessingInstruction(
+					xr.getPITarget(), xr.getPIData()));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Records the boundaries of a stanza.
+	 * @param start Offset of the first character of the stanza.
+	 * @param end Offset immediately after the last character of the stanza.
+	 */
+	private void addBounds(int start, int end)
+	{
+		if (mBoundsCount + 2 > mBounds.length)
+		{
+			mBounds = Arrays.copyOf(mBounds, mBounds.length * 2);
+		}
+		mBounds[mBoundsCount++] = start;
+		mBounds[mBoundsCount++] = end;
+	}
+
+	/**
+	 * Finds the offset immediately after the next occurrence of a string,
+	 * which terminates the construct (tag, comment, etc) begun at the read
+	 * position.  If the text ends before the terminator, the construct is
+	 * noted as incomplete.
+	 * @param xmlin Text being read.
 	 * @param r Current read position.
-	 * @return New read position.
+	 * @param s String to step past.
+	 * @return New read position, or -1 if the string does not occur.
+	 */
+	private int skipPast(String xmlin, int r, String s)
+	{
+		int i = xmlin.indexOf(s, r);
+		if (i == -1)
+		{
+			mPartial = r;
+			return -1;
+		}
+		return i + s.length();
+	}
+
+	/**
+	 * Forms a qualified name from a (possibly empty) prefix and a name.
+	 */
+	private static String qualify(String prefix, String name)
+	{
+		return (prefix == null || prefix.length() == 0) ? 
+				name : prefix + ":" + name;
+	}
+
+	/**
+	 * StAX reports absent namespaces as either null or empty, DOM wants null.
 	 */
-	private int bleedXmlDeclaration(byte[] xmlin, int r)
+	private static String nullIfEmpty(String s)
 	{
-		if (xmlin.length - r < 4) return r;
-		if (xmlin[r] == '<' && xmlin[r+1] == '?')
+		return (s == null || s.length() == 0) ? null : s;
+	}
+
+	/**
+	 * Closes a reader, ignoring any error in doing so.
+	 */
+	private static void close(XMLStreamReader xr)
+	{
+		if (xr != null)
 		{
-			r += 2;
-			while (r < xmlin.length)
+			try
 			{
-				if (xmlin[r-2] == '?' && xmlin[r-1] == '>')
-				{
-					break;
-				}
-				++r;
+				xr.close();
+			}
+			catch (XMLStreamException e)
+			{
+				// nothing to be done
 			}
 		}
-		return r;
 	}
-		
+
 	/**
-	 * Attempt to read a single stanza from the given buffer, starting at
-	 * the given read location.
-	 * @param xmlin Buffer to read from.
-	 * @param r Position to begin reading.
-	 * @return A Pair<Integer, Document>, where the integer represents
-	 *         the new read location immediately after what was read by
-	 *         this function, and the Document is the DOM to which the
-	 *         stanza parsed.  If Parsing failed the Document will be
-	 *         null.
-	 * @throws PacketParseException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
-	 * @throws IOException
+	 * Attempt to find the end of a single stanza in the given text,
+	 * starting at the given read location.  This is a light scan, which
+	 * only balances tags, used to step over a stanza which the streaming
+	 * parser found to be malformed.
+	 * @param xmlin Text to read from.
+	 * @param r Position to begin reading, at the opening < of the stanza.
+	 * @return The position immediately after the end of the stanza, or -1
+	 *         if the text ends before the stanza does.
+	 * @throws PacketParseException If the text is not balanced xml.
 	 */
-	private Pair<Integer, Document> getNextStanza(byte[] xmlin, int r) throws 
-			PacketParseException, 
-			ParserConfigurationException, 
-			SAXException, 
-			IOException
+	private int findStanzaEnd(String xmlin, int r) throws 
+			PacketParseException
 	{	
-		// step over any leading non-element stuff (like bosh http headers)
-		while (r < xmlin.length && xmlin[r] != '<') ++r;
-
-		// remember the beginning
-		int rorig = r;
+		int n = xmlin.length();
 		
-		// start off: no tag, empty stack, no tcpdata stream or dom
+		// start off: no tag, empty stack
 		String tag = null;
 		Stack<String> tagStack = new Stack<String>();
-		ByteArrayInputStream stm = null;
-		Document dom = null;
 
 		// hunt for a complete stanza
-		for (; r < xmlin.length; ++r)
+		for (; r < n; ++r)
 		{
 			// handle beginning of a tag
-			if (xmlin[r] == '<')
+			if (xmlin.charAt(r) == '<')
 			{
 				// <xxxx <
 				if (tag != null)
@@ -188,9 +596,9 @@ public class XmppPacketParser
 
 				// find the tag name 
 				int k = ++r;
-				while (k < xmlin.length)
+				while (k < n)
 				{
-					byte c = xmlin[k];
+					char c = xmlin.charAt(k);
 					if (Character.isWhitespace(c) ||
 							((k != r) && (c == '/')) ||
 							c == '>')
@@ -199,18 +607,19 @@ public class XmppPacketParser
 					}
 					k++;
 				}
-				if (k <= xmlin.length)
+				tag = xmlin.substring(r, k);
+				r = k;
+				if (r == n)
 				{
-					tag = new String(xmlin, r, k - r);
-					r = k;
+					return -1;
 				}
 			}
 		
 			// handle ending of a tag
-			if (xmlin[r] == '>')
+			if (xmlin.charAt(r) == '>')
 			{	
 				// xxxx>
-				if (tag == null)
+				if (tag == null || tag.length() == 0)
 				{
 					throw new PacketParseException("Found illegal >.");
 				}
@@ -218,14 +627,14 @@ public class XmppPacketParser
 				// </xxxx>
 				else if (tag.charAt(0) == '/')
 				{
-					String lastTag = tagStack.pop();
-					if (!lastTag.equals(tag.substring(1)))
+					if (tagStack.isEmpty() ||
+						!tagStack.pop().equals(tag.substring(1)))
 					{
 						throw new PacketParseException("Found unmatched tag.");
 					}
 				}
 				// <xxxx>
-				else if (xmlin[r-1] != '/')
+				else if (xmlin.charAt(r-1) != '/')
 				{
 					tagStack.push(tag);
 				}
@@ -240,35 +649,11 @@ public class XmppPacketParser
 			// if no current tag, and no tagStack, we've got a stanza
 			if (tag == null && tagStack.isEmpty())
 			{
-				stm = new ByteArrayInputStream(xmlin, rorig, ++r - rorig);
-				break;
+				return r + 1;
 			}
 		}
 		
-		// if a complete stanza was found, parse it
-		if (stm != null)
-		{
-			DocumentBuilderFactory factory = 
-                    DocumentBuilderFactory.newInstance();
-			factory.setNamespaceAware(true);
-			DocumentBuilder builder = factory.newDocumentBuilder();
-			builder.setErrorHandler(new ErrorHandler() 
-			{
-				public void error(SAXParseException arg0) 
-                        throws SAXException {}
-				public void fatalError(SAXParseException arg0) 
-                        throws SAXException {}
-				public void warning(SAXParseException arg0) 
-                        throws SAXException {}
-				
-			});
-			dom = builder.parse(stm);
-		}
-	
-		// return current read position, and a new dom if we have it
-		Pair<Integer, Document> retval = new Pair<Integer, Document>();
-		retval.first = new Integer(r);
-		retval.second = dom;
-		return retval;
+		// ran out of text before the stanza ended
+		return -1;
 	}
 }
@@ -0,0 +1,84 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.model;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, held in a plain int array, for lists such as
+ * the pacnos of visible packets, which may run to millions of entries,
+ * and would otherwise each be boxed in an Integer.
+ *
+ * @author adb
+ */
+public final class IntList
+{
+    private int[] mValues;
+    private int mSize;
+
+    /**
+     * Ctor.
+     */
+    public IntList()
+    {
+        this(16);
+    }
+
+    /**
+     * Ctor.
+     * @param capacity Number of values to allow room for.
+     */
+    public IntList(int capacity)
+    {
+        mValues = new int[Math.max(capacity, 1)];
+        mSize = 0;
+    }
+
+    /**
+     * Appends a value to the list.
+     * @param value The value.
+     */
+    public void add(int value)
+    {
+        if (mSize == mValues.length)
+        {
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        mValues[mSize++] = value;
+    }
+
+    /**
+     * Returns the value at the given index.
+     * @param index The index, from 0 to size() - 1.
+     * @return The value.
+     */
+    public int get(int index)
+    {
+        if (index >= mSize)
+        {
+            throw new IndexOutOfBoundsException(
+                    "Index: " + index + ", Size: " + mSize);
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Returns the number of values in the list.
+     * @return The number of values.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Removes all values from the list.
+     */
+    public void clear()
+    {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.model;
+
+import java.sql.Timestamp;
+
+/**
+ * The parts of a packet needed to draw it as an event, and to show its
+ * headers: everything but its text, of which only the start is held, and
+ * its stanzas.  These are what the packet table caches, so that drawing
+ * and scrolling need not fetch or hold the full text and stanzas of every
+ * packet passed over.  The full packet is fetched as a TcpPacket when its
+ * text or stanzas are wanted.
+ *
+ * @author adb
+ */
+public class PacketSummary
+{
+    // most characters of the packet text held, enough to label any arrow
+    public static final int TEXT_LENGTH = 512;
+
+    public int pacno;
+    public Timestamp time;
+    public String src;
+    public String dst;
+    public byte tcpflags;
+    public long seqno;
+    public long ackno;
+    public int pktlen;
+
+    // start of the packet text, empty if it has none
+    public String text;
+
+    /**
+     * Estimates the memory held by this summary, for the purpose of
+     * bounding caches of summaries.
+     * @return Estimated size of this summary, in bytes.
+     */
+    public long estimateSize()
+    {
+        return 128 + 2L * text.length();
+    }
+
+    /**
+     * Expands the abbreviated tcpflags string to a more descriptive
+     * human-readable form.
+     * @return A descriptive human-readable form of the tcpflags.
+     */
+    public String getTcpFlags()
+    {
+        return TcpPacket.describeTcpFlags(tcpflags);
+    }
+}
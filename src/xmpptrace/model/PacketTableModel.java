@@ -6,15 +6,18 @@
 package xmpptrace.model;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+import javax.swing.SwingUtilities;
 import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 
 import xmpptrace.store.Database;
 import xmpptrace.store.DatabaseListener;
+import xmpptrace.store.VisibilityListener;
 
 
 /**
@@ -29,20 +32,53 @@ import xmpptrace.store.DatabaseListener;
  */
 public class PacketTableModel 
 		extends AbstractTableModel 
-		implements DatabaseListener
+		implements DatabaseListener, VisibilityListener
 {
 	private static final long serialVersionUID = 1L;
 
-	private static final long MAX_CACHED_PACKETS = 50;
+	// default bound on the estimated memory held by cached summaries
+	public static final long DEFAULT_CACHE_CAPACITY = 32L * 1024 * 1024;
+	
+	/**
+	 * A cached packet summary, and its estimated size.
+	 */
+	private static class CacheEntry
+	{
+	    PacketSummary mSummary;
+	    long mSize;
+	}
 	
 	// list of "pacno" values of visible packets, in sequence
-	private ArrayList<Integer> mPacnoList;
+	private IntList mPacnoList;
+	
+	// generation of the visible packets in the pacno list
+	private int mGeneration;
 	
-	// mapping from database "pacno" to cached TcpPacket
-	private TreeMap<Integer, TcpPacket> mPacketCache;
+	// mapping from database "pacno" to cached PacketSummary, in order of
+	// access, least recently used first
+	private LinkedHashMap<Integer, CacheEntry> mPacketCache;
 	
-	// lru queue for aging out cached packets
-	private ArrayDeque<TcpPacket> mPacketCacheLru;
+	// the full packet last fetched, as that of the selected row is asked
+	// for repeatedly, or null if none
+	private TcpPacket mLastPacket;
+	
+	// estimated memory held by cached summaries, and the bound on it
+	private long mCacheSize;
+	private long mCacheCapacity;
+	
+	// lookups found in and missing from the cache, including those peeked
+	private long mCacheHits;
+	private long mCacheMisses;
+	
+	// background thread fetching packets ahead of their display, the
+	// pacnos it is to fetch next, or null if none, and those it is fetching
+	private Thread mPrefetchThread;
+	private int[] mPrefetchPending;
+	private int[] mPrefetching;
+	
+	// rows of the window for which the pending pacnos are fetched
+	private int mPrefetchFirstRow;
+	private int mPrefetchLastRow;
 	
 	// table of all addresses to and from which this table's packets flow
 	private AddressTableModel mAddressTable;
@@ -70,9 +106,17 @@ public class PacketTableModel
 	 */
 	public PacketTableModel(AddressTableModel addressTable) 
 	{
-	    mPacnoList = new ArrayList<Integer>();
-	    mPacketCache = new TreeMap<Integer, TcpPacket>();
-	    mPacketCacheLru = new ArrayDeque<TcpPacket>();
+	    mPacnoList = new IntList();
+	    mPacketCache = new LinkedHashMap<Integer, CacheEntry>(
+	            256, 0.75f, true);
+	    mLastPacket = null;
+	    mCacheSize = 0;
+	    mCacheCapacity = DEFAULT_CACHE_CAPACITY;
+	    mCacheHits = 0;
+	    mCacheMisses = 0;
+	    mPrefetchThread = null;
+	    mPrefetchPending = null;
+	    mPrefetching = null;
 	    
         mAddressTable = addressTable;
 		mDateFormat = new SimpleDateFormat("(MM/dd) HH:mm:ss.SSSZ");
@@ -119,7 +163,7 @@ public class PacketTableModel
 	 * @return The number of visible rows in the table.
 	 */
 	@Override
-	public int getRowCount()
+	synchronized public int getRowCount()
 	{
 		return mPacnoList.size();
 	}
@@ -132,25 +176,34 @@ public class PacketTableModel
 	@Override
 	public Object getValueAt(int rowIndex, int columnIndex) 
 	{
-	    TcpPacket p = this.getValueAt(rowIndex);
-	    if (p == null)
+	    // the full text and stanzas are only in the full packet
+	    if (columnIndex == TCPDATA || columnIndex == NUMSTANZAS)
+	    {
+	        TcpPacket p = this.getValueAt(rowIndex);
+	        if (p == null)
+	        {
+	            return null;
+	        }
+	        return (columnIndex == TCPDATA) ? 
+	                p.data : String.valueOf(p.getStanzaCount());
+	    }
+	    
+	    PacketSummary s = this.getSummaryAt(rowIndex);
+	    if (s == null)
 	    {
 	        return null;
 	    }
 		switch (columnIndex)
 		{
-		case TIME: return mDateFormat.format(p.time);
-		case SENDER_ALIAS: return mAddressTable.getActor(p.src);
-		case SENDER_ADDRESS: return p.src;
-		case RECIPIENT_ALIAS: return mAddressTable.getActor(p.dst);
-		case RECIPIENT_ADDRESS: return p.dst;
-		case TCP_FLAGS: return p.getTcpFlags();
-		case SEQ_NO: return p.seqno;
-		case ACK_NO: return p.ackno;
-		case LENGTH: return p.pktlen;
-		case TCPDATA: return p.data;
-		case NUMSTANZAS: return (p.stanzas != null) ? 
-				String.valueOf(p.stanzas.size()) : "0";
+		case TIME: return mDateFormat.format(s.time);
+		case SENDER_ALIAS: return mAddressTable.getActor(s.src);
+		case SENDER_ADDRESS: return s.src;
+		case RECIPIENT_ALIAS: return mAddressTable.getActor(s.dst);
+		case RECIPIENT_ADDRESS: return s.dst;
+		case TCP_FLAGS: return s.getTcpFlags();
+		case SEQ_NO: return s.seqno;
+		case ACK_NO: return s.ackno;
+		case LENGTH: return s.pktlen;
 		}
 		return null;
 	}
@@ -168,64 +221,331 @@ public class PacketTableModel
 	}
 
 	/**
-	 * Returns the TcpPacket from the given visible row.  Implementation
-	 * is based on lazy and limited caching, where packets are aged out
-	 * base on least recent usage.
+	 * Returns the full TcpPacket, with its text and stanzas, from the given
+	 * visible row.  Full packets are fetched from the db as they are asked
+	 * for, and only the last is kept, as they are wanted only for the
+	 * selected row, and by searches, which pass over each row just once.
 	 * 
-	 * This is synchronized, due to two facts:
-	 * (1) this method does lazy-fetch cacheing, and LRU age-out.
-	 * (2) it is invoked both from the swing thread, and search bg thread
+	 * This is invoked both from the swing thread and search bg thread.
 	 * 
 	 * @param rowIndex The visible row index of the requested packet.
 	 * @return The packet at the given visible row index.
 	 */
-    synchronized public TcpPacket getValueAt(int rowIndex)
+    public TcpPacket getValueAt(int rowIndex)
+    {
+        int pacno;
+        int generation;
+        synchronized (this)
+        {
+            if (rowIndex < 0 || rowIndex >= mPacnoList.size())
+            {
+                return null;
+            }
+            pacno = mPacnoList.get(rowIndex);
+            generation = mGeneration;
+            if (mLastPacket != null && mLastPacket.pacno == pacno)
+            {
+                return mLastPacket;
+            }
+        }
+        
+        Database db = Database.getInstance();
+        TcpPacket p = db.getPacket(pacno);
+        synchronized (this)
+        {
+            if (generation == mGeneration)
+            {
+                mLastPacket = p;
+            }
+        }
+        return p;
+    }
+    
+	/**
+	 * Returns the PacketSummary from the given visible row.  Implementation
+	 * is based on lazy and limited caching, where summaries are aged out
+	 * based on least recent usage, once the estimated memory they hold
+	 * exceeds the cache capacity.
+	 * 
+	 * This is invoked both from the swing thread and prefetch bg thread.
+	 * The cache is looked up and updated under the model lock, but a
+	 * summary not cached is fetched from the db without it, so that the
+	 * renderer and prefetch threads need not wait on the query.  A fetched
+	 * summary is cached only if the visible rows have not changed since.
+	 * 
+	 * @param rowIndex The visible row index of the requested packet.
+	 * @return The summary of the packet at the given visible row index.
+	 */
+    public PacketSummary getSummaryAt(int rowIndex)
+    {
+        int pacno;
+        int generation;
+        synchronized (this)
+        {
+            if (rowIndex < 0 || rowIndex >= mPacnoList.size())
+            {
+                return null;
+            }
+            pacno = mPacnoList.get(rowIndex);
+            generation = mGeneration;
+            CacheEntry entry = mPacketCache.get(pacno);
+            if (entry != null)
+            {
+                // the lookup has made it the most recently used
+                ++mCacheHits;
+                return entry.mSummary;
+            }
+            ++mCacheMisses;
+        }
+        
+        // fetch the summary from database, and cache
+        Database db = Database.getInstance();
+        ArrayList<PacketSummary> summaries = 
+                db.getPacketSummaries(new int[] { pacno });
+        if (summaries.isEmpty())
+        {
+            return null;
+        }
+        PacketSummary s = summaries.get(0);
+        synchronized (this)
+        {
+            // the prefetch thread may have cached it meanwhile
+            if (generation == mGeneration && 
+                    !mPacketCache.containsKey(s.pacno))
+            {
+                cache(s);
+                trimCache();
+            }
+        }
+        return s;
+    }
+    
+    /**
+     * Returns the PacketSummary from the given visible row if it is cached,
+     * without fetching it from the db.  Used when drawing, which must not
+     * wait on the db; summaries not yet cached are requested by prefetch().
+     * @param rowIndex The visible row index of the requested packet.
+     * @return The summary at the given row, or null if it is not cached.
+     */
+    synchronized public PacketSummary peekSummaryAt(int rowIndex)
     {
         if (rowIndex < 0 || rowIndex >= mPacnoList.size())
         {
             return null;
         }
-
-        int pacno = mPacnoList.get(rowIndex);
-        TcpPacket p = mPacketCache.get(pacno);
-        if (p == null)
+        
+        CacheEntry entry = mPacketCache.get(mPacnoList.get(rowIndex));
+        if (entry == null)
+        {
+            ++mCacheMisses;
+            return null;
+        }
+        ++mCacheHits;
+        return entry.mSummary;
+    }
+    
+    /**
+     * Requests that the summaries of a window of rows be fetched into the
+     * cache, along with those of a window's worth of rows to either side,
+     * so that scrolling in either direction finds them cached.  Summaries
+     * not already cached are fetched by a background thread, all in one
+     * query, and a rows updated event is fired on the swing thread once
+     * they are cached.  A request replaces any earlier one not yet begun.
+     * @param firstRow The first row of the window.
+     * @param lastRow The last row of the window.
+     */
+    synchronized public void prefetch(int firstRow, int lastRow)
+    {
+        int ahead = Math.max(lastRow - firstRow + 1, 0);
+        int first = Math.max(firstRow - ahead, 0);
+        int last = Math.min(lastRow + ahead, mPacnoList.size() - 1);
+        
+        // pacnos are listed in ascending order, so these are too
+        int[] pacnos = new int[Math.max(last - first + 1, 0)];
+        int count = 0;
+        for (int i = first; i <= last; ++i)
         {
-            // fetch the packet from database, and cache
-            Database db = Database.getInstance();
-            p = db.getPacket(pacno);
-            if (p != null)
+            int pacno = mPacnoList.get(i);
+            if (!mPacketCache.containsKey(pacno) &&
+                (mPrefetching == null ||
+                 Arrays.binarySearch(mPrefetching, pacno) < 0))
             {
-                mPacketCache.put(pacno, p);
-                mPacketCacheLru.addLast(p);
-                
-                // if we're at the max cache size, age our lru
-                if (mPacketCacheLru.size() > MAX_CACHED_PACKETS)
+                pacnos[count++] = pacno;
+            }
+        }
+        if (count == 0)
+        {
+            return;
+        }
+        
+        mPrefetchPending = Arrays.copyOf(pacnos, count);
+        mPrefetchFirstRow = Math.max(firstRow, 0);
+        mPrefetchLastRow = lastRow;
+        if (mPrefetchThread == null)
+        {
+            mPrefetchThread = new Thread(new Runnable()
+            {
+                public void run()
                 {
-                    mPacketCacheLru.removeFirst();
-                    mPacketCache.remove(pacno);
+                    runPrefetch();
                 }
-            }
+            }, "packet prefetch");
+            mPrefetchThread.setDaemon(true);
+            mPrefetchThread.start();
         }
-        else
+        notifyAll();
+    }
+    
+    /**
+     * Body of the prefetch thread, which fetches each pending set of
+     * pacnos in turn.  Summaries fetched for a pacno list since rebuilt,
+     * whose pacnos may now refer to other packets, are discarded.
+     */
+    private void runPrefetch()
+    {
+        Database db = Database.getInstance();
+        while (true)
         {
-            // move selected packet to end of lru queue
-            if (mPacketCacheLru.remove(p))
+            int[] pacnos;
+            int generation;
+            final int firstRow;
+            final int lastRow;
+            synchronized (this)
             {
-                mPacketCacheLru.addLast(p);
+                while (mPrefetchPending == null)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                pacnos = mPrefetchPending;
+                mPrefetchPending = null;
+                mPrefetching = pacnos;
+                generation = mGeneration;
+                firstRow = mPrefetchFirstRow;
+                lastRow = mPrefetchLastRow;
+            }
+            
+            ArrayList<PacketSummary> summaries = 
+                    db.getPacketSummaries(pacnos);
+            
+            boolean added = false;
+            synchronized (this)
+            {
+                mPrefetching = null;
+                if (generation == mGeneration)
+                {
+                    for (PacketSummary s : summaries)
+                    {
+                        if (!mPacketCache.containsKey(s.pacno))
+                        {
+                            cache(s);
+                            added = true;
+                        }
+                    }
+                    trimCache();
+                }
+            }
+            
+            if (added)
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        fireTableRowsUpdated(firstRow, lastRow);
+                    }
+                });
             }
         }
-
-        // sanity check the cache
-        if (mPacketCache.size() != mPacketCacheLru.size() ||
-                mPacketCache.size() > MAX_CACHED_PACKETS)
+    }
+    
+    /**
+     * Sets the bound on the estimated memory held by cached summaries.
+     * The most recently used summary is always kept, however large.
+     * @param bytes The capacity of the cache, in bytes.
+     */
+    synchronized public void setCacheCapacity(long bytes)
+    {
+        mCacheCapacity = bytes;
+        trimCache();
+    }
+    
+    /**
+     * Returns the bound on the estimated memory held by cached summaries.
+     * @return The capacity of the cache, in bytes.
+     */
+    synchronized public long getCacheCapacity()
+    {
+        return mCacheCapacity;
+    }
+    
+    /**
+     * Returns the estimated memory held by cached summaries.
+     * @return The size of the cache, in bytes.
+     */
+    synchronized public long getCacheSize()
+    {
+        return mCacheSize;
+    }
+    
+    /**
+     * Returns the number of summaries cached.
+     * @return The number of cache entries.
+     */
+    synchronized public int getCacheCount()
+    {
+        return mPacketCache.size();
+    }
+    
+    /**
+     * Returns the number of summary lookups found in the cache.
+     * @return The number of cache hits.
+     */
+    synchronized public long getCacheHits()
+    {
+        return mCacheHits;
+    }
+    
+    /**
+     * Returns the number of summary lookups not found in the cache, both 
+     * those fetched from the db and those of drawing, left to prefetch.
+     * @return The number of cache misses.
+     */
+    synchronized public long getCacheMisses()
+    {
+        return mCacheMisses;
+    }
+    
+    /**
+     * Adds a summary to the cache, as the most recently used.
+     */
+    private void cache(PacketSummary s)
+    {
+        CacheEntry entry = new CacheEntry();
+        entry.mSummary = s;
+        entry.mSize = s.estimateSize();
+        mPacketCache.put(s.pacno, entry);
+        mCacheSize += entry.mSize;
+    }
+    
+    /**
+     * Ages out the least recently used summaries, until those left are
+     * within the cache capacity.
+     */
+    private void trimCache()
+    {
+        Iterator<CacheEntry> iter = mPacketCache.values().iterator();
+        while (mCacheSize > mCacheCapacity && mPacketCache.size() > 1)
         {
-            System.err.println("Packet cache inconsistency detected.");
-            System.err.println("Max cache size: " + MAX_CACHED_PACKETS);
-            System.err.println("Cache size: " + mPacketCache.size());
-            System.err.println("LRU size: " + mPacketCacheLru.size());
+            mCacheSize -= iter.next().mSize;
+            iter.remove();
         }
-        
-        return p;
     }
 	
 	/**
@@ -239,12 +559,81 @@ public class PacketTableModel
 	
 	/**
      * Invoked when the underlying database has been updated.  This
-     * will respond to the event by rebuilding the table model.
+     * will respond to the event by rebuilding the table model, if packets
+     * have been renumbered or deleted since it was last built.  Changes
+     * to which packets are visible come by onVisibilityChange().  Either
+     * way, listeners are told the table has changed, as the actors of
+     * its packets' addresses may have.
      */
     @Override
     public void onDatabaseUpdate()
     {
-        rebuildTableModel();
+        Database db = Database.getInstance();
+        if (db.getVisibleGeneration() != mGeneration)
+        {
+            rebuildTableModel();
+        }
+        else
+        {
+            fireTableChanged(new TableModelEvent(this));
+        }
+    }
+    
+    /**
+     * Invoked when packets have been shown or hidden.  This will respond
+     * by merging the change into the pacno list, keeping cached packets.
+     * A change may arrive after the list was fetched with it already made,
+     * in which case merging it again has no effect.
+     * @param generation Generation of the visible packets changed.
+     * @param shown Pacnos of packets made visible, in ascending order.
+     * @param hidden Pacnos of packets hidden, in ascending order.
+     */
+    @Override
+    public void onVisibilityChange(int generation, int[] shown, int[] hidden)
+    {
+        if (generation != mGeneration)
+        {
+            return;
+        }
+        
+        synchronized (this)
+        {
+            IntList list = new IntList(mPacnoList.size() + shown.length);
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < mPacnoList.size() || j < shown.length)
+            {
+                // take the lower of the next listed and next shown pacno
+                int pacno;
+                if (j == shown.length ||
+                    (i < mPacnoList.size() && mPacnoList.get(i) <= shown[j]))
+                {
+                    pacno = mPacnoList.get(i++);
+                    if (j < shown.length && shown[j] == pacno)
+                    {
+                        ++j;
+                    }
+                }
+                else
+                {
+                    pacno = shown[j++];
+                }
+                
+                // and keep it, unless hidden
+                while (k < hidden.length && hidden[k] < pacno)
+                {
+                    ++k;
+                }
+                if (k == hidden.length || hidden[k] != pacno)
+                {
+                    list.add(pacno);
+                }
+            }
+            mPacnoList = list;
+        }
+        
+        fireTableChanged(new TableModelEvent(this));
     }
     
     /**
@@ -253,12 +642,18 @@ public class PacketTableModel
      */
     private void rebuildTableModel()
     {
-        mPacnoList.clear();
-        mPacketCache.clear();
-        mPacketCacheLru.clear();
-
         Database db = Database.getInstance();
-        db.getVisiblePackets(mPacnoList);
+        IntList list = new IntList();
+        int generation = db.getVisiblePackets(list);
+        
+        synchronized (this)
+        {
+            mGeneration = generation;
+            mPacnoList = list;
+            mPacketCache.clear();
+            mCacheSize = 0;
+            mLastPacket = null;
+        }
 
         fireTableChanged(new TableModelEvent(this));
     }
@@ -0,0 +1,26 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.model;
+
+/**
+ * A session creation stanza, sent by jsmcp to the router, as noted by the
+ * augur.  It carries either the service address:port at which the session
+ * was created, or the logical jid of the session's client, which the augur
+ * matches to actors once the sender's actor is known.
+ */
+public class SessionCreate
+{
+    public String sender;
+    public String svcAddress;
+    public String jid;
+
+    public SessionCreate(String sender, String svcAddress, String jid)
+    {
+        this.sender = sender;
+        this.svcAddress = svcAddress;
+        this.jid = jid;
+    }
+}
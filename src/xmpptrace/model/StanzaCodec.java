@@ -0,0 +1,524 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Compact binary encoding for the list of stanza DOMs parsed from a packet,
+ * as stored in the stanzas column of the packets table.  The layout is:
+ *
+ *     byte      format version (VERSION)
+ *     varint    number of stanzas
+ *     varint    number of names, then each name as text
+ *     varint    number of namespaces, then each namespace uri as text
+ *     node*     the nodes of each stanza, each stanza ending with END
+ *
+ * where an element node is written as
+ *
+ *     ELEMENT, ns, prefix, name, attribute count,
+ *     (ns, prefix, name, value)*, child node*, END
+ *
+ * and text, cdata and comment nodes as their tag followed by text.  The ns
+ * and prefix fields are 0 when absent, or else one more than an index into
+ * the namespace and name tables respectively, and name fields are indices
+ * into the name table.  Text is a varint byte length followed by UTF-8.
+ * All varints are unsigned LEB128.
+ *
+ * Element and attribute names (and prefixes) are interned per packet, so
+ * the typical packet stores each distinct name once.  Packets stored by
+ * older versions hold a java serialized ArrayList, which is recognized by
+ * the serialization stream magic and decoded as before.
+ *
+ * @author adb
+ */
+public class StanzaCodec
+{
+    // current format version, must never collide with serialization magic
+    private static final int VERSION = 1;
+
+    // first byte of a java serialization stream (legacy format)
+    private static final int LEGACY_MAGIC = 0xAC;
+
+    // node tags
+    private static final int END = 0;
+    private static final int ELEMENT = 1;
+    private static final int TEXT = 2;
+    private static final int CDATA = 3;
+    private static final int COMMENT = 4;
+    private static final int PROC_INST = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // document builders are not thread safe, so keep one per thread
+    private static final ThreadLocal<DocumentBuilder> sBuilder =
+            new ThreadLocal<DocumentBuilder>()
+            {
+                protected DocumentBuilder initialValue()
+                {
+                    try
+                    {
+                        DocumentBuilderFactory factory =
+                                DocumentBuilderFactory.newInstance();
+                        factory.setNamespaceAware(true);
+                        return factory.newDocumentBuilder();
+                    }
+                    catch (ParserConfigurationException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+
+    private StanzaCodec() {}
+
+    /**
+     * Encodes the given list of stanzas.
+     * @param stanzas The stanzas to be encoded.
+     * @return The encoded stanzas, or null if there are none.
+     */
+    public static byte[] encode(List<Document> stanzas)
+    {
+        if (stanzas == null || stanzas.size() == 0)
+        {
+            return null;
+        }
+
+        // encode the node trees first, as this builds the tables
+        Encoder enc = new Encoder();
+        for (Document stanza: stanzas)
+        {
+            for (Node n = stanza.getFirstChild(); n != null;
+                    n = n.getNextSibling())
+            {
+                enc.writeNode(n);
+            }
+            enc.mBody.write(END);
+        }
+
+        // then write out header, tables and body
+        ByteArrayOutputStream out =
+                new ByteArrayOutputStream(enc.mBody.size() + 64);
+        out.write(VERSION);
+        writeVarint(out, stanzas.size());
+        writeTable(out, enc.mNames);
+        writeTable(out, enc.mNamespaces);
+        byte[] body = enc.mBody.toByteArray();
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the number of stanzas held by an encoding, without decoding.
+     * @param ba Encoded stanzas, as returned by encode().
+     * @return Number of stanzas in the encoding.
+     * @throws IOException If the encoding is not recognized.
+     */
+    public static int count(byte[] ba) throws IOException
+    {
+        if (ba == null || ba.length == 0)
+        {
+            return 0;
+        }
+        if ((ba[0] & 0xFF) == LEGACY_MAGIC)
+        {
+            return decode(ba).size();
+        }
+        Decoder dec = new Decoder(ba);
+        dec.readVersion();
+        return dec.readVarint();
+    }
+
+    /**
+     * Decodes an encoding back into a list of stanza DOMs.
+     * @param ba Encoded stanzas, as returned by encode().
+     * @return A new list of stanza DOMs (empty if ba is null).
+     * @throws IOException If the encoding is not recognized.
+     */
+    @SuppressWarnings("unchecked")
+    public static ArrayList<Document> decode(byte[] ba) throws IOException
+    {
+        ArrayList<Document> stanzas = new ArrayList<Document>();
+        if (ba == null || ba.length == 0)
+        {
+            return stanzas;
+        }
+
+        // legacy format, a java serialized ArrayList<Document>
+        if ((ba[0] & 0xFF) == LEGACY_MAGIC)
+        {
+            ObjectInputStream ois =
+                    new ObjectInputStream(new ByteArrayInputStream(ba));
+            try
+            {
+                Object obj = ois.readObject();
+                if (obj instanceof ArrayList<?>)
+                {
+                    stanzas = (ArrayList<Document>)obj;
+                }
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new IOException(e);
+            }
+            return stanzas;
+        }
+
+        Decoder dec = new Decoder(ba);
+        dec.readVersion();
+        int count = dec.readVarint();
+        dec.mNames = dec.readTable();
+        dec.mNamespaces = dec.readTable();
+        DocumentBuilder builder = sBuilder.get();
+        try
+        {
+            for (int i = 0; i < count; ++i)
+            {
+                Document doc = builder.newDocument();
+                dec.readChildren(doc, doc);
+                stanzas.add(doc);
+            }
+        }
+        catch (DOMException e)
+        {
+            // names or namespaces the encoder could not have written
+            throw new IOException("Malformed stanza encoding", e);
+        }
+        return stanzas;
+    }
+
+    /**
+     * Encodes stanza boundaries, as found by XmppPacketParser.findStanzas(),
+     * for storage in the bounds column of the packets table.  Each offset is
+     * written as a varint delta from the offset before it.
+     * @param bounds Stanza start and end offsets, in pairs.
+     * @return The encoded boundaries, or null if there are none.
+     */
+    public static byte[] encodeBounds(int[] bounds)
+    {
+        if (bounds == null || bounds.length == 0)
+        {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                bounds.length * 2 + 1);
+        writeVarint(out, bounds.length);
+        int last = 0;
+        for (int b: bounds)
+        {
+            writeVarint(out, b - last);
+            last = b;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes stanza boundaries encoded by encodeBounds().
+     * @param ba Encoded boundaries.
+     * @return Stanza start and end offsets, in pairs, or null if ba is null.
+     * @throws IOException If the encoding is not recognized.
+     */
+    public static int[] decodeBounds(byte[] ba) throws IOException
+    {
+        if (ba == null)
+        {
+            return null;
+        }
+        Decoder dec = new Decoder(ba);
+        int[] bounds = new int[dec.readVarint()];
+        int last = 0;
+        for (int i = 0; i < bounds.length; ++i)
+        {
+            last += dec.readVarint();
+            bounds[i] = last;
+        }
+        return bounds;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint.
+     */
+    private static void writeVarint(ByteArrayOutputStream out, int v)
+    {
+        while ((v & ~0x7F) != 0)
+        {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    /**
+     * Writes length prefixed UTF-8 text.
+     */
+    private static void writeText(ByteArrayOutputStream out, String s)
+    {
+        byte[] b = s.getBytes(UTF8);
+        writeVarint(out, b.length);
+        out.write(b, 0, b.length);
+    }
+
+    /**
+     * Writes a string table, ordered by index.
+     */
+    private static void writeTable(
+            ByteArrayOutputStream out, HashMap<String, Integer> table)
+    {
+        String[] strs = new String[table.size()];
+        for (String s: table.keySet())
+        {
+            strs[table.get(s)] = s;
+        }
+        writeVarint(out, strs.length);
+        for (String s: strs)
+        {
+            writeText(out, s);
+        }
+    }
+
+    /**
+     * Per-encoding state: the node body, and the interned string tables.
+     */
+    private static class Encoder
+    {
+        ByteArrayOutputStream mBody = new ByteArrayOutputStream(256);
+        HashMap<String, Integer> mNames = new HashMap<String, Integer>();
+        HashMap<String, Integer> mNamespaces = new HashMap<String, Integer>();
+
+        void writeNode(Node n)
+        {
+            switch (n.getNodeType())
+            {
+            case Node.ELEMENT_NODE:
+                mBody.write(ELEMENT);
+                writeName(n);
+                NamedNodeMap attrs = n.getAttributes();
+                writeVarint(mBody, attrs.getLength());
+                for (int i = 0; i < attrs.getLength(); ++i)
+                {
+                    Node a = attrs.item(i);
+                    writeName(a);
+                    writeText(mBody, a.getNodeValue());
+                }
+                for (Node c = n.getFirstChild(); c != null;
+                        c = c.getNextSibling())
+                {
+                    writeNode(c);
+                }
+                mBody.write(END);
+                break;
+            case Node.TEXT_NODE:
+                mBody.write(TEXT);
+                writeText(mBody, n.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                mBody.write(CDATA);
+                writeText(mBody, n.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                mBody.write(COMMENT);
+                writeText(mBody, n.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                mBody.write(PROC_INST);
+                writeText(mBody, ((ProcessingInstruction)n).getTarget());
+                writeText(mBody, ((ProcessingInstruction)n).getData());
+                break;
+            default:
+                // other node types do not occur within parsed stanzas
+                break;
+            }
+        }
+
+        void writeName(Node n)
+        {
+            String ns = n.getNamespaceURI();
+            String prefix = n.getPrefix();
+            String name = n.getLocalName();
+            if (name == null)
+            {
+                name = n.getNodeName();
+            }
+            writeVarint(mBody, ns == null ? 0 : intern(mNamespaces, ns) + 1);
+            writeVarint(mBody, prefix == null ? 0 : intern(mNames, prefix) + 1);
+            writeVarint(mBody, intern(mNames, name));
+        }
+
+        static int intern(HashMap<String, Integer> table, String s)
+        {
+            Integer idx = table.get(s);
+            if (idx == null)
+            {
+                idx = table.size();
+                table.put(s, idx);
+            }
+            return idx;
+        }
+    }
+
+    /**
+     * Per-decoding state: the read cursor, and the string tables.
+     */
+    private static class Decoder
+    {
+        byte[] mBuf;
+        int mPos;
+        String[] mNames;
+        String[] mNamespaces;
+
+        Decoder(byte[] ba)
+        {
+            mBuf = ba;
+            mPos = 0;
+        }
+
+        void readVersion() throws IOException
+        {
+            int version = readByte() & 0xFF;
+            if (version != VERSION)
+            {
+                throw new IOException(
+                        "Unrecognized stanza format version " + version);
+            }
+        }
+
+        int readByte() throws IOException
+        {
+            if (mPos >= mBuf.length)
+            {
+                throw new IOException("Truncated stanza encoding");
+            }
+            return mBuf[mPos++];
+        }
+
+        int readVarint() throws IOException
+        {
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 7)
+            {
+                if (mPos >= mBuf.length)
+                {
+                    throw new IOException("Truncated stanza encoding");
+                }
+                int b = mBuf[mPos++];
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed stanza encoding");
+        }
+
+        String readText() throws IOException
+        {
+            int len = readVarint();
+            if (len < 0 || mPos + len > mBuf.length)
+            {
+                throw new IOException("Truncated stanza encoding");
+            }
+            String s = new String(mBuf, mPos, len, UTF8);
+            mPos += len;
+            return s;
+        }
+
+        String[] readTable() throws IOException
+        {
+            // every entry takes at least one byte, which bounds the size
+            int size = readVarint();
+            if (size < 0 || size > mBuf.length - mPos)
+            {
+                throw new IOException("Malformed stanza encoding");
+            }
+            String[] table = new String[size];
+            for (int i = 0; i < table.length; ++i)
+            {
+                table[i] = readText();
+            }
+            return table;
+        }
+
+        String readQName(String[] nsOut) throws IOException
+        {
+            int ns = readVarint();
+            int prefix = readVarint();
+            String name = lookup(mNames, readVarint());
+            nsOut[0] = (ns == 0) ? null : lookup(mNamespaces, ns - 1);
+            return (prefix == 0) ? name : lookup(mNames, prefix - 1) + ":" + name;
+        }
+
+        static String lookup(String[] table, int idx) throws IOException
+        {
+            if (idx < 0 || idx >= table.length)
+            {
+                throw new IOException("Malformed stanza encoding");
+            }
+            return table[idx];
+        }
+
+        void readChildren(Document doc, Node parent) throws IOException
+        {
+            String[] ns = new String[1];
+            int tag = readByte();
+            while (tag != END)
+            {
+                switch (tag)
+                {
+                case ELEMENT:
+                    String qname = readQName(ns);
+                    Element e = doc.createElementNS(ns[0], qname);
+                    int attrs = readVarint();
+                    for (int i = 0; i < attrs; ++i)
+                    {
+                        String aname = readQName(ns);
+                        Attr a = doc.createAttributeNS(ns[0], aname);
+                        a.setValue(readText());
+                        e.setAttributeNodeNS(a);
+                    }
+                    parent.appendChild(e);
+                    readChildren(doc, e);
+                    break;
+                case TEXT:
+                    parent.appendChild(doc.createTextNode(readText()));
+                    break;
+                case CDATA:
+                    parent.appendChild(doc.createCDATASection(readText()));
+                    break;
+                case COMMENT:
+                    parent.appendChild(doc.createComment(readText()));
+                    break;
+                case PROC_INST:
+                    String target = readText();
+                    parent.appendChild(
+                            doc.createProcessingInstruction(target, readText()));
+                    break;
+                default:
+                    throw new IOException("Malformed stanza encoding");
+                }
+                tag = readByte();
+            }
+        }
+    }
+}
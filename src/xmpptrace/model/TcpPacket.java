@@ -5,11 +5,15 @@
 
 package xmpptrace.model;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.sql.Timestamp;
 
 import org.w3c.dom.Document;
 
+import xmpptrace.action.XmppPacketParser;
+
 /**
  * Class to represent the headers and contents of a TCP packet.
  * Also contains various bits of useful metadata which are collected
@@ -23,10 +27,16 @@ import org.w3c.dom.Document;
 public class TcpPacket 
         implements Comparable<TcpPacket>
 {
-    // ip fields
+    // ip fields, addresses are held in srca/dsta for ipv4 (ipver 4), or
+    // split in big endian halves across srca6hi/lo and dsta6hi/lo for ipv6
+    public int ipver;
     public int pktlen;
 	public int srca;
 	public int dsta;
+	public long srca6hi;
+	public long srca6lo;
+	public long dsta6hi;
+	public long dsta6lo;
 
     // tcp fields
     public int srcp;
@@ -38,15 +48,33 @@ public class TcpPacket
 	// text payload
 	public String data;
 
+	// raw payload, held only while a packet awaits decoding during import
+	public ByteBuffer payload;
+
+	// length of the tcp payload as sent, in bytes (zero if not known)
+	public int datalen;
+
 	// metadata
     public int pacno;
     public Timestamp time;
     public boolean readable;
     public boolean truncated;
+
+    // text form of the addresses, packets decoded from captures have only
+    // the numeric form above until stored, the db keeps the text
     public String src;
     public String dst;
     public ArrayList<Document> stanzas;
 
+    // stanzas as stored in the db, decoded on demand by getStanzas()
+    public byte[] encodedStanzas;
+
+    // offsets of stanzas within data, parsed on demand by getStanzas()
+    public int[] stanzaBounds;
+
+    // offset within data of a trailing incomplete stanza, or -1 if none
+    public int partialOffset = -1;
+
     /**
      * Generate a string representation of given address and port.
      * @param a IPv4 address, represented as a big endian integer.
@@ -68,12 +96,195 @@ public class TcpPacket
         return sb.toString();
     }    
     
+    /**
+     * Generate a string representation of given IPv6 address and port, in
+     * the canonical text form of RFC 5952 (lower case hex, leading zeros
+     * dropped, the longest run of zero groups shortened to "::"), with the
+     * address in square brackets.
+     * @param hi First 64 bits of the IPv6 address, as a big endian long.
+     * @param lo Last 64 bits of the IPv6 address, as a big endian long.
+     * @param p TCP port, represented as a big endian short.
+     * @return A string representation of the full TCP/IP address.
+     */
+    public static String stringifyAddress(long hi, long lo, int p)
+    {
+        // find the longest run of two or more zero groups, first if tied
+        int zeroStart = -1;
+        int zeroLen = 1;
+        int runStart = 0;
+        for (int i = 0; i <= 8; ++i)
+        {
+            if (i == 8 || addressGroup(hi, lo, i) != 0)
+            {
+                if (i - runStart > zeroLen)
+                {
+                    zeroStart = runStart;
+                    zeroLen = i - runStart;
+                }
+                runStart = i + 1;
+            }
+        }
+
+        StringBuffer sb = new StringBuffer(48);
+        sb.append('[');
+        for (int i = 0; i < 8; ++i)
+        {
+            if (i == zeroStart)
+            {
+                sb.append("::");
+                i += zeroLen - 1;
+                continue;
+            }
+            if (i > 0 && i != zeroStart + zeroLen)
+            {
+                sb.append(':');
+            }
+
+            // ipv4 mapped addresses end in dotted quad form
+            if (i == 6 && zeroStart == 0 && zeroLen == 5 &&
+                addressGroup(hi, lo, 5) == 0xFFFF)
+            {
+                int a = (int)lo;
+                sb.append(a >>> 24).append('.').append(a >>> 16 & 0xFF)
+                  .append('.').append(a >>> 8 & 0xFF).append('.')
+                  .append(a & 0xFF);
+                break;
+            }
+
+            // hex digits of the group, without leading zeros
+            int g = addressGroup(hi, lo, i);
+            int shift = 12;
+            while (shift > 0 && (g >>> shift) == 0)
+            {
+                shift -= 4;
+            }
+            for (; shift >= 0; shift -= 4)
+            {
+                sb.append(Character.forDigit(g >>> shift & 0xF, 16));
+            }
+        }
+        sb.append("]:");
+        sb.append(p);
+        return sb.toString();
+    }
+
+    /**
+     * Returns one of the eight 16 bit groups of an IPv6 address.
+     * @param hi First 64 bits of the IPv6 address.
+     * @param lo Last 64 bits of the IPv6 address.
+     * @param i Index of the group, 0 to 7.
+     * @return The group's value.
+     */
+    private static int addressGroup(long hi, long lo, int i)
+    {
+        long half = (i < 4) ? hi : lo;
+        return (int)(half >>> (48 - (i & 3) * 16)) & 0xFFFF;
+    }
+
+    /**
+     * Returns the stanza DOMs of this packet.  These are built on the first
+     * call, either by decoding the stored encoding, or by parsing the packet
+     * text at the stanza bounds found when the packet was read.  They are
+     * then kept for as long as the packet itself is.
+     * @return The list of stanzas, or null if the packet has none.
+     */
+    public synchronized ArrayList<Document> getStanzas()
+    {
+        if (stanzas == null && encodedStanzas != null)
+        {
+            try
+            {
+                stanzas = StanzaCodec.decode(encodedStanzas);
+                encodedStanzas = null;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        else if (stanzas == null && stanzaBounds != null && data != null)
+        {
+            // as when stored, a packet with no parsable stanzas has none
+            ArrayList<Document> parsed = 
+                    new XmppPacketParser().parse(data, stanzaBounds);
+            stanzaBounds = null;
+            if (parsed.size() > 0)
+            {
+                stanzas = parsed;
+            }
+        }
+        return stanzas;
+    }
+
+    /**
+     * Returns the number of stanzas in this packet, without decoding them.
+     * For a packet not yet parsed, this counts the stanza bounds found in
+     * its text.
+     * @return The number of stanzas in this packet.
+     */
+    public synchronized int getStanzaCount()
+    {
+        if (stanzas != null)
+        {
+            return stanzas.size();
+        }
+        if (stanzaBounds != null)
+        {
+            return stanzaBounds.length / 2;
+        }
+        try
+        {
+            return StanzaCodec.count(encodedStanzas);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Estimates the memory held by this packet, for the purpose of bounding
+     * caches of packets.  Stanza DOMs are taken to hold some ten times the
+     * memory of the text they were parsed from.
+     * @return Estimated size of this packet, in bytes.
+     */
+    public synchronized long estimateSize()
+    {
+        long size = 256;
+        int text = (data != null) ? data.length() : 0;
+        size += 2L * text;
+        if (stanzas != null)
+        {
+            size += 20L * text;
+        }
+        if (encodedStanzas != null)
+        {
+            size += encodedStanzas.length;
+        }
+        if (stanzaBounds != null)
+        {
+            size += 4L * stanzaBounds.length;
+        }
+        return size;
+    }
+
 	/**
 	 * Expands the abbreviated tcpflags string to a more descriptive
 	 * human-readable form.
 	 * @return A descriptive human-readable form of the tcpflags.
 	 */
 	public String getTcpFlags()
+	{
+		return describeTcpFlags(tcpflags);
+	}
+	
+	/**
+	 * Expands tcpflags to a descriptive human-readable form.
+	 * @param tcpflags The flags byte of a tcp header.
+	 * @return A descriptive human-readable form of the flags.
+	 */
+	public static String describeTcpFlags(byte tcpflags)
 	{
 		StringBuffer sb = new StringBuffer();
         if ((tcpflags & (byte)0x02) != 0) sb.append("SYN,");
@@ -0,0 +1,467 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.store;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import xmpptrace.model.TcpPacket;
+
+/**
+ * A registry of the addresses in the addresses table, by which the
+ * addresses of packets being imported are mapped to their ids.  It is
+ * loaded with all known addresses when an import starts, and gives new
+ * addresses their ids itself, so that no address need be looked up in the
+ * db.  Packets decoded from captures carry their addresses only in numeric
+ * form, and these are looked up by number, in an open addressing table of
+ * primitives, so that no text need be built for an address which is
+ * already known.  Packets read from text formats carry their addresses as
+ * text, and these are looked up by text.
+ *
+ * Also converts between the numeric and text forms of an address.  The
+ * numeric form is held as an ip version (4 or 6, or 0 if the address is
+ * known only as text), the address in two big endian halves (an ipv4
+ * address in the low half alone), and a port.
+ *
+ * Not thread safe, an instance serves a single import.  As each registry
+ * hands out ids of its own, imports must not run concurrently.
+ *
+ * @author adb
+ */
+final class AddressIds
+{
+    /**
+     * The numeric form of an address.
+     */
+    static class Key
+    {
+        int ipver;
+        long hi;
+        long lo;
+        int port;
+    }
+
+    // id of an unknown address, or an empty slot
+    static final int NONE = -1;
+
+    // numeric addresses, each slot holds ip version and port together
+    private int[] mVerPorts;
+    private long[] mHis;
+    private long[] mLos;
+    private int[] mIds;
+    private int mCount;
+
+    // all addresses by their text
+    private HashMap<String, Integer> mTextIds;
+
+    // id to be given to the next new address
+    private int mNextId;
+
+    /**
+     * Ctor.
+     */
+    AddressIds()
+    {
+        allocate(256);
+        mTextIds = new HashMap<String, Integer>();
+        mNextId = 1;
+    }
+
+    /**
+     * Gets the id of the source or destination address of a packet.
+     * @param p The packet.
+     * @param source True for the source address, false for the destination.
+     * @return The id, or NONE if the address is not known.
+     */
+    int get(TcpPacket p, boolean source)
+    {
+        if (p.ipver == 0)
+        {
+            return get(source ? p.src : p.dst);
+        }
+        int verPort = verPort(p.ipver, source ? p.srcp : p.dstp);
+        long hi = hi(p, source);
+        long lo = lo(p, source);
+        int i = slot(verPort, hi, lo);
+        return mIds[i];
+    }
+
+    /**
+     * Gets the id of an address by its text.
+     * @param text The text form of the address.
+     * @return The id, or NONE if the address is not known.
+     */
+    int get(String text)
+    {
+        Integer id = mTextIds.get(text);
+        return (id != null) ? id : NONE;
+    }
+
+    /**
+     * Records a known address.
+     * @param key The numeric form of the address, ip version 0 if none.
+     * @param text The text form of the address.
+     * @param id The id of the address.
+     */
+    void put(Key key, String text, int id)
+    {
+        mTextIds.put(text, id);
+        if (key.ipver != 0)
+        {
+            put(verPort(key.ipver, key.port), key.hi, key.lo, id);
+        }
+        mNextId = Math.max(mNextId, id + 1);
+    }
+
+    /**
+     * Gives a new address the next free id, and records it.
+     * @param key The numeric form of the address, ip version 0 if none.
+     * @param text The text form of the address.
+     * @return The id given to the address.
+     */
+    int add(Key key, String text)
+    {
+        int id = mNextId;
+        put(key, text, id);
+        return id;
+    }
+
+    /**
+     * Gets the numeric form of the source or destination address of a
+     * packet.
+     * @param p The packet.
+     * @param source True for the source address, false for the destination.
+     * @param key Set to the numeric form, with ip version 0 if the packet
+     *        carries the address only as text.
+     */
+    static void getKey(TcpPacket p, boolean source, Key key)
+    {
+        if (p.ipver == 0)
+        {
+            parse(source ? p.src : p.dst, key);
+            return;
+        }
+        key.ipver = p.ipver;
+        key.hi = hi(p, source);
+        key.lo = lo(p, source);
+        key.port = source ? p.srcp : p.dstp;
+    }
+
+    /**
+     * Gets the text form of the source or destination address of a packet,
+     * building it from the numeric form if the packet carries no text.
+     * @param p The packet.
+     * @param source True for the source address, false for the destination.
+     * @return The text form of the address.
+     */
+    static String getText(TcpPacket p, boolean source)
+    {
+        String text = source ? p.src : p.dst;
+        if (text != null)
+        {
+            return text;
+        }
+        int port = source ? p.srcp : p.dstp;
+        if (p.ipver == 6)
+        {
+            return TcpPacket.stringifyAddress(
+                    hi(p, source), lo(p, source), port);
+        }
+        return TcpPacket.stringifyAddress(source ? p.srca : p.dsta, port);
+    }
+
+    /**
+     * Parses the text form of an address, as built by
+     * TcpPacket.stringifyAddress(), to its numeric form.  Text in any other
+     * form, including other ways of writing the same address, is left as
+     * text, so that each numeric address has only one text form.
+     * @param text The text form.
+     * @param key Set to the numeric form, or to ip version 0 if the text
+     *        is not in the expected form.
+     */
+    static void parse(String text, Key key)
+    {
+        key.ipver = 0;
+        key.hi = 0;
+        key.lo = 0;
+        key.port = 0;
+        if (text == null)
+        {
+            return;
+        }
+        int colon = text.lastIndexOf(':');
+        if (colon <= 0 || colon == text.length() - 1)
+        {
+            return;
+        }
+        int port;
+        try
+        {
+            port = Integer.parseInt(text.substring(colon + 1));
+        }
+        catch (NumberFormatException e)
+        {
+            return;
+        }
+        if (port < 0 || port > 0xFFFF)
+        {
+            return;
+        }
+
+        String host = text.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]"))
+        {
+            long[] halves = parseIpv6(host.substring(1, host.length() - 1));
+            if (halves != null && text.equals(TcpPacket.stringifyAddress(
+                    halves[0], halves[1], port)))
+            {
+                key.ipver = 6;
+                key.hi = halves[0];
+                key.lo = halves[1];
+                key.port = port;
+            }
+        }
+        else
+        {
+            long a = parseIpv4(host);
+            if (a != -1 && text.equals(
+                    TcpPacket.stringifyAddress((int)a, port)))
+            {
+                key.ipver = 4;
+                key.lo = a;
+                key.port = port;
+            }
+        }
+    }
+
+    /**
+     * Parses a dotted quad ipv4 address.
+     * @param s The address.
+     * @return The address as an unsigned 32 bit value, or -1 if invalid.
+     */
+    private static long parseIpv4(String s)
+    {
+        String[] parts = s.split("\\.", -1);
+        if (parts.length != 4)
+        {
+            return -1;
+        }
+        long a = 0;
+        for (String part: parts)
+        {
+            int b = parseNumber(part, 10, 3);
+            if (b < 0 || b > 0xFF)
+            {
+                return -1;
+            }
+            a = a << 8 | b;
+        }
+        return a;
+    }
+
+    /**
+     * Parses an ipv6 address, in any of the forms of RFC 4291.
+     * @param s The address, without brackets.
+     * @return The two big endian halves of the address, or null if invalid.
+     */
+    private static long[] parseIpv6(String s)
+    {
+        // an embedded ipv4 address makes up the last two groups
+        int[] groups = new int[8];
+        int ngroups = 8;
+        int dot = s.indexOf('.');
+        if (dot != -1)
+        {
+            int start = s.lastIndexOf(':') + 1;
+            long a = parseIpv4(s.substring(start));
+            if (start == 0 || a == -1)
+            {
+                return null;
+            }
+            groups[6] = (int)(a >>> 16);
+            groups[7] = (int)(a & 0xFFFF);
+            ngroups = 6;
+            s = s.substring(0, start);
+            if (!s.endsWith("::"))
+            {
+                s = s.substring(0, s.length() - 1);
+            }
+        }
+
+        // groups either side of any ::, which stands for the zeros between
+        int gap = s.indexOf("::");
+        if (gap != s.lastIndexOf("::"))
+        {
+            return null;
+        }
+        String[] head = split(gap == -1 ? s : s.substring(0, gap));
+        String[] tail = split(gap == -1 ? "" : s.substring(gap + 2));
+        if (head == null || tail == null ||
+            (gap == -1 && head.length != ngroups) ||
+            (gap != -1 && head.length + tail.length >= ngroups))
+        {
+            return null;
+        }
+        for (int i = 0; i < head.length; ++i)
+        {
+            groups[i] = parseNumber(head[i], 16, 4);
+        }
+        for (int i = 0; i < tail.length; ++i)
+        {
+            groups[ngroups - tail.length + i] = parseNumber(tail[i], 16, 4);
+        }
+
+        long[] halves = new long[2];
+        for (int i = 0; i < 8; ++i)
+        {
+            if (groups[i] < 0)
+            {
+                return null;
+            }
+            halves[i / 4] = halves[i / 4] << 16 | groups[i];
+        }
+        return halves;
+    }
+
+    /**
+     * Splits colon separated groups.
+     * @param s The groups.
+     * @return The groups, none if s is empty, or null if any is empty.
+     */
+    private static String[] split(String s)
+    {
+        if (s.length() == 0)
+        {
+            return new String[0];
+        }
+        String[] parts = s.split(":", -1);
+        for (String part: parts)
+        {
+            if (part.length() == 0)
+            {
+                return null;
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Parses an unsigned number of limited length.
+     * @param s The digits.
+     * @param radix Their radix.
+     * @param maxDigits Most digits allowed.
+     * @return The number, or -1 if invalid.
+     */
+    private static int parseNumber(String s, int radix, int maxDigits)
+    {
+        if (s.length() == 0 || s.length() > maxDigits)
+        {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 0; i < s.length(); ++i)
+        {
+            int d = Character.digit(s.charAt(i), radix);
+            if (d < 0)
+            {
+                return -1;
+            }
+            n = n * radix + d;
+        }
+        return n;
+    }
+
+    private static int verPort(int ipver, int port)
+    {
+        return ipver << 16 | port;
+    }
+
+    private static long hi(TcpPacket p, boolean source)
+    {
+        if (p.ipver == 6)
+        {
+            return source ? p.srca6hi : p.dsta6hi;
+        }
+        return 0;
+    }
+
+    private static long lo(TcpPacket p, boolean source)
+    {
+        if (p.ipver == 6)
+        {
+            return source ? p.srca6lo : p.dsta6lo;
+        }
+        return (source ? p.srca : p.dsta) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Records the id of a numeric address.
+     */
+    private void put(int verPort, long hi, long lo, int id)
+    {
+        int i = slot(verPort, hi, lo);
+        if (mIds[i] == NONE)
+        {
+            mVerPorts[i] = verPort;
+            mHis[i] = hi;
+            mLos[i] = lo;
+            if (++mCount * 2 > mIds.length)
+            {
+                mIds[i] = id;
+                grow();
+                return;
+            }
+        }
+        mIds[i] = id;
+    }
+
+    /**
+     * Finds the slot holding the given address, or the empty slot where
+     * it would go.
+     */
+    private int slot(int verPort, long hi, long lo)
+    {
+        long h = (hi * 31 + lo) * 0x9E3779B97F4A7C15L + verPort;
+        h *= 0x9E3779B97F4A7C15L;
+        int mask = mIds.length - 1;
+        int i = (int)(h >>> 32) & mask;
+        while (mIds[i] != NONE &&
+               (mVerPorts[i] != verPort || mHis[i] != hi || mLos[i] != lo))
+        {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void allocate(int capacity)
+    {
+        mVerPorts = new int[capacity];
+        mHis = new long[capacity];
+        mLos = new long[capacity];
+        mIds = new int[capacity];
+        Arrays.fill(mIds, NONE);
+    }
+
+    private void grow()
+    {
+        int[] verPorts = mVerPorts;
+        long[] his = mHis;
+        long[] los = mLos;
+        int[] ids = mIds;
+        allocate(ids.length * 2);
+        for (int i = 0; i < ids.length; ++i)
+        {
+            if (ids[i] != NONE)
+            {
+                int j = slot(verPorts[i], his[i], los[i]);
+                mVerPorts[j] = verPorts[i];
+                mHis[j] = his[i];
+                mLos[j] = los[i];
+                mIds[j] = ids[i];
+            }
+        }
+    }
+}
@@ -5,34 +5,37 @@
 
 package xmpptrace.store;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
-import javax.swing.ProgressMonitorInputStream;
 import javax.swing.SwingUtilities;
 
-import org.h2.constant.ErrorCode;
 import org.h2.jdbcx.JdbcConnectionPool;
 import org.w3c.dom.Document;
 
+import xmpptrace.action.CaptureStreams;
+import xmpptrace.action.MappedStreamParser;
 import xmpptrace.action.StreamParser;
 import xmpptrace.action.XmppAugur;
-import xmpptrace.action.TcpDumpStreamParser;
-import xmpptrace.action.XmppDumpStreamParser;
 import xmpptrace.model.Address;
+import xmpptrace.model.IntList;
+import xmpptrace.model.PacketSummary;
+import xmpptrace.model.Pair;
+import xmpptrace.model.SessionCreate;
+import xmpptrace.model.StanzaCodec;
 import xmpptrace.model.TcpPacket;
 
 import static xmpptrace.store.DatabaseQuery.*;
@@ -52,14 +55,26 @@ public class Database
     public static final String SETTINGS_TRUE = "true";
     public static final String SETTINGS_FALSE = "false";
     public static final String SETTINGS_XMPP_ONLY = "visible.xmpp-only";
+    public static final String SETTINGS_AUGUR_LAST_UID = "augur.last-uid";
+    public static final String SETTINGS_IMPORT_BATCH_SIZE = "import.batch-size";
+    public static final String SETTINGS_IMPORT_LAZY = "import.lazy";
+    public static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
     private static Database sInstance;
     
     private JdbcConnectionPool mCxnPool;
     private String mDbFileName;
     private boolean mDbFileIsTemp;
     private Object mPacnoLock;
+    private Object mImportLock;
+    private Object mVisibleLock;
+    private VisibleIndex mVisibleIndex;
+    private int mVisibleGeneration;
     private ArrayList<DatabaseListener> mListeners;
+    private ArrayList<VisibilityListener> mVisibilityListeners;
     private boolean mDisableUpdateEvents;
+    private int mImportBatchSize;
+    private boolean mLazyStanzas;
+    private ProgressSink mProgressSink;
 
     /**
      * Definition of a callback interface, used by the iterateOverPackets()
@@ -97,8 +112,16 @@ public class Database
         mDbFileName = null;
         mDbFileIsTemp = false;
         mPacnoLock = new Object();
+        mImportLock = new Object();
+        mVisibleLock = new Object();
+        mVisibleIndex = null;
+        mVisibleGeneration = 0;
         mListeners = new ArrayList<DatabaseListener>();
+        mVisibilityListeners = new ArrayList<VisibilityListener>();
         mDisableUpdateEvents = false;
+        mImportBatchSize = DEFAULT_IMPORT_BATCH_SIZE;
+        mLazyStanzas = false;
+        mProgressSink = ProgressSink.NONE;
         try
         {
             open(null);
@@ -280,6 +303,7 @@ public class Database
         mCxnPool = null;
         mDbFileName = null;
         mDbFileIsTemp = false;
+        invalidateVisibleIndex();
     }
 
     /**
@@ -304,6 +328,40 @@ public class Database
         mListeners.add(l);
     }
 
+    /**
+     * Add a listener for changes to which packets are visible.
+     * @param l The listener to be added.
+     */
+    public void addVisibilityListener(VisibilityListener l)
+    {
+        mVisibilityListeners.add(l);
+    }
+
+    /**
+     * Sets the number of packets inserted per batch, and per transaction,
+     * when importing files.  Larger batches import faster, at the cost of
+     * more memory held by the db driver.
+     * @param size Number of packets per batch (minimum of 1).
+     */
+    public void setImportBatchSize(int size)
+    {
+        mImportBatchSize = Math.max(1, size);
+    }
+
+    /**
+     * Sets whether files are imported lazily.  A lazy import stores only the
+     * packet text and the bounds of the stanzas within it, leaving stanzas
+     * to be parsed when they are first needed (by the views, the augur, or
+     * a search).  This makes the import, and the db, considerably smaller,
+     * at the cost of parsing stanzas each time their packet is fetched.
+     * @param lazy True for lazy imports, false to parse and store stanzas
+     *        at import time.
+     */
+    public void setLazyStanzas(boolean lazy)
+    {
+        mLazyStanzas = lazy;
+    }
+
     /**
      * Creates the xmpptrace schema in a new database.
      */
@@ -328,12 +386,14 @@ public class Database
         cxn.setAutoCommit(true);
         cxn.createStatement().execute(REDUCE_PACKETS);
         cxn.close();
+        invalidateVisibleIndex();
 
         fireDatabaseUpdateEvent();
     }
 
     /**
-     * Creates the xmpptrace schema in a new database.
+     * Verifies the xmpptrace schema of an existing database, and upgrades
+     * it if it was created by an earlier version.
      */
     private void verifySchema() throws SQLException
     {
@@ -342,8 +402,43 @@ public class Database
         cxn.setAutoCommit(true);
         ResultSet rs = cxn.createStatement().executeQuery(VERIFY_SCHEMA);
         if (!rs.next()) throw new SQLException("Db schema not recognized.");
+        rs = cxn.createStatement().executeQuery(VERIFY_ADDRESS_IDS);
+        if (!rs.next())
+        {
+            cxn.createStatement().execute(MIGRATE_ADDRESS_IDS);
+            parseAddresses(cxn);
+        }
+        cxn.createStatement().execute(UPGRADE_SCHEMA);
         cxn.close();
     }
+
+    /**
+     * Fills in the numeric forms of addresses which have only their text,
+     * as do those of a database migrated from an earlier version.
+     * @param cxn Connection to the database.
+     * @throws SQLException On failure to operate on the database.
+     */
+    private void parseAddresses(java.sql.Connection cxn) throws SQLException
+    {
+        ResultSet rs = cxn.createStatement().executeQuery(
+                FETCH_UNPARSED_ADDRESSES);
+        PreparedStatement ps = cxn.prepareStatement(UPDATE_ADDRESS_NUMBERS);
+        AddressIds.Key key = new AddressIds.Key();
+        while (rs.next())
+        {
+            AddressIds.parse(rs.getString(2), key);
+            if (key.ipver != 0)
+            {
+                ps.setInt(1, key.ipver);
+                ps.setLong(2, key.hi);
+                ps.setLong(3, key.lo);
+                ps.setInt(4, key.port);
+                ps.setInt(5, rs.getInt(1));
+                ps.addBatch();
+            }
+        }
+        ps.executeBatch();
+    }
     
     /**
      * Update the given address in the addresses table, to have the given
@@ -402,7 +497,187 @@ public class Database
 
         return actor;
     }
-    
+
+    /**
+     * Update the given addresses in the addresses table, to have the given
+     * actor names, in a single transaction.  The actors table is then
+     * brought up to date once, rather than once per address.
+     * @param actors Map of address to new actor name.
+     */
+    public void setAddressActors(Map<String, String> actors)
+    {
+        if (actors.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            cxn.setAutoCommit(false);
+            try
+            {
+                PreparedStatement ps = cxn.prepareStatement(
+                        UPDATE_ADDRESS_ACTOR);
+                for (Map.Entry<String, String> e: actors.entrySet())
+                {
+                    ps.setString(1, e.getValue());
+                    ps.setString(2, e.getKey());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                cxn.commit();
+            }
+            finally
+            {
+                cxn.rollback();
+                cxn.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+
+        updateActorTable();
+    }
+
+    /**
+     * Fetches what the augur found in the packets it has read so far, so 
+     * that it need only read packets imported since.
+     * @param clientServices Map to which the service address of each client
+     *        actor is put.
+     * @param boshSessions Map to which the client addresses of each BOSH
+     *        session id are added, in the order they were first seen.
+     * @param sessionCreates List to which session creations are added, in
+     *        the order they were sent.
+     * @return The uid of the last packet read by the augur, or 0 if it has
+     *         read none.
+     */
+    public int fetchAugurState(
+            Map<String, String> clientServices,
+            Map<String, ArrayList<String>> boshSessions,
+            List<SessionCreate> sessionCreates)
+    {
+        int lastUid = 0;
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            Statement s = cxn.createStatement();
+            
+            ResultSet rs = s.executeQuery(FETCH_AUGUR_CLIENT_SERVICES);
+            while (rs.next())
+            {
+                clientServices.put(rs.getString(1), rs.getString(2));
+            }
+            
+            rs = s.executeQuery(FETCH_AUGUR_BOSH_SESSIONS);
+            while (rs.next())
+            {
+                String sessionid = rs.getString(1);
+                ArrayList<String> addresses = boshSessions.get(sessionid);
+                if (addresses == null)
+                {
+                    addresses = new ArrayList<String>();
+                    boshSessions.put(sessionid, addresses);
+                }
+                addresses.add(rs.getString(2));
+            }
+            
+            rs = s.executeQuery(FETCH_AUGUR_SESSION_CREATES);
+            while (rs.next())
+            {
+                sessionCreates.add(new SessionCreate(
+                        rs.getString(1), rs.getString(2), rs.getString(3)));
+            }
+            
+            PreparedStatement ps = cxn.prepareStatement(FETCH_SETTING);
+            ps.setString(1, SETTINGS_AUGUR_LAST_UID);
+            rs = ps.executeQuery();
+            if (rs.next())
+            {
+                lastUid = Integer.parseInt(rs.getString(1));
+            }
+            cxn.close();
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+        return lastUid;
+    }
+
+    /**
+     * Adds what the augur has found in newly read packets to what it found
+     * before, and records the uid of the last packet it has read, all in
+     * a single transaction.
+     * @param lastUid The uid of the last packet read by the augur.
+     * @param clientServices Client actors whose service address has been
+     *        found, or found to have changed, and the service address.
+     * @param boshSessions BOSH session ids, and client addresses newly
+     *        seen to use them, in the order seen.
+     * @param sessionCreates Newly seen session creations, in the order
+     *        they were sent.
+     */
+    public void saveAugurState(
+            int lastUid,
+            Map<String, String> clientServices,
+            List<Pair<String, String>> boshSessions,
+            List<SessionCreate> sessionCreates)
+    {
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            cxn.setAutoCommit(false);
+            try
+            {
+                PreparedStatement ps = cxn.prepareStatement(
+                        MERGE_AUGUR_CLIENT_SERVICE);
+                for (Map.Entry<String, String> e: clientServices.entrySet())
+                {
+                    ps.setString(1, e.getKey());
+                    ps.setString(2, e.getValue());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                
+                ps = cxn.prepareStatement(INSERT_AUGUR_BOSH_SESSION);
+                for (Pair<String, String> p: boshSessions)
+                {
+                    ps.setString(1, p.first);
+                    ps.setString(2, p.second);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                
+                ps = cxn.prepareStatement(INSERT_AUGUR_SESSION_CREATE);
+                for (SessionCreate sc: sessionCreates)
+                {
+                    ps.setString(1, sc.sender);
+                    ps.setString(2, sc.svcAddress);
+                    ps.setString(3, sc.jid);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                
+                ps = cxn.prepareStatement(MERGE_SETTING);
+                ps.setString(1, SETTINGS_AUGUR_LAST_UID);
+                ps.setString(2, String.valueOf(lastUid));
+                ps.executeUpdate();
+                cxn.commit();
+            }
+            finally
+            {
+                cxn.rollback();
+                cxn.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Update the given address in the addresses table, to have the given
      * visibility flag value.
@@ -427,6 +702,16 @@ public class Database
             e.printStackTrace();
         }
 
+        // the visible packets change only by those of the address
+        synchronized (mVisibleLock)
+        {
+            if (mVisibleIndex != null)
+            {
+                fireVisibilityChangeEvent(
+                        mVisibleIndex.setAddressVisible(ip, flag));
+            }
+        }
+
         updateActorTable();
     }
     
@@ -505,6 +790,18 @@ public class Database
             e.printStackTrace();
         }
 
+        if (name.equals(SETTINGS_XMPP_ONLY))
+        {
+            synchronized (mVisibleLock)
+            {
+                if (mVisibleIndex != null)
+                {
+                    fireVisibilityChangeEvent(mVisibleIndex.setXmppOnly(
+                            !SETTINGS_FALSE.equals(value)));
+                }
+            }
+        }
+
         fireDatabaseUpdateEvent();
     }    
     
@@ -634,43 +931,174 @@ public class Database
     }
     
     /**
-     * Reads xmppdump formatted data from the given file, and loads it into the
-     * embedded database.  Does not clear any pre-existing contents.
+     * Reads tcpdump, pcapng or xmppdump formatted data from the given file,
+     * which may be gzip, xz or zstd compressed, and loads it into the
+     * embedded database, on a background thread.  Actors are then
+     * identified, and listeners notified.  Does not clear any pre-existing
+     * contents.
      * @param f File to be loaded.
      */
     public void loadFromFile(final File f)
     {
-        try
+        new Thread() 
         {
-            // funnel file reads through a progress monitor
-            final ProgressMonitorInputStream pmis = new ProgressMonitorInputStream(
-                    xmpptrace.view.XmppTraceFrame.getInstance(), 
-                    "Reading " + f.getName() + "...",
-                    new FileInputStream(f));     
-            pmis.getProgressMonitor().setMillisToPopup(0);
-
-            // do the file loading on background thread so progmon will show
-            new Thread() 
+            public void run()
             {
-                public void run()
+                try
                 {
-                    // create a parser on an input stream from the file
-                    if (f.getName().endsWith(".pcap"))
-                    {
-                        Database.this.readPacketsFromStream(
-                        		new TcpDumpStreamParser(pmis));
-                    }
-                    else
-                    {
-                        Database.this.readPacketsFromStream(
-                        		new XmppDumpStreamParser(pmis));
-                    }
+                    importFile(f);
+                    analyzePackets();
+                }
+                catch (InterruptedIOException e)
+                {
+                    // ok, user simply decided to cancel the load
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
                 }
-            }.start();
+            }
+        }.start();
+    }
+
+    /**
+     * Reads tcpdump, pcapng or xmppdump formatted data from the given file,
+     * which may be gzip, xz or zstd compressed, and inserts its packets to
+     * the embedded database.  This runs synchronously on the caller's
+     * thread, reporting progress to the progress sink.  The packets are not
+     * analyzed, nor listeners notified, until analyzePackets() is called,
+     * so several files may be imported before doing so once.
+     * @param f File to be imported.
+     * @throws InterruptedIOException If the progress sink cancelled the
+     *         import, in which case packets read so far are kept.
+     * @throws IOException If the file cannot be read or parsed.
+     * @throws SQLException On failure to operate on the database.
+     */
+    public void importFile(File f) throws IOException, SQLException
+    {
+        ProgressSink sink = mProgressSink;
+        String note = "Reading " + f.getName() + "...";
+
+        // pcap and pcapng files are recognised by their magic number,
+        // and memory mapped, so progress follows the parser
+        MappedStreamParser mapped = MappedStreamParser.open(f);
+        if (mapped != null)
+        {
+            sink.begin(note, mapped.getSize() >>> 10);
+            try
+            {
+                insertPackets(new ProgressStreamParser(mapped, sink));
+            }
+            finally
+            {
+                mapped.close();
+                sink.end();
+            }
+            return;
         }
-        catch (IOException e)
+
+        // otherwise progress follows the file as read, even if it is
+        // decompressed as it is read.  closing the parser closes the
+        // decompressed stream, which stops any decompression threads, as
+        // well as the file
+        sink.begin(note, f.length() >>> 10);
+        InputStream is = new ProgressInputStream(new FileInputStream(f), sink);
+        StreamParser parser = null;
+        try
         {
-            e.printStackTrace();
+            parser = CaptureStreams.createParser(is);
+            insertPackets(parser);
+        }
+        finally
+        {
+            if (parser != null)
+            {
+                parser.close();
+            }
+            is.close();
+            sink.end();
+        }
+    }
+
+    /**
+     * Analyzes the packets in the database, once new packets have been
+     * imported, identifying the actors to which addresses belong, and
+     * re-sequencing the packets.  Listeners are then notified.  Progress is
+     * reported to the progress sink.
+     */
+    public void analyzePackets()
+    {
+        // consult the augur, and wait quietly.
+        mDisableUpdateEvents = true;
+        new XmppAugur().takeAuspices(mProgressSink);
+        mDisableUpdateEvents = false;
+    
+        // reset the pacno fields of all packets in the database
+        reSequence();
+
+        fireDatabaseUpdateEvent();                    
+    }
+
+    /**
+     * Sets the sink to which progress of imports and analysis is reported.
+     * @param sink The progress sink, or null for none.
+     */
+    public void setProgressSink(ProgressSink sink)
+    {
+        mProgressSink = (sink == null) ? ProgressSink.NONE : sink;
+    }
+
+    /**
+     * Wraps a MappedStreamParser so that the file offset reached by
+     * the parser is reported to a progress sink, in the same manner as a
+     * ProgressInputStream does for stream based parsers.  Cancelling
+     * the sink causes an InterruptedIOException on the next read.
+     */
+    private static class ProgressStreamParser implements StreamParser
+    {
+        private MappedStreamParser mParser;
+        private ProgressSink mSink;
+        
+        public ProgressStreamParser(
+                MappedStreamParser parser, ProgressSink sink)
+        {
+            mParser = parser;
+            mSink = sink;
+        }
+        
+        public TcpPacket getNextPacket() throws IOException
+        {
+            TcpPacket p = getNextFrame();
+            if (p != null)
+            {
+                decodePacket(p);
+            }
+            return p;
+        }
+        
+        public void decodePacket(TcpPacket p)
+        {
+            mParser.decodePacket(p);
+        }
+        
+        public void close() throws IOException
+        {
+            mParser.close();
+        }
+        
+        public TcpPacket getNextFrame() throws IOException
+        {
+            if (mSink.isCanceled())
+            {
+                mParser.close();
+                throw new InterruptedIOException("progress");
+            }
+            TcpPacket p = mParser.getNextFrame();
+            if (p != null)
+            {
+                mSink.setProgress(mParser.getPosition() >>> 10);
+            }
+            return p;
         }
     }
 
@@ -678,135 +1106,223 @@ public class Database
      * Private helper function to do the work of reading packets from a stream
      * and inserting to the database.  This is written with the intent that
      * this be executed on a worker thread, not on the Swing eventing thread.
+     * Packets are decoded in parallel by an ImportPipeline, and inserted
+     * here in their original stream order.
      * @param parser The parse from which to read packets.
+     * @throws InterruptedIOException If the parser was cancelled, in which
+     *         case packets read so far are kept.
+     * @throws IOException If the parser failed.
+     * @throws SQLException On failure to operate on the database.
      */
-    private void readPacketsFromStream(StreamParser parser)
+    private void insertPackets(StreamParser parser)
+            throws IOException, SQLException
     {
-       try
-       {
-            // acquire connection to embedded database
+        // imports are made one at a time, as each gives ids to the new
+        // addresses it finds
+        synchronized (mImportLock)
+        {
+            // acquire connection to embedded database, packets are inserted
+            // in batches, and committed once per batch
             java.sql.Connection cxn = mCxnPool.getConnection();
-            cxn.setAutoCommit(true);
-            PreparedStatement psAddress = cxn.prepareStatement(INSERT_ADDRESS);         
+            cxn.setAutoCommit(false);
+            PreparedStatement psAddress = cxn.prepareStatement(MERGE_ADDRESS);         
             PreparedStatement psPacket = cxn.prepareStatement(INSERT_PACKET);  
-            
-            // remember addresses we've already added
-            ArrayList<String> addressCache = new ArrayList<String>();
-            
+        
+            // ids of all addresses, new ones are given ids as they are seen
+            AddressIds addressIds = fetchAddressIds(cxn);
+        
             // iterate over all packets in file, parse and insert to db
-            TcpPacket p = parser.getNextPacket();
-            while (p != null)
+            boolean lazy = mLazyStanzas;
+            ImportPipeline pipeline = new ImportPipeline(parser, lazy);
+            int batchSize = mImportBatchSize;
+            int batched = 0;
+            try
             {
-                // insert source address
-                if (!addressCache.contains(p.src))
+                Pair<TcpPacket, byte[]> item = pipeline.take();
+                while (item != null)
                 {
-                    psAddress.setString(1, p.src);
-                    psAddress.setString(2, p.src);
-                    psAddress.setBoolean(3, false);
-                    try
+                    TcpPacket p = item.first;
+                
+                    // find source and destination addresses, adding new ones
+                    int srcId = getAddressId(addressIds, psAddress, p, true);
+                    int dstId = getAddressId(addressIds, psAddress, p, false);
+                
+                    // insert packet (leave pacno null, that is set at the end)
+                    psPacket.setTimestamp(1, p.time);
+                    psPacket.setInt(2, srcId);
+                    psPacket.setInt(3, dstId);
+                    psPacket.setLong(4, p.tcpflags);
+                    psPacket.setLong(5, p.seqno);
+                    psPacket.setLong(6, p.ackno);
+                    psPacket.setInt(7, p.pktlen);
+                    psPacket.setBoolean(8, p.readable);
+                
+                    // store the original packet text string
+                    if (p.data != null && p.data.length() > 0)
                     {
-                        psAddress.executeUpdate();
+                        psPacket.setString(9, p.data);
                     }
-                    catch (SQLException e)
+                    else
                     {
-                        // duplicate keys are expected
-                        if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1)
-                        {
-                            e.printStackTrace();
-                        }
+                        psPacket.setNull(9, Types.VARCHAR);
                     }
-                    addressCache.add(p.src);
-                }
                 
-                // insert destination address
-                if (!addressCache.contains(p.dst))
-                {
-                    psAddress.setString(1, p.dst);
-                    psAddress.setString(2, p.dst);
-                    psAddress.setBoolean(3, false);
-                    try
+                    // store the stanzas, as encoded by the pipeline
+                    if (item.second != null)
                     {
-                        psAddress.executeUpdate();
+                        psPacket.setBytes(10, item.second);
                     }
-                    catch (SQLException e)
+                    else
                     {
-                        // duplicate keys are expected
-                        if (e.getErrorCode() != ErrorCode.DUPLICATE_KEY_1)
-                        {
-                            e.printStackTrace();
-                        }
+                        psPacket.setNull(10, Types.BINARY);
                     }
-                    addressCache.add(p.dst);
-                }
                 
-                // insert packet (leave pacno null, that is set at the end)
-                psPacket.setTimestamp(1, p.time);
-                psPacket.setString(2, p.src);
-                psPacket.setString(3, p.dst);
-                psPacket.setLong(4, p.tcpflags);
-                psPacket.setLong(5, p.seqno);
-                psPacket.setLong(6, p.ackno);
-                psPacket.setInt(7, p.pktlen);
-                psPacket.setBoolean(8, p.readable);
+                    // or, for a lazy import, where to find them in the text
+                    byte[] bounds = lazy ? 
+                            StanzaCodec.encodeBounds(p.stanzaBounds) : null;
+                    if (bounds != null)
+                    {
+                        psPacket.setBytes(11, bounds);
+                    }
+                    else
+                    {
+                        psPacket.setNull(11, Types.BINARY);
+                    }
                 
-                // store the original packet text string
-                if (p.data != null && p.data.length() > 0)
-                {
-                    psPacket.setString(9, p.data);
-                }
-                else
-                {
-                    psPacket.setNull(9, Types.VARCHAR);
-                }
+                    // add the insertion to the batch, flush if batch is full
+                    psPacket.addBatch();
+                    if (++batched >= batchSize)
+                    {
+                        flushImportBatch(cxn, psAddress, psPacket);
+                        batched = 0;
+                    }
                 
-                // serialize the array of stanza dom documents
-                if (p.stanzas != null && p.stanzas.size() > 0)
-                {
-                    ByteArrayOutputStream aos = new ByteArrayOutputStream();
-                    ObjectOutputStream oos = new ObjectOutputStream(aos);
-                    oos.writeObject(p.stanzas);
-                    psPacket.setBytes(10, aos.toByteArray());
+                    // take next decoded packet from the pipeline
+                    item = pipeline.take();
                 }
-                else
-                {
-                    psPacket.setNull(10, Types.BINARY);
-                }
-                
-                // execute the insertion
-                psPacket.executeUpdate();
-                
-                // parse next packet from the stream
-                p = parser.getNextPacket();
+                flushImportBatch(cxn, psAddress, psPacket);
             }
-            cxn.close();
-        
-            // consult the augur, and wait quietly.
-            mDisableUpdateEvents = true;
-            new XmppAugur().takeAuspices();
-            mDisableUpdateEvents = false;
-        
-            // reset the pacno fields of all packets in the database
-            reSequence();
-
-            fireDatabaseUpdateEvent();                    
-       }
-       catch (InterruptedIOException e)
-       {
-           // ok, user simply decided to cancel the load
-       }
-       catch (Exception e)
-       {
-           e.printStackTrace();
-       }
+            catch (InterruptedIOException e)
+            {
+                // keep what was read before the user cancelled
+                flushImportBatch(cxn, psAddress, psPacket);
+                throw e;
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("interrupted");
+            }
+            finally
+            {
+                // discard anything left uncommitted by a failure
+                pipeline.close();
+                cxn.rollback();
+                cxn.close();
+            }
+        }
     }
-        
+
+    /**
+     * Loads the registry of known addresses, from which an import finds
+     * the ids of the addresses of its packets.
+     * @param cxn The import connection.
+     * @return The registry.
+     * @throws SQLException On failure to operate on the database.
+     */
+    private AddressIds fetchAddressIds(java.sql.Connection cxn)
+            throws SQLException
+    {
+        AddressIds ids = new AddressIds();
+        AddressIds.Key key = new AddressIds.Key();
+        ResultSet rs = cxn.createStatement().executeQuery(FETCH_ADDRESS_IDS);
+        while (rs.next())
+        {
+            key.ipver = rs.getInt(3);
+            key.hi = rs.getLong(4);
+            key.lo = rs.getLong(5);
+            key.port = rs.getInt(6);
+            ids.put(key, rs.getString(2), rs.getInt(1));
+        }
+        return ids;
+    }
+
+    /**
+     * Gets the id of the source or destination address of a packet being
+     * imported.  An address not yet known is given a new id, and added to
+     * the address batch of the import, which is the only time its text
+     * need be built.
+     * @param ids Registry of known addresses.
+     * @param psAddress The address merge statement.
+     * @param p The packet.
+     * @param source True for the source address, false for the destination.
+     * @return The id of the address.
+     * @throws SQLException On failure to operate on the database.
+     */
+    private int getAddressId(
+            AddressIds ids,
+            PreparedStatement psAddress,
+            TcpPacket p,
+            boolean source) throws SQLException
+    {
+        int id = ids.get(p, source);
+        if (id != AddressIds.NONE)
+        {
+            return id;
+        }
+
+        // the address may be known by its text, if not by number
+        String ip = AddressIds.getText(p, source);
+        AddressIds.Key key = new AddressIds.Key();
+        AddressIds.getKey(p, source, key);
+        id = ids.get(ip);
+        if (id != AddressIds.NONE)
+        {
+            ids.put(key, ip, id);
+            return id;
+        }
+
+        id = ids.add(key, ip);
+        psAddress.setInt(1, id);
+        psAddress.setString(2, ip);
+        psAddress.setInt(3, key.ipver);
+        psAddress.setLong(4, key.hi);
+        psAddress.setLong(5, key.lo);
+        psAddress.setInt(6, key.port);
+        psAddress.setString(7, ip);
+        psAddress.setBoolean(8, false);
+        psAddress.addBatch();
+        return id;
+    }
+    
+    /**
+     * Executes the pending address and packet batches of an import, and
+     * commits them.  Addresses go first, as packets reference them.
+     * @param cxn The import connection.
+     * @param psAddress The address merge statement.
+     * @param psPacket The packet insertion statement.
+     * @throws SQLException On failure to operate on the database.
+     */
+    private void flushImportBatch(
+            java.sql.Connection cxn, 
+            PreparedStatement psAddress, 
+            PreparedStatement psPacket) throws SQLException
+    {
+        psAddress.executeBatch();
+        psPacket.executeBatch();
+        cxn.commit();
+    }
+    
     /**
      * Once a stream of new packets have been loaded to the database, we
      * need to re-sequence the pacno field, as that is used to represent
-     * the chronological sequencing of all packets in the table.  This
-     * is done by iterating over the set of all packets, ordered by
-     * time (then by uid), and updating the pacno field of each row to
-     * be one greater than the previous.
+     * the chronological sequencing of all packets in the table.  Each
+     * packet's pacno is its position among all packets ordered by time 
+     * (then by uid), which is set for all rows by a single statement.
+     * 
+     * New packets have no pacno yet.  When they all sort after those
+     * already numbered, as they do when a later capture is appended, and
+     * those are numbered from 0 without gaps, only the new packets are
+     * numbered, following on from the rest.
      */
     private void reSequence()
     {
@@ -818,23 +1334,15 @@ public class Database
                 // acquire connection to embedded database
                 java.sql.Connection cxn = mCxnPool.getConnection();
                 cxn.setAutoCommit(true);
-                
-                // we want the result set to be scrollable and updatable 
-                Statement s = cxn.createStatement(
-                        ResultSet.TYPE_SCROLL_INSENSITIVE, 
-                        ResultSet.CONCUR_UPDATABLE);
-
-                // we want pacno to increase with time, and then by uid
-                ResultSet rs = s.executeQuery(SELECT_ALL_UID_AND_PACNO);
-                
-                // iterate over result set, and update the pacno field of each row
-                int i = 0;
-                while (rs.next())
+                try
                 {
-                    rs.updateInt(2, i++);
-                    rs.updateRow();
+                    reSequence(cxn);
+                }
+                finally
+                {
+                    cxn.close();
+                    invalidateVisibleIndex();
                 }
-                cxn.close();
             }
             catch (SQLException e)
             {
@@ -843,12 +1351,64 @@ public class Database
         }   
     }
     
+    /**
+     * Re-sequences the pacno field, see reSequence().
+     * @param cxn Connection on which to do so.
+     * @throws SQLException On failure to operate on the database.
+     */
+    private void reSequence(java.sql.Connection cxn) throws SQLException
+    {
+        Statement s = cxn.createStatement();
+        
+        // how many packets are numbered, and whether without gaps
+        ResultSet rs = s.executeQuery(SELECT_PACNO_RANGE);
+        rs.next();
+        int numbered = rs.getInt(1);
+        int minPacno = rs.getInt(2);
+        int maxPacno = rs.getInt(3);
+        boolean contiguous = (numbered == 0) || 
+                (minPacno == 0 && maxPacno == numbered - 1);
+        
+        // how many packets are not, and the earliest of them
+        rs = s.executeQuery(SELECT_UNNUMBERED_RANGE);
+        rs.next();
+        int unnumbered = rs.getInt(1);
+        Timestamp firstUnnumbered = rs.getTimestamp(2);
+        if (unnumbered == 0 && contiguous)
+        {
+            return;
+        }
+        
+        // new packets sort after the others if none is earlier than the
+        // last of them, as on equal times the later uid sorts last
+        boolean append = contiguous;
+        if (append && numbered > 0)
+        {
+            PreparedStatement ps = cxn.prepareStatement(SELECT_PACNO_TIME);
+            ps.setInt(1, maxPacno);
+            rs = ps.executeQuery();
+            append = rs.next() && 
+                    !firstUnnumbered.before(rs.getTimestamp(1));
+        }
+        
+        if (append)
+        {
+            PreparedStatement ps = cxn.prepareStatement(APPEND_PACNOS);
+            ps.setInt(1, numbered);
+            ps.executeUpdate();
+        }
+        else
+        {
+            s.executeUpdate(RESEQUENCE_PACNOS);
+        }
+    }
+    
     /**
      * Sequentially and synchronously invokes onDatabaseUpdate() on listeners.
      */
     private void fireDatabaseUpdateEvent()
     {
-        if (mDisableUpdateEvents) return; 
+        if (mDisableUpdateEvents || mListeners.isEmpty()) return; 
         SwingUtilities.invokeLater(new Runnable() {
             public void run()
             {
@@ -860,28 +1420,94 @@ public class Database
         });
     }
 
+    /**
+     * Posts a change to the visible packets to visibility listeners.
+     * @param delta The change.
+     */
+    private void fireVisibilityChangeEvent(final VisibleIndex.Delta delta)
+    {
+        if (mDisableUpdateEvents || mVisibilityListeners.isEmpty() ||
+            delta.isEmpty())
+        {
+            return;
+        }
+        final int generation = mVisibleGeneration;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                for (VisibilityListener l: mVisibilityListeners)
+                {
+                    l.onVisibilityChange(
+                            generation, delta.shown, delta.hidden);
+                }                
+            }
+        });
+    }
+
+    /**
+     * Drops the index of visible packets, once packets have been
+     * renumbered or deleted, so that it is loaded afresh when next needed.
+     * This begins a new generation of visible packets.
+     */
+    private void invalidateVisibleIndex()
+    {
+        synchronized (mVisibleLock)
+        {
+            mVisibleIndex = null;
+            ++mVisibleGeneration;
+        }
+    }
+
+    /**
+     * Returns the generation of the visible packets.  This changes
+     * whenever packets are renumbered or deleted, after which a list of
+     * visible packets must be fetched afresh, rather than updated by
+     * the changes given to visibility listeners.
+     * @return The generation of the visible packets.
+     */
+    public int getVisibleGeneration()
+    {
+        synchronized (mVisibleLock)
+        {
+            return mVisibleGeneration;
+        }
+    }
+
     /**
      * Fetches the full set of pacno values, in ascending order, of packets
-     * which are currently visible.  Inserts these to the given list.
+     * which are currently visible.  Inserts these to the given list.  They
+     * are found from an index of visible packets, which is loaded from the
+     * db when first needed, and then kept up to date as the visibility of
+     * addresses changes.
      * @param list The list to which pacno values should be inserted.
+     * @return The generation of the visible packets listed.
      */
-    public void getVisiblePackets(ArrayList<Integer> list)
+    public int getVisiblePackets(IntList list)
     {
-        try
+        synchronized (mVisibleLock)
         {
-            java.sql.Connection cxn = mCxnPool.getConnection();
-            Statement s = cxn.createStatement();
-            ResultSet rs = s.executeQuery(SELECT_VISIBLE_PACKETS);
-            while (rs.next())
+            try
             {
-                list.add(rs.getInt(1));
+                if (mVisibleIndex == null)
+                {
+                    java.sql.Connection cxn = mCxnPool.getConnection();
+                    try
+                    {
+                        mVisibleIndex = VisibleIndex.load(cxn);
+                    }
+                    finally
+                    {
+                        cxn.close();
+                    }
+                }
+                mVisibleIndex.getVisible(list);
             }
-            cxn.close();
+            catch (SQLException e)
+            {
+                e.printStackTrace();
+            }
+            return mVisibleGeneration;
         }
-        catch (SQLException e)
-        {
-            e.printStackTrace();
-        }        
     }
 
     /**
@@ -912,6 +1538,63 @@ public class Database
         return p;
     }
 
+    /**
+     * Retrieves summaries of the packets with the given pacnos from the
+     * database, in a single query.  Only the start of the text of each
+     * packet is read, and none of its stanzas.  Pacnos with no packet are
+     * passed over.
+     * @param pacnos The pacnos of the packets to fetch.
+     * @return The packet summaries, in ascending order of pacno.
+     */
+    public ArrayList<PacketSummary> getPacketSummaries(int[] pacnos)
+    {
+        ArrayList<PacketSummary> summaries = new ArrayList<PacketSummary>();
+        if (pacnos.length == 0)
+        {
+            return summaries;
+        }
+        
+        Object[] param = new Object[pacnos.length];
+        for (int i = 0; i < pacnos.length; ++i)
+        {
+            param[i] = pacnos[i];
+        }
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            PreparedStatement ps = cxn.prepareStatement(
+                    FETCH_PACKET_SUMMARIES_BY_PACNOS);
+            ps.setInt(1, PacketSummary.TEXT_LENGTH);
+            ps.setObject(2, param);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next())
+            {
+                PacketSummary s = new PacketSummary();
+                s.pacno = rs.getInt(1);
+                s.time = rs.getTimestamp(2);
+                s.src = rs.getString(3);
+                s.dst = rs.getString(4);
+                s.tcpflags = rs.getByte(5);
+                s.seqno = rs.getLong(6);
+                s.ackno = rs.getLong(7);
+                s.pktlen = rs.getInt(8);
+                s.text = rs.getString(9);
+                if (s.text == null)
+                {
+                    s.text = new String();
+                }
+                summaries.add(s);
+            }
+            cxn.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        
+        return summaries;
+    }
+
     /**
      * Returns a count of all packets in the database.
      * @return Total number of packets in the packets table.
@@ -965,18 +1648,116 @@ public class Database
         }
     }
     
+    /**
+     * Retrieves and iterates over the packets with uids in the given range,
+     * in uid order, that is, the order in which they were imported.  For
+     * each packet fetched, this will invoke the given callback object's 
+     * processPacket() method.  Ranges may be iterated over in parallel, 
+     * each on a connection of its own.
+     * @param firstUid The first uid of the range.
+     * @param lastUid The last uid of the range, inclusive.
+     * @param iter The iterator pointing to the current packet in the resuts.
+     */
+    public void iterateOverPackets(
+            int firstUid, int lastUid, XmppPacketFetchCallback iter)
+    {
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            PreparedStatement ps = cxn.prepareStatement(
+                    FETCH_PACKETS_BY_UID_RANGE);
+            ps.setInt(1, firstUid);
+            ps.setInt(2, lastUid);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next())
+            {
+                iter.processPacket(packetFromResultSet(rs));
+            }
+            cxn.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Fetches the lowest and highest uids of the packets in the database,
+     * by which they may be divided into ranges for iterateOverPackets().
+     * @return The first and last uids, or null if there are no packets.
+     */
+    public Pair<Integer, Integer> getUidRange()
+    {
+        Pair<Integer, Integer> range = null;
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            PreparedStatement ps = cxn.prepareStatement(GET_UID_RANGE);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next() && rs.getObject(1) != null)
+            {
+                range = new Pair<Integer, Integer>();
+                range.first = rs.getInt(1);
+                range.second = rs.getInt(2);
+            }
+            cxn.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return range;
+    }
+    
+    /**
+     * Fetches the times of the earliest and latest packets in the database.
+     * @return The first and last packet times, or null if there are no 
+     * packets.
+     */
+    public Pair<Timestamp, Timestamp> getTimeRange()
+    {
+        Pair<Timestamp, Timestamp> range = null;
+        try
+        {
+            java.sql.Connection cxn = mCxnPool.getConnection();
+            PreparedStatement ps = cxn.prepareStatement(GET_TIME_RANGE);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next() && rs.getObject(1) != null)
+            {
+                range = new Pair<Timestamp, Timestamp>();
+                range.first = rs.getTimestamp(1);
+                range.second = rs.getTimestamp(2);
+            }
+            cxn.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return range;
+    }
+    
+    /**
+     * Encodes a list of stanza dom documents for storage in the
+     * stanzas column of the packets table.  Safe to invoke from any thread.
+     * @param stanzas The stanzas to be encoded.
+     * @return The encoded stanzas, or null if there are none.
+     */
+    static byte[] serializeStanzas(ArrayList<Document> stanzas) 
+    {
+        return StanzaCodec.encode(stanzas);
+    }
+    
     /**
      * Helper function to extract fields from a ResultSet row
      * and use them to construct an TcpPacket object.
      * @param rs A result set positioned at the row of interest.
      * @return A new TcpPacket object instantiated from the row data.
      * @throws SQLException On failure to operate on the database.
-     * @throws IOException On failure to deserialize the packet.
-     * @throws ClassNotFoundException On failure to deserialize the packet.
+     * @throws IOException On failure to decode the stanza bounds.
      */
-    @SuppressWarnings("unchecked")
     private TcpPacket packetFromResultSet(ResultSet rs) 
-            throws SQLException, IOException, ClassNotFoundException
+            throws SQLException, IOException
     {
         TcpPacket p = new TcpPacket();
 
@@ -995,17 +1776,9 @@ public class Database
             p.data = new String();
         }
         
-        byte[] ba = rs.getBytes(11);
-        if (ba != null)
-        {
-            ByteArrayInputStream ais = new ByteArrayInputStream(ba);    
-            ObjectInputStream ois = new ObjectInputStream(ais);
-            Object obj = ois.readObject();
-            if (obj instanceof ArrayList<?>)
-            {
-                p.stanzas = (ArrayList<Document>)obj;
-            }
-        }
+        // stanzas are left encoded, or unparsed, see TcpPacket.getStanzas()
+        p.encodedStanzas = rs.getBytes(11);
+        p.stanzaBounds = StanzaCodec.decodeBounds(rs.getBytes(12));
         
         return p;
     }
@@ -18,6 +18,52 @@ public interface DatabaseQuery
             "FROM information_schema.tables " +
             "WHERE table_name='PACKETS';";
        
+    // tables in which the augur keeps what it has found so far, so that
+    // only packets imported since need to be read when it is next consulted
+    static public final String AUGUR_SCHEMA =
+        "CREATE TABLE IF NOT EXISTS augur_client_services (" +
+            "actor VARCHAR(255)," +
+            "ip VARCHAR(255)," +
+            "PRIMARY KEY (actor));" +
+            "" +
+        "CREATE TABLE IF NOT EXISTS augur_bosh_sessions (" +
+            "uid INTEGER AUTO_INCREMENT NOT NULL," +
+            "sessionid VARCHAR(255)," +
+            "ip VARCHAR(255)," +
+            "PRIMARY KEY (uid));" +
+            "" +
+        "CREATE TABLE IF NOT EXISTS augur_session_creates (" +
+            "uid INTEGER AUTO_INCREMENT NOT NULL," +
+            "sender VARCHAR(255)," +
+            "svc_address VARCHAR(255)," +
+            "jid VARCHAR(255)," +
+            "PRIMARY KEY (uid));";
+
+    // addresses are referred to from packets by id, each is kept as text
+    // for display, and in numeric form (ipver 0 if known only as text)
+    static public final String ADDRESSES_SCHEMA =
+        "CREATE TABLE IF NOT EXISTS addresses (" +
+            "id INTEGER AUTO_INCREMENT NOT NULL," +
+            "ip VARCHAR(255) NOT NULL," +
+            "ipver TINYINT NOT NULL," +
+            "addr_hi BIGINT NOT NULL," +
+            "addr_lo BIGINT NOT NULL," +
+            "port INTEGER NOT NULL," +
+            "actor VARCHAR(255)," +
+            "visible BOOLEAN," +
+            "PRIMARY KEY (id)," +
+            "UNIQUE (ip));";
+
+    static public final String PACKETS_VISIBLE_VIEW =
+            "CREATE OR REPLACE VIEW packets_visible AS " +
+            "SELECT p.pacno FROM packets p, addresses a, addresses b " + 
+            "WHERE p.pacno IS NOT NULL " +
+            "AND (a.visible = 'true' AND a.id = p.src_id) " + 
+            "AND (b.visible = 'true' AND b.id = p.dst_id) " + 
+            "AND (p.data IS NOT NULL OR 'false' IN " + 
+            "(SELECT value FROM settings WHERE name='visible.xmpp-only')) " + 
+            "ORDER BY pacno; ";
+
     static public final String CREATE_SCHEMA =
             "" +
         "CREATE TABLE IF NOT EXISTS settings (" +
@@ -25,12 +71,7 @@ public interface DatabaseQuery
             "value VARCHAR(255) NOT NULL, " +
             "PRIMARY KEY(name));" +
             "" +
-        "CREATE TABLE IF NOT EXISTS addresses (" +
-            "ip VARCHAR(255)," +
-            "actor VARCHAR(255)," +
-            "visible BOOLEAN," +
-            "PRIMARY KEY (ip));" +
-            "" +
+        ADDRESSES_SCHEMA +
         "CREATE TABLE IF NOT EXISTS actors (" +
             "precedence INTEGER," +
             "actor VARCHAR(255));" +
@@ -39,8 +80,8 @@ public interface DatabaseQuery
             "uid INTEGER AUTO_INCREMENT NOT NULL," +
             "pacno INTEGER," +
             "time TIMESTAMP NOT NULL," +
-            "src VARCHAR(255) NOT NULL," +
-            "dst VARCHAR(255) NOT NULL," +
+            "src_id INTEGER NOT NULL," +
+            "dst_id INTEGER NOT NULL," +
             "tcpflags TINYINT NOT NULL," +
             "seqno BIGINT NOT NULL," +
             "ackno BIGINT NOT NULL," +
@@ -48,23 +89,59 @@ public interface DatabaseQuery
             "readable BOOLEAN NOT NULL," +
             "data VARCHAR(65535)," +
             "stanzas BINARY," +
-            "FOREIGN KEY (src) REFERENCES addresses (ip)," +
-            "FOREIGN KEY (dst) REFERENCES addresses (ip)," +
+            "bounds BINARY," +
+            "FOREIGN KEY (src_id) REFERENCES addresses (id)," +
+            "FOREIGN KEY (dst_id) REFERENCES addresses (id)," +
             "PRIMARY KEY(uid));" +
             "" +
-            "CREATE OR REPLACE VIEW packets_visible AS " +
-            "SELECT p.pacno FROM packets p, addresses a, addresses b " + 
-            "WHERE p.pacno IS NOT NULL " +
-            "AND (a.visible = 'true' AND a.ip = p.src) " + 
-            "AND (b.visible = 'true' AND b.ip = p.dst) " + 
-            "AND (p.data IS NOT NULL OR 'false' IN " + 
-            "(SELECT value FROM settings WHERE name='visible.xmpp-only')) " + 
-            "ORDER BY pacno; " +
-            "" +
+            AUGUR_SCHEMA +
+            PACKETS_VISIBLE_VIEW +
         "CREATE INDEX IF NOT EXISTS packets_time_idx ON packets (time);" +
         "CREATE INDEX IF NOT EXISTS packets_pacno_idx ON packets (pacno);" +
         "CREATE INDEX IF NOT EXISTS actors_precedence_idx ON actors (precedence);";
 
+    static public final String UPGRADE_SCHEMA =
+        "ALTER TABLE packets ADD COLUMN IF NOT EXISTS bounds BINARY;" +
+        AUGUR_SCHEMA +
+        PACKETS_VISIBLE_VIEW;
+
+    static public final String VERIFY_ADDRESS_IDS =
+        "SELECT column_name " +
+            "FROM information_schema.columns " +
+            "WHERE table_name='PACKETS' AND column_name='SRC_ID';";
+
+    // moves a database whose packets refer to addresses by their text over
+    // to ids, the numeric forms of the addresses are filled in afterwards
+    static public final String MIGRATE_ADDRESS_IDS =
+        "DROP VIEW IF EXISTS packets_visible;" +
+        "ALTER TABLE addresses RENAME TO addresses_text;" +
+        ADDRESSES_SCHEMA +
+        "INSERT INTO addresses " +
+            "(ip, ipver, addr_hi, addr_lo, port, actor, visible) " +
+            "SELECT ip, 0, 0, 0, 0, actor, visible FROM addresses_text " +
+            "ORDER BY ip;" +
+        "ALTER TABLE packets ADD COLUMN src_id INTEGER;" +
+        "ALTER TABLE packets ADD COLUMN dst_id INTEGER;" +
+        "UPDATE packets p SET " +
+            "src_id = (SELECT id FROM addresses a WHERE a.ip = p.src), " +
+            "dst_id = (SELECT id FROM addresses a WHERE a.ip = p.dst);" +
+        "DROP TABLE addresses_text CASCADE;" +
+        "ALTER TABLE packets DROP COLUMN src;" +
+        "ALTER TABLE packets DROP COLUMN dst;" +
+        "ALTER TABLE packets ALTER COLUMN src_id SET NOT NULL;" +
+        "ALTER TABLE packets ALTER COLUMN dst_id SET NOT NULL;" +
+        "ALTER TABLE packets ADD FOREIGN KEY (src_id) " +
+            "REFERENCES addresses (id);" +
+        "ALTER TABLE packets ADD FOREIGN KEY (dst_id) " +
+            "REFERENCES addresses (id);";
+
+    static public final String FETCH_UNPARSED_ADDRESSES =
+        "SELECT id, ip FROM addresses WHERE ipver=0;";
+
+    static public final String UPDATE_ADDRESS_NUMBERS =
+        "UPDATE addresses SET ipver=?, addr_hi=?, addr_lo=?, port=? " +
+        "WHERE id=?;";
+
     static public final String UPDATE_SETTING = 
         "UPDATE settings SET value=? WHERE name=?;";
 
@@ -74,6 +151,9 @@ public interface DatabaseQuery
     
     static public final String FETCH_SETTING = 
         "SELECT value FROM settings WHERE name=?;";
+
+    static public final String MERGE_SETTING = 
+        "MERGE INTO settings (name, value) KEY (name) VALUES (?, ?);";
  
     static public final String DELETE_ACTORS =
         "DELETE FROM actors;";
@@ -99,9 +179,13 @@ public interface DatabaseQuery
     static public final String FETCH_ADDRESSES = 
         "SELECT ip, actor, visible FROM addresses ORDER BY actor, ip;";
 
-    static public final String INSERT_ADDRESS = 
-        "INSERT INTO addresses (ip, actor, visible) " +
-        "VALUES (?, ?, ?);";
+    static public final String FETCH_ADDRESS_IDS =
+        "SELECT id, ip, ipver, addr_hi, addr_lo, port FROM addresses;";
+
+    static public final String MERGE_ADDRESS = 
+        "MERGE INTO addresses " +
+        "(id, ip, ipver, addr_hi, addr_lo, port, actor, visible) " +
+        "KEY (ip) VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
 
     static public final String UPDATE_ADDRESS_ACTOR = 
         "UPDATE addresses SET actor=? where ip=?;";
@@ -114,23 +198,105 @@ public interface DatabaseQuery
     
     static public final String INSERT_PACKET = 
         "INSERT INTO packets (" +
-        "time, src, dst, tcpflags, seqno, " +
-        "ackno, pktlen, readable, data, stanzas) " +
-        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+        "time, src_id, dst_id, tcpflags, seqno, " +
+        "ackno, pktlen, readable, data, stanzas, bounds) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
     
-    static public final String SELECT_ALL_UID_AND_PACNO =
-        "SELECT uid, pacno FROM packets ORDER BY time, uid;";
+    static public final String SELECT_PACNO_RANGE =
+        "SELECT COUNT(pacno), MIN(pacno), MAX(pacno) FROM packets;";
+
+    static public final String SELECT_UNNUMBERED_RANGE =
+        "SELECT COUNT(*), MIN(time) FROM packets WHERE pacno IS NULL;";
+
+    static public final String SELECT_PACNO_TIME =
+        "SELECT time FROM packets WHERE pacno=?;";
+
+    // H2 has no window functions, but numbers the rows of an ordered
+    // derived table in order
+    static public final String RESEQUENCE_PACNOS =
+        "MERGE INTO packets (uid, pacno) KEY (uid) " +
+        "SELECT uid, ROWNUM() - 1 FROM " +
+        "(SELECT uid FROM packets ORDER BY time, uid);";
+
+    static public final String APPEND_PACNOS =
+        "MERGE INTO packets (uid, pacno) KEY (uid) " +
+        "SELECT uid, ? + ROWNUM() - 1 FROM " +
+        "(SELECT uid FROM packets WHERE pacno IS NULL ORDER BY time, uid);";
+
+    static public final String FETCH_VISIBLE_ADDRESSES =
+        "SELECT id, ip, visible FROM addresses;";
 
-    static public final String SELECT_VISIBLE_PACKETS = 
-        "select pacno FROM packets_visible";
+    static public final String FETCH_XMPP_ONLY =
+        "SELECT value FROM settings WHERE name='visible.xmpp-only';";
 
+    static public final String GET_PACNO_LIMIT =
+        "SELECT MAX(pacno) FROM packets;";
+
+    static public final String FETCH_VISIBLE_INDEX =
+        "SELECT pacno, src_id, dst_id, data IS NOT NULL FROM packets " +
+        "WHERE pacno IS NOT NULL;";
+
+    // the text of the addresses is found by id
     static public final String FETCH_PACKET_BY_PACNO =
-        "SELECT pacno, time, src, dst, tcpflags, seqno, ackno, pktlen, " +
-        "readable, data, stanzas FROM packets WHERE pacno=?;";
+        "SELECT p.pacno, p.time, a.ip, b.ip, p.tcpflags, p.seqno, " +
+        "p.ackno, p.pktlen, p.readable, p.data, p.stanzas, p.bounds " +
+        "FROM packets p " +
+        "JOIN addresses a ON a.id = p.src_id " +
+        "JOIN addresses b ON b.id = p.dst_id " +
+        "WHERE p.pacno=?;";
+
+    // parameters are the length of text wanted, and an array of pacnos
+    static public final String FETCH_PACKET_SUMMARIES_BY_PACNOS =
+        "SELECT p.pacno, p.time, a.ip, b.ip, p.tcpflags, p.seqno, " +
+        "p.ackno, p.pktlen, SUBSTRING(p.data, 1, ?) " +
+        "FROM packets p " +
+        "JOIN addresses a ON a.id = p.src_id " +
+        "JOIN addresses b ON b.id = p.dst_id " +
+        "WHERE p.pacno IN (SELECT x FROM TABLE(x INT = ?)) " +
+        "ORDER BY p.pacno;";
 
     static public final String FETCH_ALL_PACKETS =
-        "SELECT pacno, time, src, dst, tcpflags, seqno, ackno, pktlen, " +
-        "readable, data, stanzas FROM packets;";
+        "SELECT p.pacno, p.time, a.ip, b.ip, p.tcpflags, p.seqno, " +
+        "p.ackno, p.pktlen, p.readable, p.data, p.stanzas, p.bounds " +
+        "FROM packets p " +
+        "JOIN addresses a ON a.id = p.src_id " +
+        "JOIN addresses b ON b.id = p.dst_id " +
+        "ORDER BY p.uid;";
+    
+    static public final String FETCH_PACKETS_BY_UID_RANGE =
+        "SELECT p.pacno, p.time, a.ip, b.ip, p.tcpflags, p.seqno, " +
+        "p.ackno, p.pktlen, p.readable, p.data, p.stanzas, p.bounds " +
+        "FROM packets p " +
+        "JOIN addresses a ON a.id = p.src_id " +
+        "JOIN addresses b ON b.id = p.dst_id " +
+        "WHERE p.uid BETWEEN ? AND ? ORDER BY p.uid;";
+    
+    static public final String GET_UID_RANGE =
+        "SELECT MIN(uid), MAX(uid) FROM packets;";
+    
+    static public final String GET_TIME_RANGE =
+        "SELECT MIN(time), MAX(time) FROM packets;";
+    
+    static public final String FETCH_AUGUR_CLIENT_SERVICES =
+        "SELECT actor, ip FROM augur_client_services;";
+
+    static public final String MERGE_AUGUR_CLIENT_SERVICE =
+        "MERGE INTO augur_client_services (actor, ip) KEY (actor) " +
+        "VALUES (?, ?);";
+
+    static public final String FETCH_AUGUR_BOSH_SESSIONS =
+        "SELECT sessionid, ip FROM augur_bosh_sessions ORDER BY uid;";
+
+    static public final String INSERT_AUGUR_BOSH_SESSION =
+        "INSERT INTO augur_bosh_sessions (sessionid, ip) VALUES (?, ?);";
+
+    static public final String FETCH_AUGUR_SESSION_CREATES =
+        "SELECT sender, svc_address, jid FROM augur_session_creates " +
+        "ORDER BY uid;";
+
+    static public final String INSERT_AUGUR_SESSION_CREATE =
+        "INSERT INTO augur_session_creates (sender, svc_address, jid) " +
+        "VALUES (?, ?, ?);";
     
     static public final String GET_PACKET_COUNT =
         "SELECT count(*) from packets;";
@@ -138,10 +304,10 @@ public interface DatabaseQuery
     static public final String REDUCE_PACKETS = 
         "DELETE FROM packets WHERE pacno NOT IN " +
         "(SELECT pacno FROM packets_visible); " +
-        "DELETE FROM addresses WHERE ip NOT IN " + 
-        "(SELECT distinct src FROM packets); " +
-        "DELETE FROM addresses WHERE ip NOT IN " + 
-        "(SELECT distinct dst FROM packets); " +
+        "DELETE FROM addresses WHERE id NOT IN " + 
+        "(SELECT distinct src_id FROM packets); " +
+        "DELETE FROM addresses WHERE id NOT IN " + 
+        "(SELECT distinct dst_id FROM packets); " +
         "DELETE FROM actors WHERE actor NOT IN " + 
         "(SELECT distinct actor FROM addresses);";
 }
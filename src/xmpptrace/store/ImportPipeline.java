@@ -0,0 +1,246 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.w3c.dom.Document;
+
+import xmpptrace.action.StreamParser;
+import xmpptrace.action.TcpStreamReassembler;
+import xmpptrace.model.Pair;
+import xmpptrace.model.StanzaCodec;
+import xmpptrace.model.TcpPacket;
+
+/**
+ * Staged pipeline used by the database to import packets from a
+ * StreamParser.  Work is split across three stages:
+ *
+ *     reader - a single thread which frames packets from the parser
+ *     workers - a pool which decodes packet payloads, parses stanzas, and
+ *               encodes the stanzas for storage (the latter two are skipped
+ *               for a lazy import, which stores only the stanza bounds)
+ *     writer - the caller of take(), which receives the results in the
+ *              original stream order, for insertion to the db
+ *
+ * Stanzas split across packets are reassembled as the writer takes each
+ * result, as this needs the packets of a connection in stream order.  Only
+ * packets which follow on from an incomplete stanza are parsed again.
+ *
+ * The reader hands each packet to the worker pool and places the pending
+ * result on a bounded queue, from which the writer takes results in order.
+ * The reader blocks while the queue is full, so the number of packets in
+ * flight (and hence memory use) stays flat regardless of the stream size.
+ *
+ * @author adb
+ */
+class ImportPipeline
+{
+    // maximum number of packets held between the reader and the writer
+    private static final int QUEUE_DEPTH = 4096;
+
+    // parser from which packets are read
+    private StreamParser mParser;
+
+    // pending results, in stream order
+    private BlockingQueue<Future<Pair<TcpPacket, byte[]>>> mQueue;
+
+    // decoding stage
+    private ExecutorService mWorkers;
+
+    // framing stage
+    private Thread mReader;
+
+    // if true, stanzas are left unparsed
+    private boolean mLazy;
+
+    // reassembly stage, run by the writer
+    private TcpStreamReassembler mReassembler;
+
+    /**
+     * Ctor.  Starts the reader and worker threads.
+     * @param parser The parser from which to read packets.
+     * @param lazy If true, stanzas are not parsed, and take() yields only
+     *        the packets (with their stanza bounds).
+     */
+    ImportPipeline(StreamParser parser, boolean lazy)
+    {
+        mParser = parser;
+        mLazy = lazy;
+        mReassembler = new TcpStreamReassembler();
+        mQueue = new ArrayBlockingQueue<Future<Pair<TcpPacket, byte[]>>>(
+                QUEUE_DEPTH);
+        mWorkers = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "xmpptrace-import-worker");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        mReader = new Thread("xmpptrace-import-reader")
+        {
+            public void run()
+            {
+                readPackets();
+            }
+        };
+        mReader.setDaemon(true);
+        mReader.start();
+    }
+
+    /**
+     * Takes the next decoded packet, in stream order, blocking until it
+     * is available.
+     * @return A pair holding the decoded packet and its encoded stanzas
+     *         (null if the packet has none, or for a lazy import, unless
+     *         they were reassembled), or null at the end of stream.
+     * @throws IOException If the parser failed (including cancellation
+     *         of a progress monitored stream).
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    Pair<TcpPacket, byte[]> take() throws IOException, InterruptedException
+    {
+        Pair<TcpPacket, byte[]> result;
+        try
+        {
+            result = mQueue.take().get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IOException(cause);
+        }
+
+        // reassembled stanzas do not lie within the packet text, so are
+        // stored encoded, even for a lazy import
+        if (result != null)
+        {
+            ArrayList<Document> stanzas = mReassembler.process(result.first);
+            if (stanzas != null)
+            {
+                result.second = StanzaCodec.encode(stanzas);
+                result.first.stanzaBounds = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the reader and worker threads.  Must be called once the writer
+     * is done with the pipeline, whether or not the end of stream was
+     * reached.
+     */
+    void close()
+    {
+        mReader.interrupt();
+        mWorkers.shutdownNow();
+    }
+
+    /**
+     * Body of the reader thread.  Frames packets from the parser and hands
+     * them to the workers, queuing the pending results in stream order.
+     * The end of stream, or a parser failure (including an Error, such as
+     * running out of memory), is queued as a final result, so that the 
+     * writer is never left waiting.
+     */
+    private void readPackets()
+    {
+        try
+        {
+            try
+            {
+                TcpPacket p = mParser.getNextFrame();
+                while (p != null)
+                {
+                    FutureTask<Pair<TcpPacket, byte[]>> task =
+                            new FutureTask<Pair<TcpPacket, byte[]>>(
+                                    new DecodeTask(p));
+                    mQueue.put(task);
+                    mWorkers.execute(task);
+                    p = mParser.getNextFrame();
+                }
+                mQueue.put(completed(null));
+            }
+            catch (Throwable t)
+            {
+                mQueue.put(completed(t));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // pipeline closed by the writer
+        }
+    }
+
+    /**
+     * Creates an already completed result, used to mark the end of stream.
+     * @param t If not null, the failure the result should throw.
+     * @return A completed result, yielding null or throwing t.
+     */
+    private static FutureTask<Pair<TcpPacket, byte[]>> completed(
+            final Throwable t)
+    {
+        FutureTask<Pair<TcpPacket, byte[]>> task =
+                new FutureTask<Pair<TcpPacket, byte[]>>(
+                        new Callable<Pair<TcpPacket, byte[]>>()
+                        {
+                            public Pair<TcpPacket, byte[]> call()
+                                    throws Exception
+                            {
+                                if (t instanceof Error) throw (Error)t;
+                                if (t != null) throw (Exception)t;
+                                return null;
+                            }
+                        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Work done for each packet by the worker pool.
+     */
+    private class DecodeTask implements Callable<Pair<TcpPacket, byte[]>>
+    {
+        private TcpPacket mPacket;
+
+        DecodeTask(TcpPacket p)
+        {
+            mPacket = p;
+        }
+
+        public Pair<TcpPacket, byte[]> call() throws Exception
+        {
+            mParser.decodePacket(mPacket);
+            Pair<TcpPacket, byte[]> result = new Pair<TcpPacket, byte[]>();
+            result.first = mPacket;
+            if (!mLazy)
+            {
+                // the doms are not needed once encoded
+                result.second = Database.serializeStanzas(
+                        mPacket.getStanzas());
+                mPacket.stanzas = null;
+            }
+            return result;
+        }
+    }
+}
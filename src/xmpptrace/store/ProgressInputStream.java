@@ -0,0 +1,85 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Reports the number of bytes read through it to a ProgressSink, in the
+ * same manner as a ProgressMonitorInputStream does to a ProgressMonitor.
+ * Cancelling the sink causes an InterruptedIOException on the next read.
+ * Progress is reported in kilobytes, so files over 2GB do not overflow a
+ * progress monitor.
+ */
+class ProgressInputStream extends FilterInputStream
+{
+    private ProgressSink mSink;
+    private long mCount;
+
+    /**
+     * Ctor.
+     * @param is The stream to be read.
+     * @param sink The sink to report to, on which begin() has been called.
+     */
+    public ProgressInputStream(InputStream is, ProgressSink sink)
+    {
+        super(is);
+        mSink = sink;
+        mCount = 0;
+    }
+
+    public int read() throws IOException
+    {
+        checkCanceled();
+        int b = in.read();
+        if (b != -1)
+        {
+            advance(1);
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        checkCanceled();
+        int n = in.read(b, off, len);
+        advance(n);
+        return n;
+    }
+
+    public long skip(long n) throws IOException
+    {
+        checkCanceled();
+        long skipped = in.skip(n);
+        advance(skipped);
+        return skipped;
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    private void advance(long n)
+    {
+        if (n > 0)
+        {
+            mCount += n;
+            mSink.setProgress(mCount >>> 10);
+        }
+    }
+
+    private void checkCanceled() throws InterruptedIOException
+    {
+        if (mSink.isCanceled())
+        {
+            throw new InterruptedIOException("progress");
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.store;
+
+/**
+ * Receives progress reports from long running database operations, such as
+ * file imports and actor discovery, and may ask for them to be cancelled.
+ * The application supplies a sink which shows progress monitors, while a
+ * headless import supplies one which writes to the console.  An operation
+ * is made up of one or more tasks, each begun by a call to begin() and
+ * ended by a call to end().  Reports may be made from any thread.
+ *
+ * @author adb
+ */
+public interface ProgressSink
+{
+    /**
+     * A sink which ignores all reports, and never cancels.
+     */
+    public static final ProgressSink NONE = new ProgressSink()
+    {
+        public void begin(String note, long max) {}
+        public void setProgress(long value) {}
+        public boolean isCanceled() { return false; }
+        public void end() {}
+    };
+
+    /**
+     * Reports the start of a task.
+     * @param note Description of the task.
+     * @param max Progress value at which the task will be complete.
+     */
+    public void begin(String note, long max);
+
+    /**
+     * Reports progress through the current task.
+     * @param value Progress so far, from 0 to the max given to begin().
+     */
+    public void setProgress(long value);
+
+    /**
+     * Asks whether the user has cancelled the current task.
+     * @return True if the task should stop.
+     */
+    public boolean isCanceled();
+
+    /**
+     * Reports the end of the current task, complete or not.
+     */
+    public void end();
+}
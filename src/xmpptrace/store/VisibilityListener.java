@@ -0,0 +1,20 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.store;
+
+public interface VisibilityListener
+{
+    /**
+     * Event fired when packets have been shown or hidden, by a change to
+     * the visibility of an address, or to the xmpp-only setting.  Packets
+     * themselves are unchanged.
+     * @param generation Generation of the visible packets to which the
+     *        change applies, see Database.getVisiblePackets().
+     * @param shown Pacnos of packets made visible, in ascending order.
+     * @param hidden Pacnos of packets hidden, in ascending order.
+     */
+    public void onVisibilityChange(int generation, int[] shown, int[] hidden);
+}
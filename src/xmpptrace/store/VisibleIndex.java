@@ -0,0 +1,257 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.store;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import xmpptrace.model.IntList;
+
+/**
+ * An in memory index of which packets are visible, as the packets_visible
+ * view would select them.  A packet is visible if both its addresses are,
+ * and, if only xmpp packets are to be shown, it has text.  The index holds
+ * the address ids of each numbered packet, and for each address the
+ * packets to or from it, so that when the visibility of an address is
+ * changed, only its own packets need be looked at, and the change to the
+ * visible packets is given as a delta.
+ *
+ * The index is loaded once from the db, and is only good for as long as
+ * the packets are not renumbered or deleted.  Not thread safe.
+ *
+ * @author adb
+ */
+final class VisibleIndex
+{
+    /**
+     * A change to the set of visible packets.
+     */
+    static class Delta
+    {
+        // pacnos of packets made visible, and hidden, in ascending order
+        int[] shown;
+        int[] hidden;
+
+        boolean isEmpty()
+        {
+            return shown.length == 0 && hidden.length == 0;
+        }
+    }
+
+    // address ids of each packet, by pacno
+    private int[] mSrcIds;
+    private int[] mDstIds;
+
+    // pacnos in use (they have gaps once a db is reduced)
+    private BitSet mNumbered;
+
+    // packets which have text, by pacno
+    private BitSet mHasData;
+
+    // visible addresses, by id, and ids by address text
+    private BitSet mVisibleIds;
+    private HashMap<String, Integer> mIds;
+
+    // packets to or from each address, those of address id i being
+    // mPacnos[mStarts[i]] to mPacnos[mStarts[i + 1] - 1]
+    private int[] mStarts;
+    private int[] mPacnos;
+
+    // true if packets without text are hidden
+    private boolean mXmppOnly;
+
+    /**
+     * Loads the index from the db.
+     * @param cxn Connection to the db.
+     * @return The index.
+     * @throws SQLException On failure to operate on the database.
+     */
+    static VisibleIndex load(java.sql.Connection cxn) throws SQLException
+    {
+        VisibleIndex index = new VisibleIndex();
+        Statement s = cxn.createStatement();
+
+        // addresses, and their visibility
+        index.mVisibleIds = new BitSet();
+        index.mIds = new HashMap<String, Integer>();
+        int maxId = 0;
+        ResultSet rs = s.executeQuery(DatabaseQuery.FETCH_VISIBLE_ADDRESSES);
+        while (rs.next())
+        {
+            int id = rs.getInt(1);
+            index.mIds.put(rs.getString(2), id);
+            index.mVisibleIds.set(id, rs.getBoolean(3));
+            maxId = Math.max(maxId, id);
+        }
+
+        // the setting is taken to be on unless it is explicitly off
+        rs = s.executeQuery(DatabaseQuery.FETCH_XMPP_ONLY);
+        index.mXmppOnly = !(rs.next() && "false".equals(rs.getString(1)));
+
+        // packets, and how many there are to or from each address
+        int n = 0;
+        rs = s.executeQuery(DatabaseQuery.GET_PACNO_LIMIT);
+        if (rs.next())
+        {
+            n = rs.getInt(1) + 1;
+        }
+        index.mSrcIds = new int[n];
+        index.mDstIds = new int[n];
+        index.mNumbered = new BitSet(n);
+        index.mHasData = new BitSet(n);
+        int[] counts = new int[maxId + 2];
+        rs = s.executeQuery(DatabaseQuery.FETCH_VISIBLE_INDEX);
+        while (rs.next())
+        {
+            int pacno = rs.getInt(1);
+            int src = rs.getInt(2);
+            int dst = rs.getInt(3);
+            if (pacno < 0 || pacno >= n || src > maxId || dst > maxId)
+            {
+                continue;
+            }
+            index.mSrcIds[pacno] = src;
+            index.mDstIds[pacno] = dst;
+            index.mNumbered.set(pacno);
+            index.mHasData.set(pacno, rs.getBoolean(4));
+            ++counts[src + 1];
+            if (dst != src)
+            {
+                ++counts[dst + 1];
+            }
+        }
+
+        // then the packets of each address, in ascending order
+        for (int i = 1; i < counts.length; ++i)
+        {
+            counts[i] += counts[i - 1];
+        }
+        index.mStarts = counts.clone();
+        index.mPacnos = new int[counts[counts.length - 1]];
+        for (int pacno = index.mNumbered.nextSetBit(0);
+             pacno >= 0;
+             pacno = index.mNumbered.nextSetBit(pacno + 1))
+        {
+            int src = index.mSrcIds[pacno];
+            int dst = index.mDstIds[pacno];
+            index.mPacnos[counts[src]++] = pacno;
+            if (dst != src)
+            {
+                index.mPacnos[counts[dst]++] = pacno;
+            }
+        }
+        return index;
+    }
+
+    private VisibleIndex()
+    {
+    }
+
+    /**
+     * Adds the pacnos of all visible packets, in ascending order, to the
+     * given list.
+     * @param list The list to which pacnos are added.
+     */
+    void getVisible(IntList list)
+    {
+        for (int pacno = mNumbered.nextSetBit(0);
+             pacno >= 0;
+             pacno = mNumbered.nextSetBit(pacno + 1))
+        {
+            if (isVisible(pacno))
+            {
+                list.add(pacno);
+            }
+        }
+    }
+
+    /**
+     * Changes the visibility of an address.
+     * @param ip The address.
+     * @param visible True to make it visible.
+     * @return The resulting change to the visible packets.
+     */
+    Delta setAddressVisible(String ip, boolean visible)
+    {
+        Delta delta = new Delta();
+        Integer id = mIds.get(ip);
+        if (id == null || mVisibleIds.get(id) == visible)
+        {
+            // not an address of any numbered packet, or no change
+            delta.shown = new int[0];
+            delta.hidden = new int[0];
+            return delta;
+        }
+
+        // the other address of each packet, and its text, are unchanged,
+        // so a packet changes if they would have it visible
+        mVisibleIds.set(id, visible);
+        int[] changed = new int[mStarts[id + 1] - mStarts[id]];
+        int count = 0;
+        for (int i = mStarts[id]; i < mStarts[id + 1]; ++i)
+        {
+            int pacno = mPacnos[i];
+            int other = (mSrcIds[pacno] == id) ?
+                    mDstIds[pacno] : mSrcIds[pacno];
+            if (mVisibleIds.get(other) &&
+                (!mXmppOnly || mHasData.get(pacno)))
+            {
+                changed[count++] = pacno;
+            }
+        }
+        changed = Arrays.copyOf(changed, count);
+        delta.shown = visible ? changed : new int[0];
+        delta.hidden = visible ? new int[0] : changed;
+        return delta;
+    }
+
+    /**
+     * Changes whether packets without text are hidden.
+     * @param xmppOnly True to hide them.
+     * @return The resulting change to the visible packets.
+     */
+    Delta setXmppOnly(boolean xmppOnly)
+    {
+        Delta delta = new Delta();
+        if (xmppOnly == mXmppOnly)
+        {
+            delta.shown = new int[0];
+            delta.hidden = new int[0];
+            return delta;
+        }
+
+        // packets without text whose addresses are visible change
+        mXmppOnly = xmppOnly;
+        int[] changed = new int[mSrcIds.length];
+        int count = 0;
+        for (int pacno = mNumbered.nextSetBit(0);
+             pacno >= 0;
+             pacno = mNumbered.nextSetBit(pacno + 1))
+        {
+            if (!mHasData.get(pacno) &&
+                mVisibleIds.get(mSrcIds[pacno]) &&
+                mVisibleIds.get(mDstIds[pacno]))
+            {
+                changed[count++] = pacno;
+            }
+        }
+        changed = Arrays.copyOf(changed, count);
+        delta.shown = xmppOnly ? new int[0] : changed;
+        delta.hidden = xmppOnly ? changed : new int[0];
+        return delta;
+    }
+
+    private boolean isVisible(int pacno)
+    {
+        return mVisibleIds.get(mSrcIds[pacno]) &&
+               mVisibleIds.get(mDstIds[pacno]) &&
+               (!mXmppOnly || mHasData.get(pacno));
+    }
+}
@@ -8,6 +8,7 @@ package xmpptrace.view;
 import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
@@ -102,12 +103,16 @@ class ActorDisplayMaster
 		
 		// flag to indicate if this actor has been marked as selected
 		public boolean selected;
+		
+		// the shaded actor box, rendered when first drawn
+		BufferedImage box;
 
 		public DisplayedActor(String aName) 
 		{
 			name = aName;
 			x = 0;
 			selected = false;
+			box = null;
 		}
 	}
 
@@ -210,52 +215,61 @@ class ActorDisplayMaster
 	}
 	
 	/**
-	 * Draws the actor header to a given image buffer.  The given image must
-	 * have dimensions that meet the minimum required, as given by getMinWidth
-	 * and getMinHeight.
-	 * @param image The image to which the actor header will be drawn.
+	 * Draws the actor header to a given graphics context, in the coords of
+	 * the full display, which is at least as wide as getMinWidth.  Only the
+	 * part of the header within the clip of the context is drawn, actors
+	 * lying wholly outside it are passed over.
+	 * @param g The graphics context to which the actor header will be drawn.
 	 */
-	void drawActors(BufferedImage image) 
+	void drawActors(Graphics2D g) 
 	{
-		clearActors(image);
-
-		if (image.getWidth() < mWidth || image.getHeight() < mHeight)
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
 		{
-			System.err.println("ActorDisplayMaster.drawActors: image too small");
-			return;
+			clip = new Rectangle(0, 0, mWidth, mHeight);
 		}
+		clearActors(g, clip);
 		
+		// no actor box is wider than the space given each actor
+		int halfSpace = (mActorsByPrecedence.size() > 0) ?
+				mWidth / mActorsByPrecedence.size() / 2 + 1 : 0;
 		for (DisplayedActor actor : mActorsByPrecedence)
 		{
-			drawActor(image, actor);
+			if (actor.x + halfSpace >= clip.x && 
+				actor.x - halfSpace < clip.x + clip.width)
+			{
+				drawActor(g, actor);
+			}
 		}
 	}
 	
 	/**
-	 * Cleans up the given image so that actors can be re-rendered. This
-	 * only erases the region of the image where actors are displayed, the
+	 * Cleans up the display so that actors can be re-rendered. This
+	 * only erases the region of the display where actors are displayed, the
 	 * events section is left intact.
-	 * @param image The image for which the actor header region is cleared.
+	 * @param g The graphics context of the display.
+	 * @param clip The region of the display being drawn.
 	 */
 	private void clearActors(
-			BufferedImage image)
+			Graphics2D g,
+			Rectangle clip)
 	{
-		Graphics2D g = (Graphics2D) image.getGraphics();
 		g.setColor(Pallette.BG_EVENT_PANEL);
-		g.fillRect(0, 0, image.getWidth(), getMinHeight());
+		g.fillRect(clip.x, 0, clip.width, getMinHeight());
 	}
 	
 	/**
-	 * Draw a single actor to the given image buffer.  This includes the 
+	 * Draw a single actor to the given graphics context.  This includes the 
 	 * actor box, display name text, and vertical actor line down as far
 	 * as the minimum height of the actor header.
-	 * @param image Buffered image to which actor will be drawn.
+	 * @param g0 Graphics context to which actor will be drawn.
 	 * @param a The DisplayActor record for the actor that is to be drawn.
 	 */
-	private void drawActor(BufferedImage image, DisplayedActor a)
+	private void drawActor(Graphics2D g0, DisplayedActor a)
 	{
-		// compute size and positioning for actor name text
-		Graphics2D g = (Graphics2D) image.getGraphics();
+		// compute size and positioning for actor name text, drawing with
+		// a copy of the context, as its settings are changed
+		Graphics2D g = (Graphics2D) g0.create();
 		g.setFont(Pallette.FONT_ACTOR_NAME);
 		Rectangle2D textRect = g.getFontMetrics().getStringBounds(a.name, g);
 		int textX = a.x - (int) (textRect.getWidth() / 2);
@@ -271,10 +285,14 @@ class ActorDisplayMaster
 		// draw actor box
 		g.setColor(c);
 		int boxWidth = (int) (textRect.getWidth() + 2 * sActorBoxPadX);
-		drawActorBox(image, 
+		if (a.box == null || a.box.getWidth() != boxWidth)
+		{
+			a.box = renderActorBox(boxWidth);
+		}
+		g.drawImage(a.box, 
 				a.x - (int) (boxWidth / 2),
 				sBoxCenterLineY - sActorBoxHalfHeight,
-				boxWidth);
+				null);
 
 		// draw actor line
 		g.setColor(c);
@@ -295,18 +313,20 @@ class ActorDisplayMaster
 				RenderingHints.KEY_ANTIALIASING,
 				RenderingHints.VALUE_ANTIALIAS_ON);
 		g.drawString(a.name, textX, textTopY - 2); 
+		g.dispose();
 	}
 		
 	/**
-	 * Draw an actor box to the given image, with the given dimensions.
-	 * @param image Image to which the box should be drawn.
-	 * @param x Horizontal coordinate of the left edge of the box.
-	 * @param y Vertical coordinate of the top edge of the box.
+	 * Renders an actor box of the given width, shaded over the panel
+	 * background, to an image of its own.
 	 * @param w Width of the box.
+	 * @return Image of the box.
 	 */
-	private void drawActorBox(BufferedImage image, int x, int y, int w)
+	private BufferedImage renderActorBox(int w)
 	{
 		// iterate over actor box drawing area, and fill in pixels
+		BufferedImage image = new BufferedImage(
+				w, sActorBoxHeight, BufferedImage.TYPE_3BYTE_BGR);
 		float shade = (float) 0.0;
 		int hh = sActorBoxHeight / 2;
 		for (int i = 0; i < sActorBoxHeight; ++i)
@@ -335,9 +355,10 @@ class ActorDisplayMaster
                         Pallette.BG_EVENT_PANEL.getGreen() * (1 - shade));
 				int blue = (int) (Pallette.ACTOR.getBlue() * shade + 
                         Pallette.BG_EVENT_PANEL.getBlue() * (1 - shade));
-				image.setRGB(x + j, y + i, (red << 16) + (green << 8) + blue);
+				image.setRGB(j, i, (red << 16) + (green << 8) + blue);
 			}
 		}
+		return image;
 	}	
 	
 	/**
@@ -9,9 +9,12 @@ package xmpptrace.view;
 import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
+import java.util.HashMap;
 
+import xmpptrace.model.Address;
+import xmpptrace.model.PacketSummary;
 import xmpptrace.model.PacketTableModel;
 
 /**
@@ -30,6 +33,10 @@ class EventDisplayMaster
 	// the packet (event) table which is displayed by this event display model
 	private PacketTableModel mPacketTable;
 	
+	// actor of each address, as when this display model was made, so that
+	// events can be drawn off the swing thread
+	private HashMap<String, String> mActors;
+	
 	// static display parameters
 	static public Color sEventArrowColor = Pallette.EVENT;
 	static public Color sEventTextColor = Pallette.EVENT_TEXT;
@@ -38,7 +45,16 @@ class EventDisplayMaster
 	static public int sMinPanelHeight = 500;
 	
 	/**
-	 * Ctor.
+	 * Tells a drawing of events whether it is still wanted, so that it can
+	 * be abandoned part way through.
+	 */
+	interface Cancellation
+	{
+		boolean isCancelled();
+	}
+	
+	/**
+	 * Ctor, to be called on the swing thread, as the address table is read.
 	 * @param adm The ActorDisplayMaster that goes with this EventDisplayMaster.
 	 * @param packetTable The PacketTableModel to be display.
 	 */
@@ -48,6 +64,11 @@ class EventDisplayMaster
 	{
 		mAdm = adm;
 		mPacketTable = packetTable;
+		mActors = new HashMap<String, String>();
+		for (Address a : packetTable.getAddressTableModel().getAddressArray())
+		{
+			mActors.put(a.ip, a.actor);
+		}
 	}
 		
 	/**
@@ -64,67 +85,95 @@ class EventDisplayMaster
 	}
 	
 	/**
-	 * Returns the number of events arrows which can be displayed in the given
-	 * image buffer.  Figures this based on the image height of the buffer,
-	 * and the amount of space required by the actor header sub panel at the
+	 * Returns the number of events arrows which can be displayed in a
+	 * display of the given height.  Figures this based on the height, and
+	 * the amount of space required by the actor header sub panel at the
 	 * top.
-	 * @param image The image buffer to which events are displayed.
+	 * @param height The height of the display to which events are drawn.
 	 * @return Number of events which can be displayed at once on the panel.
 	 */
-	int getVisibleEvents(BufferedImage image)
+	int getVisibleEvents(int height)
 	{
-		return ((image.getHeight() - mAdm.getMinHeight()) / sEventHeight) - 1;
+		return ((height - mAdm.getMinHeight()) / sEventHeight) - 1;
 	}
 	
 	/**
-	 * Draws events to the given image.
-	 * @param image The buffered image to draw on.
+	 * Draws events to the given graphics context.  Only the part of the
+	 * display within its clip is drawn, events whose arrows lie wholly
+	 * outside it are passed over.
+	 * @param g The graphics context to draw on, in full display coords.
+	 * @param height The height of the display.
 	 * @param firstEventIndex The index of the first event in the packet model.
 	 * @param selectedEventIndex The index of the currently selected event.
+	 * @param cancellation Checked between events, the drawing is given up
+	 *        once it is cancelled.
 	 */
 	void drawEvents(
-			BufferedImage image, 
+			Graphics2D g, 
+			int height,
 			int firstEventIndex,
-			int selectedEventIndex) 
+			int selectedEventIndex,
+			Cancellation cancellation) 
 	{		
-		// clear the event portion of the image for redrawing
-		clearEvents(image);
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+		{
+			clip = new Rectangle(0, 0, mAdm.getMinWidth(), height);
+		}
+		
+		// clear the event portion of the display for redrawing
+		clearEvents(g, clip, height);
 		
 		// draw the vertical actor lines
 		for (ActorDisplayMaster.DisplayedActor actor : 
 				mAdm.getActorsByPrecedence())
 		{
-			drawActorLine(image, actor);
+			if (actor.x + 1 >= clip.x && actor.x - 1 < clip.x + clip.width)
+			{
+				drawActorLine(g, height, actor);
+			}
 		}
 		
 		// draw the event arrows and corresponding text for events
 		int eventY = mAdm.getMinHeight() + sEventHeight;
-		int numEvents = getVisibleEvents(image);
+		int numEvents = getVisibleEvents(height);
 		int lastEventIndex = firstEventIndex + numEvents;
 		if (lastEventIndex > mPacketTable.getRowCount())
 		{
 			lastEventIndex = mPacketTable.getRowCount();
 		}
-		for (int i = firstEventIndex; i < lastEventIndex; ++i)
+		
+		// packets not yet cached are fetched in the background, and their
+		// events left blank until the packet table reports them updated
+		mPacketTable.prefetch(firstEventIndex, lastEventIndex - 1);
+		for (int i = firstEventIndex; 
+				i < lastEventIndex && !cancellation.isCancelled(); ++i)
 		{
-			drawEvent(image, i, eventY, i == selectedEventIndex);
+			PacketSummary packet = mPacketTable.peekSummaryAt(i);
+			if (packet != null)
+			{
+				drawEvent(g, clip, packet, eventY, i == selectedEventIndex);
+			}
 			eventY += sEventHeight;
 		}
 	}
 
 	/**
-	 * Cleans up the given image so that events can be re-rendered. This
-	 * only erases the region of the image where events are displayed, the
+	 * Cleans up the display so that events can be re-rendered. This
+	 * only erases the region of the display where events are displayed, the
 	 * actor headers are left intact.
-	 * @param image The image for which the event display region is cleared.
+	 * @param g The graphics context of the display.
+	 * @param clip The region of the display being drawn.
+	 * @param height The height of the display.
 	 */
 	private void clearEvents(
-			BufferedImage image)
+			Graphics2D g,
+			Rectangle clip,
+			int height)
 	{
-		Graphics2D g = (Graphics2D) image.getGraphics();
 		g.setColor(Pallette.BG_EVENT_PANEL);
-		g.fillRect(0, mAdm.getMinHeight(), image.getWidth(), 
-					image.getHeight() - mAdm.getMinHeight());
+		g.fillRect(clip.x, mAdm.getMinHeight(), clip.width, 
+					height - mAdm.getMinHeight());
 	}
 	
 	/**
@@ -132,55 +181,76 @@ class EventDisplayMaster
 	 * ActorDisplayMaster only renders a stub line from underneath the actor 
 	 * header boxes.  This extends those lines for the full height of the event 
 	 * panel.
-	 * @param image The image to which the actor line should be drawn.
+	 * @param g The graphics context to which the line should be drawn.
+	 * @param height The height of the display.
 	 * @param actor The actor for which a line should be drawn.
 	 */
 	private void drawActorLine(
-			BufferedImage image, 
+			Graphics2D g, 
+			int height,
 			ActorDisplayMaster.DisplayedActor actor) 
 	{
-		Graphics2D g = (Graphics2D) image.getGraphics();
-		
 		g.setColor(ActorDisplayMaster.sActorColor);
 		g.drawLine(actor.x - 1, mAdm.getMinHeight(), 
-					actor.x - 1, image.getHeight());
+					actor.x - 1, height);
 		
 		g.setColor(ActorDisplayMaster.sActorColor.brighter());
 		g.drawLine(actor.x, mAdm.getMinHeight(), 
-					actor.x, image.getHeight());
+					actor.x, height);
 		
 		g.setColor(ActorDisplayMaster.sActorColor);
 		g.drawLine(actor.x + 1, mAdm.getMinHeight(), 
-					actor.x + 1, image.getHeight());
+					actor.x + 1, height);
 	}
 
 	/**
 	 * Draws a single event arrow, with text.
-	 * @param image The image buffer to draw to.
-	 * @param eventIndex The index of the packet to be rendered.
-	 * @param eventY The y coordinate, in image coords, for the line.
+	 * @param g0 The graphics context to draw to.
+	 * @param clip The region of the display being drawn.
+	 * @param packet Summary of the packet to be rendered.
+	 * @param eventY The y coordinate, in display coords, for the line.
 	 * @param isSelected True if this event is "selected".
 	 */
 	private void drawEvent(
-			BufferedImage image, 
-			int eventIndex,
+			Graphics2D g0, 
+			Rectangle clip,
+			PacketSummary packet,
 			int eventY,
 			boolean isSelected) 
 	{
-		final Graphics2D g = (Graphics2D)image.getGraphics();
-		
 		// figure out the "to" and "from" actors for this packet
-		String fromActorName = (String)mPacketTable.getValueAt(
-					eventIndex, PacketTableModel.SENDER_ALIAS);
+		String fromActorName = mActors.get(packet.src);
 		
-		String toActorName = (String)mPacketTable.getValueAt(
-					eventIndex, PacketTableModel.RECIPIENT_ALIAS);
+		String toActorName = mActors.get(packet.dst);
+		
+		// an address added since this display model was made
+		if (fromActorName == null || toActorName == null)
+		{
+			return;
+		}
 		
 		ActorDisplayMaster.DisplayedActor fromActor = 
 					mAdm.getActor(fromActorName);
 		
 		ActorDisplayMaster.DisplayedActor toActor = 
 					mAdm.getActor(toActorName);
+		
+		// or one whose actor is not among those displayed
+		if (fromActor == null || toActor == null)
+		{
+			return;
+		}
+		
+		// the arrow, with its head, and text all lie between the actor lines
+		int left = Math.min(fromActor.x, toActor.x) - 8;
+		int right = Math.max(fromActor.x, toActor.x) + 8;
+		if (right < clip.x || left >= clip.x + clip.width)
+		{
+			return;
+		}
+		
+		// draw with a copy of the context, as its settings are changed
+		final Graphics2D g = (Graphics2D)g0.create();
 				
 		// select appropriate color for the event line (highlight if selected)
 		Color color = sEventArrowColor;
@@ -192,16 +262,14 @@ class EventDisplayMaster
 		
 		// draw event line and arrowhead
 		g.drawLine(fromActor.x, eventY, toActor.x, eventY);
-		drawArrowHead(image, toActor.x, eventY, 
+		drawArrowHead(g, toActor.x, eventY, 
 				toActor.x > fromActor.x, color);	
 
-		// get text to be displayed 
-		String tcpData = (String) mPacketTable.getValueAt(
-					eventIndex, PacketTableModel.TCPDATA);
+		// get text to be displayed, the summary holds enough to fill a line
+		String tcpData = packet.text;
 		if (tcpData.length() == 0)
 		{
-			tcpData = (String) mPacketTable.getValueAt(
-					eventIndex, PacketTableModel.TCP_FLAGS);
+			tcpData = packet.getTcpFlags();
 		}
 
 		// abbreviate arrow text (allow 75% of distance between actor lines)
@@ -263,18 +331,19 @@ class EventDisplayMaster
 				(int)(Math.abs(toActor.x - fromActor.x)/2) - 
 				(int)(fm.getStringBounds(tcpData, g).getWidth() / 2), 
 				eventY - 1);
+		g.dispose();
 	}    
 	
 	/**
-	 * Draw an arrowhead to the given image.
-	 * @param image Image to which arrowhead should be drawn.
+	 * Draw an arrowhead to the given graphics context.
+	 * @param g Graphics context to which arrowhead should be drawn.
 	 * @param aX The x coordinate of the arrowhead tip.
 	 * @param aY The y coordinate of the arrowhead tip.
 	 * @param pointRight True if arrow points right, false if left.
 	 * @param color Color to use when drawing arrowhead.
 	 */
 	void drawArrowHead(
-			BufferedImage image, 
+			Graphics2D g, 
 			int aX, 
 			int aY, 
 			boolean pointRight, 
@@ -293,38 +362,39 @@ class EventDisplayMaster
         	for (int i = 0; i < 9; ++i) x[i] = aX + 8 - i;
         	for (int i = 0; i < 7; ++i) y[i] = aY + 3 - i;
         }
-                
-        image.setRGB(x[0], y[0], color.getRGB()); 
-        image.setRGB(x[1], y[0], color.getRGB()); 
-        image.setRGB(x[2], y[0], color.getRGB());
+            
+        g.setColor(color);
+        g.fillRect(x[0], y[0], 1, 1); 
+        g.fillRect(x[1], y[0], 1, 1); 
+        g.fillRect(x[2], y[0], 1, 1);
         
-        image.setRGB(x[1], y[1], color.getRGB()); 
-        image.setRGB(x[2], y[1], color.getRGB()); 
-        image.setRGB(x[3], y[1], color.getRGB());
+        g.fillRect(x[1], y[1], 1, 1); 
+        g.fillRect(x[2], y[1], 1, 1); 
+        g.fillRect(x[3], y[1], 1, 1);
 
-        image.setRGB(x[2], y[2], color.getRGB()); 
-        image.setRGB(x[3], y[2], color.getRGB()); 
-        image.setRGB(x[4], y[2], color.getRGB());
-        image.setRGB(x[5], y[2], color.getRGB());
+        g.fillRect(x[2], y[2], 1, 1); 
+        g.fillRect(x[3], y[2], 1, 1); 
+        g.fillRect(x[4], y[2], 1, 1);
+        g.fillRect(x[5], y[2], 1, 1);
  
-        image.setRGB(x[3], y[3], color.getRGB()); 
-        image.setRGB(x[4], y[3], color.getRGB()); 
-        image.setRGB(x[5], y[3], color.getRGB());
-        image.setRGB(x[6], y[3], color.getRGB());
-        image.setRGB(x[7], y[3], color.getRGB());
-        image.setRGB(x[8], y[3], color.getRGB());
+        g.fillRect(x[3], y[3], 1, 1); 
+        g.fillRect(x[4], y[3], 1, 1); 
+        g.fillRect(x[5], y[3], 1, 1);
+        g.fillRect(x[6], y[3], 1, 1);
+        g.fillRect(x[7], y[3], 1, 1);
+        g.fillRect(x[8], y[3], 1, 1);
         
-        image.setRGB(x[2], y[4], color.getRGB()); 
-        image.setRGB(x[3], y[4], color.getRGB()); 
-        image.setRGB(x[4], y[4], color.getRGB());
-        image.setRGB(x[5], y[4], color.getRGB());
+        g.fillRect(x[2], y[4], 1, 1); 
+        g.fillRect(x[3], y[4], 1, 1); 
+        g.fillRect(x[4], y[4], 1, 1);
+        g.fillRect(x[5], y[4], 1, 1);
         
-        image.setRGB(x[1], y[5], color.getRGB()); 
-        image.setRGB(x[2], y[5], color.getRGB()); 
-        image.setRGB(x[3], y[5], color.getRGB());
+        g.fillRect(x[1], y[5], 1, 1); 
+        g.fillRect(x[2], y[5], 1, 1); 
+        g.fillRect(x[3], y[5], 1, 1);
 
-        image.setRGB(x[0], y[6], color.getRGB()); 
-        image.setRGB(x[1], y[6], color.getRGB()); 
-        image.setRGB(x[2], y[6], color.getRGB());
+        g.fillRect(x[0], y[6], 1, 1); 
+        g.fillRect(x[1], y[6], 1, 1); 
+        g.fillRect(x[2], y[6], 1, 1);
     }
 }
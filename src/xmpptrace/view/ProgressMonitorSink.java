@@ -0,0 +1,68 @@
+/**
+ * (c) Copyright 2015 Andrew Biggs
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+
+package xmpptrace.view;
+
+import java.awt.Component;
+
+import javax.swing.ProgressMonitor;
+
+import xmpptrace.store.ProgressSink;
+
+/**
+ * A ProgressSink which pops up a ProgressMonitor over the given component
+ * for each task reported to it, as the application did for file imports
+ * and actor discovery before progress reporting was made pluggable.
+ *
+ * @author adb
+ */
+public class ProgressMonitorSink implements ProgressSink
+{
+    private Component mParent;
+    private volatile ProgressMonitor mMonitor;
+
+    /**
+     * Ctor.
+     * @param parent Component over which progress monitors are shown.
+     */
+    public ProgressMonitorSink(Component parent)
+    {
+        mParent = parent;
+        mMonitor = null;
+    }
+
+    public void begin(String note, long max)
+    {
+        ProgressMonitor pm = new ProgressMonitor(
+                mParent, note, null, 0, (int)Math.min(max, Integer.MAX_VALUE));
+        pm.setMillisToPopup(0);
+        mMonitor = pm;
+    }
+
+    public void setProgress(long value)
+    {
+        ProgressMonitor pm = mMonitor;
+        if (pm != null)
+        {
+            pm.setProgress((int)Math.min(value, Integer.MAX_VALUE));
+        }
+    }
+
+    public boolean isCanceled()
+    {
+        ProgressMonitor pm = mMonitor;
+        return pm != null && pm.isCanceled();
+    }
+
+    public void end()
+    {
+        ProgressMonitor pm = mMonitor;
+        if (pm != null)
+        {
+            pm.close();
+            mMonitor = null;
+        }
+    }
+}
@@ -81,11 +81,21 @@ public class SequenceEventPanel
 	private JScrollBar mHorizScrollBar;
 	private JScrollBar mVertScrollBar;
 	
-	// full rendered image
-	private BufferedImage mFullImage;
+	// width of the full display, of which the panel shows a viewport
+	private int mFullWidth;
 	
-	// portion of the full image which is currently viewable in the gui
-	private BufferedImage mVisibleImage;
+	// the last rendered frame, which paint draws as is, or null if none
+	private BufferedImage mFrame;
+	
+	// background thread rendering frames, the frame it is to render next,
+	// or null if none, and a frame no longer painted, which it may reuse
+	private Thread mRenderThread;
+	private FrameJob mPendingFrame;
+	private BufferedImage mSpareFrame;
+	private final Object mRenderLock = new Object();
+	
+	// serial number of the latest frame asked for, older ones are stale
+	private volatile int mFrameSerial;
 	
 	// types of search supported by search() method
 	enum SearchType 
@@ -99,6 +109,29 @@ public class SequenceEventPanel
 		FOUND, NOT_FOUND, BAD_SYNTAX
 	}
 	
+	/**
+	 * A frame to be rendered, with the state of the panel it is to show,
+	 * as taken on the swing thread when the frame was asked for.  It is
+	 * cancelled once a later frame has been asked for.
+	 */
+	private class FrameJob implements EventDisplayMaster.Cancellation
+	{
+		int serial;
+		ActorDisplayMaster adm;
+		EventDisplayMaster edm;
+		int x;
+		int width;
+		int height;
+		int displayHeight;
+		int firstEvent;
+		int selectedEvent;
+		
+		public boolean isCancelled()
+		{
+			return serial != mFrameSerial;
+		}
+	}
+	
 	/**
 	 * Ctor.
 	 * @param addressTable The address table to be associated with the display
@@ -128,15 +161,19 @@ public class SequenceEventPanel
 		// listen to the packet table and actor table
 		mPacketTable.addTableModelListener(this);
 		
-		// need to start with blank image due to how redraw works
-		mFullImage = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+		mFullWidth = 0;
+		mFrame = null;
+		mRenderThread = null;
+		mPendingFrame = null;
+		mSpareFrame = null;
+		mFrameSerial = 0;
 		
-		// listen to resize events on this panel, do full redraw on resize
+		// listen to resize events on this panel, lay out again on resize
 		addComponentListener(new ComponentAdapter() 
 		{
 			public void componentResized(ComponentEvent e) 
 			{
-				redrawFullImage();
+				layoutDisplay();
 			}
 		});
 		
@@ -156,7 +193,7 @@ public class SequenceEventPanel
 				{
 					int firstVisible = mVertScrollBar.getValue();
 					setSelectedEvent(idx + firstVisible);
-	    			redrawEventsOnly();
+	    			requestFrame();
 				}
 			}
 			public void mouseReleased(MouseEvent e) 
@@ -238,7 +275,7 @@ public class SequenceEventPanel
 		
 		// if new selection is close to old selection, just inc/dec to it 
 		if (Math.abs(mSelectedEvent - mVertScrollBar.getValue()) 
-		        < mEdm.getVisibleEvents(this.mFullImage) + 1)
+		        < mEdm.getVisibleEvents(getDisplayHeight()) + 1)
 		{
             while (mSelectedEvent < mVertScrollBar.getValue())
             {   
@@ -246,7 +283,7 @@ public class SequenceEventPanel
             }   
                 
             while (mSelectedEvent >= mVertScrollBar.getValue() + 
-                        mEdm.getVisibleEvents(mFullImage))
+                        mEdm.getVisibleEvents(getDisplayHeight()))
             {   
                 mVertScrollBar.setValue(mVertScrollBar.getValue() + 1); 
             }   
@@ -257,7 +294,7 @@ public class SequenceEventPanel
             mVertScrollBar.setValue(mSelectedEvent);
         }
         
-		redrawEventsOnly();
+		requestFrame();
 		
 		// xmpp doc listens to selection events on this panel
 		fireValueChangedEvent(new ListSelectionEvent(this, idx, idx, false));
@@ -287,12 +324,12 @@ public class SequenceEventPanel
     		if (e.getKeyCode() == 38)
     		{
     			setSelectedEvent(mSelectedEvent - 1);
-    			redrawEventsOnly();
+    			requestFrame();
     		}
     		else if (e.getKeyCode() == 40)
     		{
     			setSelectedEvent(mSelectedEvent + 1);
-    			redrawEventsOnly();
+    			requestFrame();
     		}
 			return true;
     	}
@@ -302,46 +339,52 @@ public class SequenceEventPanel
     
 	/**
 	 * Listens to change events on the PacketTableModel and ActorTableModel, 
-	 * redraws full image.
+	 * lays out and repaints the display.  Rows updated, as when their
+	 * packets have been fetched in the background, need only a repaint.
 	 * @param e Table event received.
 	 */
 	public void tableChanged(TableModelEvent e) 
 	{
-		redrawFullImage();
+		if (e.getType() == TableModelEvent.UPDATE && 
+			e.getFirstRow() != TableModelEvent.HEADER_ROW &&
+			e.getLastRow() != Integer.MAX_VALUE)
+		{
+			requestFrame();
+			return;
+		}
+		layoutDisplay();
 		fireValueChangedEvent(new ListSelectionEvent(
 				this, mSelectedEvent, mSelectedEvent, false));
 	}
 		
 	/**
-	 * Re-draws the full event panel.  This is typically necessary when the
+	 * Lays out the full display, of which the panel shows a viewport, and
+	 * sets the scroll bars to match.  This is typically necessary when the
 	 * panel is resized, or either the address or packet tables are modified.
+	 * Nothing is drawn here, frames of the viewport alone are rendered in
+	 * the background, so that the memory needed does not grow with the
+	 * number of actors.
 	 */
-	private void redrawFullImage()
+	private void layoutDisplay()
 	{
 		// create actor and event display models to assist in drawing actors
-		Graphics2D g2 = (Graphics2D)mFullImage.getGraphics();
+		BufferedImage scratch = 
+				new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g2 = (Graphics2D)scratch.getGraphics();
 		mAdm = new ActorDisplayMaster(g2, mActorTable);
 		mEdm = new EventDisplayMaster(mAdm, mPacketTable);
+		g2.dispose();
 		
 		// figure out what the current visible panel size is
 		Dimension visibleDim = getSize();
+		mFullWidth = Math.max(mAdm.getMinWidth(), visibleDim.width);
 
-		// initialize a new full image buffer
-		mFullImage = new BufferedImage(
-				Math.max(mAdm.getMinWidth(), visibleDim.width),
-				Math.max(mAdm.getMinHeight(), visibleDim.height),
-				BufferedImage.TYPE_3BYTE_BGR);
-
-		// draw actors to the new image
-		mAdm.drawActors(mFullImage);
-				
-		// draw events to the new image (remember previous scroll location)
+		// keep the previous scroll location, if still in range
 		int vertSbValue = mVertScrollBar.getValue();
 		if (vertSbValue < 0 || vertSbValue >= mPacketTable.getRowCount())
 		{
 			vertSbValue = 0;
 		}		
-		mEdm.drawEvents(mFullImage, vertSbValue, mSelectedEvent);
 
 		// set the vertical scroll bar values based on size of event table.
 		// the vertical scroll bar range is equal to the number of events in
@@ -351,105 +394,222 @@ public class SequenceEventPanel
 					mPacketTable.getRowCount() + 100);
 
 		// set horizontal scroll bar values and range.  the horizontal scroll
-		// bar range is equal to the raster width of the full image, minus the
+		// bar range is equal to the width of the full display, minus the
 		// width of the visible region of the panel.  the value is the x 
 		// coordinate of the leftmost displayed pixels as represented in the
-		// full image coordinates.
+		// full display coordinates.
 		int horizSbValue = mHorizScrollBar.getValue();
 		if (horizSbValue < 0 || 
-					horizSbValue >= mFullImage.getWidth() - visibleDim.width)
+					horizSbValue >= mFullWidth - visibleDim.width)
 		{
 			horizSbValue = 0;
 		}
-		if (visibleDim.width < mFullImage.getWidth())
+		if (visibleDim.width < mFullWidth)
 		{
 			mHorizScrollBar.setVisible(true);			
 			mHorizScrollBar.setValues(horizSbValue, visibleDim.width, 
-					0, mFullImage.getWidth());
-			redrawVisibleImage();
+					0, mFullWidth);
 		}
 		else
 		{
 			this.mHorizScrollBar.setVisible(false);			
-			mVisibleImage = mFullImage;
-			repaint();
 		}
+		requestFrame();
 	}
-		
+	
 	/**
-	 * Redraws only the lower portion of the panel, which displayes event
-	 * arrows and text.  Does not update the Actor header blocks.  This is
-	 * useful for handling vertical scrollbar events, and when the user is
-	 * keying through events.
+	 * Returns the height of the full display, which is at least that
+	 * needed by the actor header.
+	 * @return Height of the full display.
 	 */
-	private void redrawEventsOnly()
+	private int getDisplayHeight()
 	{
-		if (mEdm != null)
+		int height = getHeight();
+		if (mAdm != null)
 		{
-			mEdm.drawEvents(
-						mFullImage, mVertScrollBar.getValue(), mSelectedEvent);
+			height = Math.max(mAdm.getMinHeight(), height);
 		}
-		redrawVisibleImage();
+		return height;
 	}
 
 	/**
 	 * List for scrollbar events.  This is triggered by both vertical and 
-	 * horizontal scrollbar events.  For vertical scrolling, we only want
-	 * to redraw the events portion of the display, and leave the actor
-	 * blocks at the top alone.  For horizontal scrolling, we just need
-	 * to change the visibile image (that which paint actuall paints) to
-	 * be a new subimage of the full image.
+	 * horizontal scrollbar events.  For vertical scrolling, the events
+	 * shown change, and for horizontal scrolling, the viewport moves
+	 * across the full display.  Either way, a new frame is rendered.
 	 * @param e Adjustment event triggered by a scrollbar.
 	 */
 	public void adjustmentValueChanged(AdjustmentEvent e) 
 	{
-		if (e.getSource() == mVertScrollBar)
-		{
-			redrawEventsOnly();
-		}
-		else
-		{
-			redrawVisibleImage();
-		}
+		requestFrame();
 	}
 	
 	/**
-	 * Crops a new subimage from the full image and sets that as the visible
-	 * image from which the paint method renders.  Subimage will always be
-	 * of size at least 1x1, will have a height equal to the full image,
-	 * and a width equal to the current viewable region of the panel.
+	 * Asks for a frame of the viewport to be rendered in the background,
+	 * as the panel is now.  Any frame asked for earlier is cancelled, and
+	 * if not yet begun, is never rendered, so that a burst of scroll events
+	 * renders only the last.  Must be called on the swing thread.
 	 */
-	private void redrawVisibleImage()
-	{	
-		Dimension visibleDim = getSize();
-		int horizSbValue = mHorizScrollBar.getValue();
+	private void requestFrame()
+	{
+		if (mAdm == null || mEdm == null || 
+			mHorizScrollBar == null || mVertScrollBar == null)
+		{
+			return;
+		}
 		
 		// take some care to ensure we have sane values
-		if (visibleDim.width < 1) visibleDim.width = 1;
-		if (visibleDim.height < 1) visibleDim.height = 1;
-		if (horizSbValue > mFullImage.getWidth() - visibleDim.width) 
-			horizSbValue = mFullImage.getWidth() - visibleDim.width;
+		Dimension visibleDim = getSize();
+		if (visibleDim.width < 1 || visibleDim.height < 1)
+		{
+			return;
+		}
+		int horizSbValue = mHorizScrollBar.isVisible() ? 
+				mHorizScrollBar.getValue() : 0;
+		if (horizSbValue > mFullWidth - visibleDim.width) 
+			horizSbValue = mFullWidth - visibleDim.width;
 		if (horizSbValue < 0) horizSbValue = 0;
-						
-		mVisibleImage = mFullImage.getSubimage(
-				horizSbValue, 
-				0, 
-				visibleDim.width, 
-				visibleDim.height);
 		
+		FrameJob job = new FrameJob();
+		job.serial = ++mFrameSerial;
+		job.adm = mAdm;
+		job.edm = mEdm;
+		job.x = horizSbValue;
+		job.width = visibleDim.width;
+		job.height = visibleDim.height;
+		job.displayHeight = getDisplayHeight();
+		job.firstEvent = mVertScrollBar.getValue();
+		job.selectedEvent = mSelectedEvent;
+		
+		synchronized (mRenderLock)
+		{
+			mPendingFrame = job;
+			if (mRenderThread == null)
+			{
+				mRenderThread = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						runRenderer();
+					}
+				}, "sequence renderer");
+				mRenderThread.setDaemon(true);
+				mRenderThread.start();
+			}
+			mRenderLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Body of the render thread, which renders each pending frame in turn.
+	 * The display masters draw in full display coords, to an image of the
+	 * viewport, translated by the horizontal scroll and clipped to the
+	 * viewport, outside of which they do not draw.  A finished frame is
+	 * handed to the swing thread to be painted, unless it has been
+	 * cancelled, in which case its image is kept for reuse.
+	 */
+	private void runRenderer()
+	{
+		while (true)
+		{
+			final FrameJob job;
+			BufferedImage image;
+			synchronized (mRenderLock)
+			{
+				while (mPendingFrame == null)
+				{
+					try
+					{
+						mRenderLock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+				job = mPendingFrame;
+				mPendingFrame = null;
+				image = mSpareFrame;
+				mSpareFrame = null;
+			}
+			
+			if (image == null || 
+				image.getWidth() != job.width || 
+				image.getHeight() != job.height)
+			{
+				image = new BufferedImage(
+						job.width, job.height, BufferedImage.TYPE_3BYTE_BGR);
+			}
+			Graphics2D g2 = image.createGraphics();
+			g2.translate(-job.x, 0);
+			g2.clipRect(job.x, 0, job.width, job.height);
+			job.adm.drawActors(g2);
+			job.edm.drawEvents(g2, job.displayHeight, 
+					job.firstEvent, job.selectedEvent, job);
+			g2.dispose();
+			
+			if (job.isCancelled())
+			{
+				recycleFrame(image);
+				continue;
+			}
+			final BufferedImage frame = image;
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					showFrame(job, frame);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Swaps a finished frame in to be painted, unless it has been cancelled
+	 * while waiting its turn on the swing thread.
+	 * @param job The frame job.
+	 * @param frame The rendered frame.
+	 */
+	private void showFrame(FrameJob job, BufferedImage frame)
+	{
+		if (job.isCancelled())
+		{
+			recycleFrame(frame);
+			return;
+		}
+		if (mFrame != null)
+		{
+			recycleFrame(mFrame);
+		}
+		mFrame = frame;
 		repaint();
-	}	
+	}
+	
+	/**
+	 * Keeps an image no longer painted, for the render thread to reuse.
+	 * @param image The image.
+	 */
+	private void recycleFrame(BufferedImage image)
+	{
+		synchronized (mRenderLock)
+		{
+			mSpareFrame = image;
+		}
+	}
 		
 	/**
 	 * Standard Swing paint, renders the panel contents to the given graphics
-	 * context.
+	 * context.  This paints the last frame rendered in the background, as
+	 * is, and so never waits on drawing, or on the db.
 	 * @param g Graphics context on which to render the panel contents.
 	 */
-	public void paint(Graphics g) 
+	protected void paintComponent(Graphics g) 
 	{
-		if (mVisibleImage != null)
+		g.setColor(Pallette.BG_EVENT_PANEL);
+		g.fillRect(0, 0, getWidth(), getHeight());
+		if (mFrame != null)
 		{
-			g.drawImage(mVisibleImage, 0, 0, null);
+			g.drawImage(mFrame, 0, 0, null);
 		}
 	}
 	
@@ -594,11 +754,11 @@ public class SequenceEventPanel
 		{
 			boolean found = false;
 			TcpPacket packet = mPacketTable.getValueAt(row);
-			if (packet.stanzas == null)
+			if (packet.getStanzas() == null)
 			{
 				return false;
 			}
-			for (Document stanza : packet.stanzas)
+			for (Document stanza : packet.getStanzas())
 			{
 				NodeList nodes = null;
 				nodes = (NodeList)xpe.evaluate(stanza, XPathConstants.NODESET);
@@ -23,6 +23,7 @@ import javax.swing.ComboBoxModel;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 
 import javax.swing.JFileChooser;
@@ -45,6 +46,8 @@ import javax.swing.WindowConstants;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.SwingUtilities;
@@ -89,12 +92,16 @@ public class XmppTraceFrame extends JFrame
 	private JComboBox mSearchComboBox;
 	private JTextField mSearchTextField;
 	private JCheckBox mXmppOnly;
+	private JMenu mFileMenu;
 	private JMenuItem mNewFileMenuItem;
 	private JMenuItem mOpenFileMenuItem;
     private JMenuItem mSaveAsFileMenuItem;
     private JMenuItem mImportFileMenuItem;
+    private JMenuItem mImportBatchSizeMenuItem;
+    private JCheckBoxMenuItem mLazyImportMenuItem;
     private JMenuItem mExitFileMenuItem;
     private JMenuItem mReduceFileMenuItem;
+    private JMenuItem mPacketCacheMenuItem;
 
 	// singleton instance of the frame
 	private static XmppTraceFrame sInstance = null;
@@ -191,6 +198,8 @@ public class XmppTraceFrame extends JFrame
         db.addListener(mAddressTableModel);
         db.addListener(mActorTableModel);
         db.addListener(mPacketTableModel);
+        db.addVisibilityListener(mPacketTableModel);
+        db.setProgressSink(new ProgressMonitorSink(this));
 
 			
 		// initialize the user interface and listeners	
@@ -605,18 +614,90 @@ public class XmppTraceFrame extends JFrame
 			{
 			    JFileChooser chooser = new JFileChooser();
 			    FileNameExtensionFilter filter = new FileNameExtensionFilter(
-			            "xmppdump (.xml) or tcpdump (.pcap)", "xml", "pcap");
+			            "xmppdump (.xml) or tcpdump (.pcap, .pcapng), optionally compressed",
+			            "xml", "pcap", "pcapng", "gz", "xz", "zst");
 			    chooser.setFileFilter(filter);
                 chooser.setDialogTitle("Import From Packet Trace File");
                 int returnVal = chooser.showOpenDialog(XmppTraceFrame.this);
 			    if(returnVal == JFileChooser.APPROVE_OPTION) 
 			    {
 			    	Database db = Database.getInstance();
+			    	db.setImportBatchSize(fetchImportBatchSize());
+			    	db.setLazyStanzas(Database.SETTINGS_TRUE.equals(
+			    	        db.fetchSetting(Database.SETTINGS_IMPORT_LAZY)));
 			    	db.loadFromFile(chooser.getSelectedFile());
 			    }
 			}
 		});		
 
+        // handle import batch size menu option, the size is kept with the
+        // database and used by subsequent imports to it
+        mImportBatchSizeMenuItem.addActionListener(new ActionListener() 
+        {
+            public void actionPerformed(ActionEvent evt) 
+            {
+                Object value = JOptionPane.showInputDialog(
+                        XmppTraceFrame.this, 
+                        "Packets inserted per transaction when importing:", 
+                        "Import Batch Size", JOptionPane.QUESTION_MESSAGE, 
+                        null, null, String.valueOf(fetchImportBatchSize()));
+                if (value == null)
+                {
+                    return;
+                }
+                try
+                {
+                    int size = Integer.parseInt(value.toString().trim());
+                    if (size < 1)
+                    {
+                        throw new NumberFormatException();
+                    }
+                    Database db = Database.getInstance();
+                    db.updateSetting(Database.SETTINGS_IMPORT_BATCH_SIZE, 
+                            String.valueOf(size));
+                }
+                catch (NumberFormatException e)
+                {
+                    JOptionPane.showMessageDialog(XmppTraceFrame.this, 
+                            "Batch size must be a whole number of at " +
+                            "least 1.");
+                }
+            }
+        });     
+
+        // handle lazy import menu option, kept with the database like the
+        // batch size
+        mLazyImportMenuItem.addActionListener(new ActionListener() 
+        {
+            public void actionPerformed(ActionEvent evt) 
+            {
+                Database db = Database.getInstance();
+                db.updateSetting(Database.SETTINGS_IMPORT_LAZY, 
+                        mLazyImportMenuItem.isSelected() ? 
+                                Database.SETTINGS_TRUE : 
+                                Database.SETTINGS_FALSE);
+            }
+        });     
+
+        // show the lazy import setting of whichever database is now open
+        mFileMenu.addMenuListener(new MenuListener()
+        {
+            public void menuSelected(MenuEvent e)
+            {
+                Database db = Database.getInstance();
+                mLazyImportMenuItem.setSelected(Database.SETTINGS_TRUE.equals(
+                        db.fetchSetting(Database.SETTINGS_IMPORT_LAZY)));
+            }
+
+            public void menuDeselected(MenuEvent e)
+            {
+            }
+
+            public void menuCanceled(MenuEvent e)
+            {
+            }
+        });
+
 		// handle import xmppdump menu option
         mExitFileMenuItem.addActionListener(new ActionListener() 
         {
@@ -627,6 +708,51 @@ public class XmppTraceFrame extends JFrame
             }
         });  
         
+        // handle packet cache menu option, showing how well the cache of
+        // packet summaries is doing, and taking a new capacity for it
+        mPacketCacheMenuItem.addActionListener(new ActionListener() 
+        {
+            public void actionPerformed(ActionEvent evt) 
+            {
+                long hits = mPacketTableModel.getCacheHits();
+                long misses = mPacketTableModel.getCacheMisses();
+                String stats = String.format(
+                        "Cached: %d packets, %.1f MB of %d MB\n" +
+                        "Hits: %d, misses: %d (%.1f%% hit)\n\n" + 
+                        "Capacity, in MB:",
+                        mPacketTableModel.getCacheCount(),
+                        mPacketTableModel.getCacheSize() / (1024.0 * 1024),
+                        mPacketTableModel.getCacheCapacity() / (1024 * 1024),
+                        hits, misses, 
+                        (hits + misses == 0) ? 0.0 : 
+                                100.0 * hits / (hits + misses));
+                Object value = JOptionPane.showInputDialog(
+                        XmppTraceFrame.this, stats, "Packet Cache", 
+                        JOptionPane.QUESTION_MESSAGE, null, null, 
+                        String.valueOf(mPacketTableModel.getCacheCapacity() / 
+                                (1024 * 1024)));
+                if (value == null)
+                {
+                    return;
+                }
+                try
+                {
+                    int mb = Integer.parseInt(value.toString().trim());
+                    if (mb < 1)
+                    {
+                        throw new NumberFormatException();
+                    }
+                    mPacketTableModel.setCacheCapacity(mb * 1024L * 1024);
+                }
+                catch (NumberFormatException e)
+                {
+                    JOptionPane.showMessageDialog(XmppTraceFrame.this, 
+                            "Capacity must be a whole number of at " +
+                            "least 1 MB.");
+                }
+            }
+        });     
+
         // handle reduce menu option
         mReduceFileMenuItem.addActionListener(new ActionListener() 
         {
@@ -1018,6 +1144,26 @@ public class XmppTraceFrame extends JFrame
 		return mXmppOnly;
 	}
 
+	/**
+	 * Fetches the import batch size kept with the open database.
+	 * @return The batch size set, or the default if none has been set.
+	 */
+	private int fetchImportBatchSize()
+	{
+	    Database db = Database.getInstance();
+	    String value = db.fetchSetting(Database.SETTINGS_IMPORT_BATCH_SIZE);
+	    try
+	    {
+	        return (value == null) ? 
+	                Database.DEFAULT_IMPORT_BATCH_SIZE : 
+	                Math.max(1, Integer.parseInt(value));
+	    }
+	    catch (NumberFormatException e)
+	    {
+	        return Database.DEFAULT_IMPORT_BATCH_SIZE;
+	    }
+	}
+
 	/**
 	 * Instantiate the address table scroll pane.
 	 * @return The address table scroll pane.
@@ -1270,12 +1416,16 @@ public class XmppTraceFrame extends JFrame
 	{
 		JMenu m = new JMenu();
 		m.setText("File");
+		mFileMenu = m;
         m.add(createNewFileMenuItem());
 		m.add(createOpenFileMenuItem());
         m.add(createSaveAsFileMenuItem());
         m.add(createImportFileMenuItem());
+        m.add(createImportBatchSizeMenuItem());
+        m.add(createLazyImportMenuItem());
         m.addSeparator();
         m.add(createReduceFileMenuItem());
+        m.add(createPacketCacheMenuItem());
         m.addSeparator();
         m.add(createExitFileMenuItem());
 		return m;
@@ -1313,6 +1463,24 @@ public class XmppTraceFrame extends JFrame
 	    return mi;
 	}
 	
+    private JMenuItem createImportBatchSizeMenuItem()
+    {
+        JMenuItem mi = new JMenuItem();
+        mi.setText("Import Batch Size...");
+        mImportBatchSizeMenuItem = mi;
+        return mi;
+    }
+
+    private JMenuItem createLazyImportMenuItem()
+    {
+        JCheckBoxMenuItem mi = new JCheckBoxMenuItem();
+        mi.setText("Lazy Import");
+        mi.setToolTipText("Parse stanzas when first shown rather than " +
+                "when imported, for a faster import and smaller file");
+        mLazyImportMenuItem = mi;
+        return mi;
+    }
+
     private JMenuItem createExitFileMenuItem()
     {
         JMenuItem mi = new JMenuItem();
@@ -1321,6 +1489,14 @@ public class XmppTraceFrame extends JFrame
         return mi;
     }
 
+    private JMenuItem createPacketCacheMenuItem()
+    {
+        JMenuItem mi = new JMenuItem();
+        mi.setText("Packet Cache...");
+        mPacketCacheMenuItem = mi;
+        return mi;
+    }
+
     private JMenuItem createReduceFileMenuItem()
     {
         JMenuItem mi = new JMenuItem();